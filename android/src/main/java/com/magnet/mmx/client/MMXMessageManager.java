@@ -273,10 +273,10 @@ public final class MMXMessageManager extends MMXManager {
       }
     }
 
-    // add the client-pending messages; discard the payload to avoid blowing up
-    // the heap space.
+    // add the client-pending messages; only the requested messages are looked
+    // up in the queue index without the payload.
     Map<String, MMXQueue.Item> pendingMessages = getMMXClient().getQueue()
-        .getPendingItems(Item.Type.MESSAGE, true);
+        .getPendingItems(Item.Type.MESSAGE, messageIds);
     if (Log.isLoggable(TAG, Log.DEBUG)) {
       Log.d(TAG, "getMessageStates(): found " + pendingMessages.size() + " CLIENT_PENDING messages");
     }
@@ -14,24 +14,27 @@
  */
 package com.magnet.mmx.client;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
-import com.magnet.mmx.client.common.GlobalAddress;
 import com.magnet.mmx.client.common.Log;
-import com.magnet.mmx.protocol.MMXid;
+import com.magnet.mmx.client.common.MMXConnection;
+import com.magnet.mmx.client.common.QueueDrainer;
+import com.magnet.mmx.client.common.QueueItemCodec;
 import com.magnet.mmx.util.MMXQueue;
+import com.magnet.mmx.util.QueueExecutor;
+import com.magnet.mmx.util.SegmentedLog;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -39,15 +42,36 @@ import java.util.Map;
 import java.util.Set;
 
 /**
- * An implementation of the MMXQueue for Android that uses the filesystem as a backing store
- * for the queue items and keeps an index in SQLite.
+ * An implementation of the MMXQueue for Android that uses an append-only
+ * segmented log as a backing store.  Each item is encoded by
+ * {@link QueueItemCodec} and encrypted into one record; adding or removing an
+ * item is one append and one fsync shared with the concurrent writers.  The
+ * pending items are sent by {@link QueueDrainer}.  The items queued by the
+ * previous versions (one file per item with an index in SQLite) are migrated
+ * to the log when the queue is created.
  */
 class PersistentQueue implements MMXQueue {
   private static final String TAG = PersistentQueue.class.getSimpleName();
   private static final String MMX_ITEM_SUBDIR = PersistentQueue.class.getName();
+  private static final String MMX_LOG_SUBDIR = MMX_ITEM_SUBDIR + "-log";
   private final MMXClient mClient;
-  private final QueueDatabaseHelper mDatabaseHelper;
-  private final File mItemDir;
+  private final SegmentedLog mLog;
+  // Drain one at a time; the items can still be queued while draining.
+  private final QueueExecutor mDrainer = new QueueExecutor("MMX Queue Drainer", true);
+  private final QueueDrainer.Store mStore = new QueueDrainer.Store() {
+    public List<String> getIds() {
+      return mLog.getIds();
+    }
+
+    public MMXQueue.Item load(String id) throws IOException {
+      byte[] data = mLog.get(id);
+      return (data == null) ? null : decode(data);
+    }
+
+    public void remove(Collection<String> ids) throws IOException {
+      mLog.remove(ids);
+    }
+  };
 
   /**
    * The constructor for this queue
@@ -56,13 +80,13 @@ class PersistentQueue implements MMXQueue {
    */
   PersistentQueue(MMXClient client) {
     mClient = client;
-    mDatabaseHelper = new QueueDatabaseHelper(mClient.getContext(), PersistentQueue.class.getName() + "-" + client.mName);
-    mItemDir = new File(mClient.getContext().getFilesDir(), MMX_ITEM_SUBDIR + '.' + client.mName);
-    if (!mItemDir.exists()) {
-      if (!mItemDir.mkdir()) {
-        throw new RuntimeException("Unable to create queue directory for MMXClient: " + client.mName);
-      }
+    File logDir = new File(mClient.getContext().getFilesDir(), MMX_LOG_SUBDIR + '.' + client.mName);
+    try {
+      mLog = new SegmentedLog(logDir, SegmentedLog.DEFAULT_SEGMENT_SIZE);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to open queue log for MMXClient: " + client.mName, e);
     }
+    migrateLegacyItems();
   }
 
   /**
@@ -72,48 +96,74 @@ class PersistentQueue implements MMXQueue {
    * @return true if successful, false otherwise
    */
   public synchronized boolean addItem(MMXQueue.Item item) {
-    ObjectOutputStream oos = null;
-    SQLiteDatabase db = null;
     try {
       if (Log.isLoggable(TAG, Log.VERBOSE)) {
-        Log.v(TAG, "addItem(): saving item wrapper for item: " + item.getId());
+        Log.v(TAG, "addItem(): saving item: " + item.getId());
       }
-      File wrapperFile = new File(mItemDir, item.getId());
-      if (wrapperFile.createNewFile()) {
-        FileOutputStream fos = new FileOutputStream(wrapperFile, false);
-        oos = new ObjectOutputStream(mClient.mEncryptor.encodeStream(fos));
-        oos.writeObject(item);
-
-        //write the record to the database;
-        db = mDatabaseHelper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(QueueDatabaseHelper.QUEUE_ITEM_ID, item.getId());
-        values.put(QueueDatabaseHelper.QUEUE_ITEM_PATH, wrapperFile.getAbsolutePath());
-        values.put(QueueDatabaseHelper.QUEUE_ITEM_TIME, System.currentTimeMillis());
-        values.put(QueueDatabaseHelper.QUEUE_ITEM_TYPE, item.getType().toString());
-        db.insert(QueueDatabaseHelper.QUEUE_ITEM_TABLE, "", values);
-        return true;
-      } else {
-        Log.e(TAG, "addItem(): unable to create the item wrapper file.");
+      if (mLog.contains(item.getId())) {
+        Log.e(TAG, "addItem(): item already exists: " + item.getId());
         return false;
       }
+      mLog.put(item.getId(), item.getType().ordinal(),
+          encrypt(QueueItemCodec.encodeSummary(item)),
+          encrypt(QueueItemCodec.encode(item)));
+      return true;
     } catch (IOException e) {
       Log.e(TAG, "addItem():  Unable to store item for later sending.", e);
       return false;
+    }
+  }
+
+  private byte[] encrypt(byte[] data) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    OutputStream os = mClient.mEncryptor.encodeStream(baos);
+    try {
+      os.write(data);
     } finally {
-      if (oos != null) {
-        try {
-          oos.close();
-        } catch (IOException e) {
-          Log.w(TAG, "addItem():  Unable to close ObjectOutputStream", e);
-        }
-      }
-      if (db != null) {
-        db.close();
+      os.close();
+    }
+    return baos.toByteArray();
+  }
+
+  private byte[] decrypt(byte[] data) throws IOException {
+    InputStream is = mClient.mEncryptor.decodeStream(new ByteArrayInputStream(data));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length);
+    try {
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = is.read(buf)) > 0) {
+        baos.write(buf, 0, n);
       }
+    } finally {
+      is.close();
+    }
+    return baos.toByteArray();
+  }
+
+  // Decrypt and decode an item.
+  private MMXQueue.Item decode(byte[] data) throws IOException {
+    return QueueItemCodec.decode(decrypt(data));
+  }
+
+  // Get an item without its payload from the index; only the items migrated
+  // from the previous versions have no summary in the index.
+  private MMXQueue.Item getSummary(String id) throws IOException {
+    byte[] meta = mLog.getMeta(id);
+    if (meta != null) {
+      return QueueItemCodec.decode(decrypt(meta));
+    }
+    byte[] data = mLog.get(id);
+    if (data == null) {
+      return null;
     }
+    MMXQueue.Item item = decode(data);
+    item.setPayload(null);
+    return item;
   }
 
+  /**
+   * The index of the item files used by the previous versions.
+   */
   private static class QueueDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = QueueDatabaseHelper.class.getSimpleName();
     private static final int VERSION = 1;
@@ -149,105 +199,109 @@ class PersistentQueue implements MMXQueue {
   }
 
   /**
-   * Processes the pending items on the queue
+   * Move the items queued by the previous versions into the log in their
+   * queued order.  The item files hold the same encrypted bytes as the log
+   * records, so they are copied without decoding.  The legacy store is kept
+   * if the migration fails; it will be retried next time.
    */
-  public synchronized void processPendingItems() {
-    //this is only for sent messages
-    SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
-    Cursor itemCursor = null;
-    try {
-      itemCursor = db.query(QueueDatabaseHelper.QUEUE_ITEM_TABLE, null, null, null, null, null, QueueDatabaseHelper.QUEUE_ITEM_TIME);
-      if (Log.isLoggable(TAG, Log.VERBOSE)) {
-        Log.v(TAG, "processPendingItems(): Found " + itemCursor.getCount() + " pending items to send.");
-      }
-      int idIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_ID);
-      int pathIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_PATH);
-      int typeIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_TYPE);
-      while (itemCursor.moveToNext()) {
-        String id = itemCursor.getString(idIdx);
-        String itemPath = itemCursor.getString(pathIdx);
-        Item.Type type = Item.Type.valueOf(itemCursor.getString(typeIdx));
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-          Log.v(TAG, "processPendingItems(): processing " + id);
-        }
-        if (!mClient.isConnected()) {
-          //TODO: for now, just check if connected.  In the future, we need to ensure we get a callback
-          //TODO: to maintain the order of the queued messages.
-          Log.e(TAG, "processPendingItems(): Cannot process items because not connected.");
-          break;
-        }
-        File itemFile = new File(itemPath);
-        if (itemFile.exists()) {
-          ObjectInputStream ois = null;
-          try {
-            FileInputStream fis = new FileInputStream(itemFile);
-            ois = new ObjectInputStream(mClient.mEncryptor.decodeStream(fis));
-
-            switch (type) {
-              case MESSAGE:
-                //send the message
-                Item.Message messageItem = (Item.Message) ois.readObject();
-                mClient.getMessageManager().sendPayloadHelper(messageItem.getId(), (MMXid[])
-                                GlobalAddress.convertDestination(messageItem.getDestination()),
-                        messageItem.getPayload(), messageItem.getOptions());
-                break;
-              case PUBSUB:
-                MMXPubSubManager psm = mClient.getPubSubManager();
-                Item.PubSub pubSubItem = (Item.PubSub) ois.readObject();
-                psm.publishToTopic(pubSubItem.getId(), pubSubItem.getRealTopic(),
-                        pubSubItem.getTopic(), pubSubItem.getPayload());
-                break;
-              default:
-                Log.w(TAG, "processPendingItems():  Skipping unknown item type: " + type);
-            }
-          } catch (Exception e) {
-            Log.e(TAG, "processPendingItems() Caught exception while processing item: " + id, e);
-          } finally {
-            if (ois != null) {
-              try {
-                ois.close();
-              } catch (IOException e) {
-                Log.w(TAG, "processPendingItems(): Unable to close ObjectInputStream.", e);
-              }
-            }
-            //remove the file now that we don't need it anymore
-            boolean success = itemFile.delete();
-            if (!success) {
-              Log.w(TAG, "processPendingItems(): Unable to remove file: " + itemFile.getName());
-            }
+  private void migrateLegacyItems() {
+    Context context = mClient.getContext();
+    String dbName = PersistentQueue.class.getName() + "-" + mClient.mName;
+    File itemDir = new File(context.getFilesDir(), MMX_ITEM_SUBDIR + '.' + mClient.mName);
+    if (context.getDatabasePath(dbName).exists()) {
+      SQLiteDatabase db = new QueueDatabaseHelper(context, dbName).getReadableDatabase();
+      Cursor itemCursor = null;
+      try {
+        itemCursor = db.query(QueueDatabaseHelper.QUEUE_ITEM_TABLE, null, null, null, null, null, QueueDatabaseHelper.QUEUE_ITEM_TIME);
+        int idIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_ID);
+        int pathIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_PATH);
+        int typeIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_TYPE);
+        while (itemCursor.moveToNext()) {
+          String id = itemCursor.getString(idIdx);
+          File itemFile = new File(itemCursor.getString(pathIdx));
+          Item.Type type = Item.Type.valueOf(itemCursor.getString(typeIdx));
+          if (itemFile.exists()) {
+            mLog.put(id, type.ordinal(), readFile(itemFile));
+          } else {
+            Log.e(TAG, "migrateLegacyItems(): Item file NOT found for pending: " + id + ".  Skipping item.");
           }
-        } else {
-          Log.e(TAG, "processPendingItems(): Item file NOT found for pending: " + id + ".  Skipping item.");
         }
-        //remove the record from the table
-        int deleteCount = db.delete(QueueDatabaseHelper.QUEUE_ITEM_TABLE,
-                QueueDatabaseHelper.QUEUE_ITEM_ID + "=?", new String[] {id});
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-          Log.v(TAG, "processPendingItems(): Removed db entry for item id: " + id + ". count=" + deleteCount);
+      } catch (IOException e) {
+        Log.e(TAG, "migrateLegacyItems(): Unable to migrate the queued items.", e);
+        return;
+      } finally {
+        if (itemCursor != null) {
+          itemCursor.close();
         }
+        db.close();
       }
-    } finally {
-      if (itemCursor != null) {
-        itemCursor.close();
+      if (Log.isLoggable(TAG, Log.DEBUG)) {
+        Log.d(TAG, "migrateLegacyItems(): migrated " + mLog.size() + " items");
       }
-      if (db != null) {
-        db.close();
+      context.deleteDatabase(dbName);
+    }
+    File[] files = itemDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) {
+          Log.w(TAG, "migrateLegacyItems(): Unable to remove file " + file.getName());
+        }
+      }
+      itemDir.delete();
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      int offset = 0;
+      int n;
+      while (offset < data.length &&
+          (n = fis.read(data, offset, data.length - offset)) > 0) {
+        offset += n;
+      }
+      if (offset < data.length) {
+        throw new IOException("Unexpected end of file: " + file.getName());
+      }
+    } finally {
+      fis.close();
+    }
+    return data;
+  }
+
+  /**
+   * Processes the pending items on the queue in the queued order.  The items
+   * are sent by {@link QueueDrainer} in a background thread.  Unlike the
+   * messages sent while connected, the queued messages do not go through
+   * {@link MMXMessageManager#sendPayloadHelper} on the handler thread; they
+   * are sent directly by the common MessageManager, and an item is removed
+   * only after the server has accepted it and every item before it.
+   */
+  public void processPendingItems() {
+    final MMXConnection con = mClient.getMMXConnection();
+    synchronized (mDrainer) {
+      if (!mDrainer.isAlive()) {
+        mDrainer.start();
       }
     }
+    mDrainer.post(new Runnable() {
+      public void run() {
+        if (con.isConnected()) {
+          new QueueDrainer(con, mStore).drain();
+        }
+      }
+    });
   }
 
   /**
    * Removes all items from the queue
    */
   public synchronized void removeAllItems() {
-    String dbPath = mDatabaseHelper.getReadableDatabase().getPath();
-    SQLiteDatabase.deleteDatabase(new File(dbPath));
-    File[] files = mItemDir.listFiles();
-    for (File file : files) {
-      boolean success = file.delete();
-      if (!success) {
-        Log.w(TAG, "removeAllItems(): Unable to remove file " + file.getName());
-      }
+    try {
+      mLog.clear();
+    } catch (IOException e) {
+      Log.w(TAG, "removeAllItems(): Unable to remove items", e);
     }
   }
 
@@ -258,41 +312,15 @@ class PersistentQueue implements MMXQueue {
    * @return true is successful, false otherwise
    */
   public synchronized boolean removeItem(String id) {
-    SQLiteDatabase db = null;
-    Cursor cursor = null;
+    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+      Log.v(TAG, "removeItem(): attempting to cancel item: " + id);
+    }
     try {
-      if (Log.isLoggable(TAG, Log.VERBOSE)) {
-        Log.v(TAG, "removeItem(): attempting to cancel item: " + id);
-      }
-      db = mDatabaseHelper.getWritableDatabase();
-      String[] whereArgs = new String[] {id};
-      cursor = db.query(QueueDatabaseHelper.QUEUE_ITEM_TABLE, null,
-              QueueDatabaseHelper.QUEUE_ITEM_ID + "=?", whereArgs, null, null, null);
-      if (cursor.moveToNext()) {
-        //message can be canceled
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-          Log.v(TAG, "removeItem(): removing item from queue: " + id);
-        }
-        int wrapperPathIndex = cursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_PATH);
-        String wrapperPath = cursor.getString(wrapperPathIndex);
-        File wrapperFile = new File(wrapperPath);
-        boolean success = wrapperFile.delete();
-        int rowsDeleted = db.delete(QueueDatabaseHelper.QUEUE_ITEM_TABLE,
-                QueueDatabaseHelper.QUEUE_ITEM_ID + "=?", whereArgs);
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-          Log.v(TAG, "removeItem(): wrapper file delection success=" + success + ". Rows deleted=" + rowsDeleted);
-        }
-        return true;
-      }
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
-      if (db != null) {
-        db.close();
-      }
+      return mLog.remove(id);
+    } catch (IOException e) {
+      Log.w(TAG, "removeItem(): Unable to remove item: " + id, e);
+      return false;
     }
-    return false;
   }
 
   /**
@@ -301,30 +329,23 @@ class PersistentQueue implements MMXQueue {
    * @return the identifiers of the pending items
    */
   public synchronized Set<String> getPendingItemIds() {
-    HashSet<String> pendingItems = new HashSet<String>();
-    SQLiteDatabase db = null;
-    Cursor cursor = null;
-    try {
-      db = mDatabaseHelper.getReadableDatabase();
-      cursor = db.query(QueueDatabaseHelper.QUEUE_ITEM_TABLE, null, null, null, null, null, null);
-      int idIndex = cursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_ID);
-      while (cursor.moveToNext()) {
-        pendingItems.add(cursor.getString(idIndex));
-      }
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
-      if (db != null) {
-        db.close();
-      }
-    }
-    return pendingItems;
+    return new HashSet<String>(mLog.getIds());
   }
-  
+
+  /**
+   * Gets the number of pending items in the queue.  It does not hold the
+   * queue lock.
+   *
+   * @return the number of pending items
+   */
+  public int size() {
+    return mLog.size();
+  }
+
   /**
    * Get the pending items based on the type.  To avoid blowing up the Java
-   * heap, <code>discardPayload</code> should be set to true.
+   * heap, <code>discardPayload</code> should be set to true; the items are
+   * then read from the index without reading the records.
    * @param type
    * @param discardPayload true to exclude the payload.
    * @return
@@ -332,63 +353,48 @@ class PersistentQueue implements MMXQueue {
   public synchronized Map<String, MMXQueue.Item> getPendingItems(
                                 Item.Type type, boolean discardPayload) {
     Map<String, MMXQueue.Item> items = new HashMap<String, MMXQueue.Item>();
-    SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
-    Cursor itemCursor = null;
-    try {
-      itemCursor = db.query(QueueDatabaseHelper.QUEUE_ITEM_TABLE, null, "type=?", 
-          new String[] { type.toString() }, null, null, null);
-      int idIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_ID);
-      int pathIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_PATH);
-      int typeIdx = itemCursor.getColumnIndex(QueueDatabaseHelper.QUEUE_ITEM_TYPE);
-      while (itemCursor.moveToNext()) {
-        String id = itemCursor.getString(idIdx);
-        String itemPath = itemCursor.getString(pathIdx);
-        File itemFile = new File(itemPath);
-        if (!itemFile.exists()) {
-          continue;
+    for (String id : mLog.getIds(type.ordinal())) {
+      try {
+        MMXQueue.Item item;
+        if (discardPayload) {
+          item = getSummary(id);
+        } else {
+          byte[] data = mLog.get(id);
+          item = (data == null) ? null : decode(data);
         }
-        
-        Item.Type itemType = Item.Type.valueOf(itemCursor.getString(typeIdx));
-        ObjectInputStream ois = null;
-        try {
-          FileInputStream fis = new FileInputStream(itemFile);
-          ois = new ObjectInputStream(mClient.mEncryptor.decodeStream(fis));
-          switch (itemType) {
-          case MESSAGE:
-            Item.Message msg = (Item.Message) ois.readObject();
-            if (discardPayload) {
-              msg.setPayload(null);
-            }
-            items.put(msg.getId(), msg);
-            break;
-          case PUBSUB:
-            Item.PubSub pubitem = (Item.PubSub) ois.readObject();
-            if (discardPayload) {
-              pubitem.setPayload(null);
-            }
-            items.put(pubitem.getId(), pubitem);
-            break;
-          default:
-            Log.w(TAG, "getPendingItems(): Skipping unknown item type: "+itemType);
-          }
-        } catch (Throwable e) {
-          Log.e(TAG, "getPendingItems(): cannot read "+itemType+" item: "+id, e);
-        } finally {
-          if (ois != null) {
-            try {
-              ois.close();
-            } catch (IOException e) {
-              // Ignored.
-            }
-          }
+        if (item != null) {
+          items.put(item.getId(), item);
         }
+      } catch (Throwable e) {
+        Log.e(TAG, "getPendingItems(): cannot read "+type+" item: "+id, e);
       }
-    } finally {
-      if (itemCursor != null) {
-        itemCursor.close();
+    }
+    return items;
+  }
+
+  /**
+   * Get the pending items by their ID's without the payload.  The items are
+   * looked up in the index, so the cost is proportional to the number of
+   * ID's rather than the size of the queue.
+   * @param type The type of the items.
+   * @param ids The item ID's.
+   * @return A map of the ID's and the pending items; the ID's which are not
+   *         pending are excluded.
+   */
+  public synchronized Map<String, MMXQueue.Item> getPendingItems(
+                                Item.Type type, Collection<String> ids) {
+    Map<String, MMXQueue.Item> items = new HashMap<String, MMXQueue.Item>();
+    for (String id : ids) {
+      if (mLog.getType(id) != type.ordinal()) {
+        continue;
       }
-      if (db != null) {
-        db.close();
+      try {
+        MMXQueue.Item item = getSummary(id);
+        if (item != null) {
+          items.put(id, item);
+        }
+      } catch (Throwable e) {
+        Log.e(TAG, "getPendingItems(): cannot read "+type+" item: "+id, e);
       }
     }
     return items;
@@ -0,0 +1,210 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.client.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.magnet.mmx.protocol.MMXStatus;
+import com.magnet.mmx.util.LatencyHistogram;
+
+/**
+ * @hide
+ * The "MMX Ack Sender" thread.  The acks of the received reliable messages
+ * are collected for a short window or up to a batch size; the duplicated acks
+ * (e.g. from redelivered messages) are coalesced and the batch is sent
+ * back-to-back without waiting for each reply.  The number of unanswered acks
+ * is bounded by a window, so a slow server throttles this thread instead of
+ * the callers.  The latency is measured from posting an ack to its reply.
+ */
+class AckSender extends Thread {
+  private final static String TAG = "AckSender";
+  private final MMXConnection mCon;
+  private final MessageManager mMsgMgr;
+  private final int mBatchSize;
+  private final long mWindowNanos;
+  private final int mMaxInflight;
+  private final Semaphore mInflight;
+  private final LinkedBlockingQueue<Ack> mQueue = new LinkedBlockingQueue<Ack>();
+  private final LatencyHistogram mLatency = new LatencyHistogram();
+  private final AtomicInteger mSent = new AtomicInteger();
+  private final AtomicInteger mErrors = new AtomicInteger();
+  private volatile long mBatches;
+  private volatile boolean mDone;
+
+  private static class Ack {
+    private final String mSender;
+    private final String mRcvr;
+    private final String mMsgId;
+    private final long mPostTime = System.nanoTime();
+
+    Ack(String sender, String rcvr, String msgId) {
+      mSender = sender;
+      mRcvr = rcvr;
+      mMsgId = msgId;
+    }
+  }
+
+  private class AckCallback implements IQFuture.Callback<MMXStatus> {
+    private final Ack mAck;
+
+    AckCallback(Ack ack) {
+      mAck = ack;
+    }
+
+    @Override
+    public void onResult(MMXStatus result) {
+      mInflight.release();
+      mLatency.record(TimeUnit.NANOSECONDS.toMillis(
+          System.nanoTime() - mAck.mPostTime));
+      mCon.traceEnd(MMXTraceInterceptor.Event.ACK, mAck.mMsgId, true);
+    }
+
+    @Override
+    public void onFailure(MMXException cause) {
+      mInflight.release();
+      mErrors.incrementAndGet();
+      mCon.traceEnd(MMXTraceInterceptor.Event.ACK, mAck.mMsgId, false);
+      Log.w(TAG, "Unable to ack msg ID="+mAck.mMsgId, cause);
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param con The connection.
+   * @param msgMgr The message manager to send the acks.
+   * @param batchSize Max number of acks in a batch.
+   * @param window Max time in milliseconds to collect a batch.
+   * @param maxInflight Max number of unanswered acks.
+   */
+  AckSender(MMXConnection con, MessageManager msgMgr, int batchSize,
+             long window, int maxInflight) {
+    super("MMX Ack Sender");
+    setDaemon(true);
+    mCon = con;
+    mMsgMgr = msgMgr;
+    mBatchSize = Math.max(1, batchSize);
+    mWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, window));
+    mMaxInflight = Math.max(1, maxInflight);
+    mInflight = new Semaphore(mMaxInflight);
+  }
+
+  /**
+   * Queue an ack for a received message.
+   * @param sender The original message sender's full XID.
+   * @param rcvr The current user's full XID.
+   * @param msgId The message ID to be acknowledged.
+   */
+  void post(String sender, String rcvr, String msgId) {
+    mCon.traceBegin(MMXTraceInterceptor.Event.ACK, msgId);
+    mQueue.offer(new Ack(sender, rcvr, msgId));
+  }
+
+  /**
+   * Quit this thread.  Any pending acks will be lost.
+   */
+  void quit() {
+    mDone = true;
+    interrupt();
+  }
+
+  /**
+   * Get a snapshot of the ack statistics.
+   * @return The statistics.
+   */
+  AckStats getStats() {
+    return new AckStats(mSent.get(), mErrors.get(), mQueue.size(),
+        mMaxInflight - mInflight.availablePermits(), mBatches,
+        mLatency.getPercentile(50), mLatency.getPercentile(90),
+        mLatency.getPercentile(99), mLatency.getMax());
+  }
+
+  int getBacklog() {
+    return mQueue.size();
+  }
+
+  int getSentCount() {
+    return mSent.get();
+  }
+
+  int getErrorCount() {
+    return mErrors.get();
+  }
+
+  @Override
+  public void run() {
+    List<Ack> batch = new ArrayList<Ack>(mBatchSize);
+    while (!mDone) {
+      try {
+        collect(batch);
+        send(batch);
+      } catch (InterruptedException e) {
+        // Quit.
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  // Block for the first ack, then take what is queued and wait up to the
+  // window for more until the batch is full.
+  private void collect(List<Ack> batch) throws InterruptedException {
+    batch.add(mQueue.take());
+    mQueue.drainTo(batch, mBatchSize - batch.size());
+    long deadline = System.nanoTime() + mWindowNanos;
+    while (batch.size() < mBatchSize) {
+      long wait = deadline - System.nanoTime();
+      if (wait <= 0) {
+        break;
+      }
+      Ack ack = mQueue.poll(wait, TimeUnit.NANOSECONDS);
+      if (ack == null) {
+        break;
+      }
+      batch.add(ack);
+      mQueue.drainTo(batch, mBatchSize - batch.size());
+    }
+  }
+
+  private void send(List<Ack> batch) throws InterruptedException {
+    Map<String, Ack> acks = new LinkedHashMap<String, Ack>(batch.size() * 2);
+    for (Ack ack : batch) {
+      String key = ack.mMsgId+'#'+ack.mSender;
+      if (!acks.containsKey(key)) {
+        acks.put(key, ack);
+      }
+    }
+    mBatches++;
+    for (Ack ack : acks.values()) {
+      mInflight.acquire();
+      mSent.incrementAndGet();
+      try {
+        mMsgMgr.sendAckAsync(ack.mSender, ack.mRcvr, ack.mMsgId)
+          .addCallback(new AckCallback(ack), null);
+      } catch (Throwable e) {
+        mInflight.release();
+        mErrors.incrementAndGet();
+        mCon.traceEnd(MMXTraceInterceptor.Event.ACK, ack.mMsgId, false);
+        Log.e(TAG, "Unable to send ack for msg ID="+ack.mMsgId, e);
+      }
+    }
+  }
+}
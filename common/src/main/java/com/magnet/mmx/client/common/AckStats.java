@@ -0,0 +1,125 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.client.common;
+
+/**
+ * A snapshot of the acknowledgement statistics of the received reliable
+ * messages.  The latencies are in milliseconds from the message being
+ * handled to the server accepting its ack.
+ * @see MessageManager#getAckStats()
+ */
+public class AckStats {
+  private final int mSent;
+  private final int mErrors;
+  private final int mBacklog;
+  private final int mInflight;
+  private final long mBatches;
+  private final long mP50;
+  private final long mP90;
+  private final long mP99;
+  private final long mMax;
+
+  AckStats(int sent, int errors, int backlog, int inflight, long batches,
+            long p50, long p90, long p99, long max) {
+    mSent = sent;
+    mErrors = errors;
+    mBacklog = backlog;
+    mInflight = inflight;
+    mBatches = batches;
+    mP50 = p50;
+    mP90 = p90;
+    mP99 = p99;
+    mMax = max;
+  }
+
+  /**
+   * Get the number of acks sent.
+   * @return
+   */
+  public int getSent() {
+    return mSent;
+  }
+
+  /**
+   * Get the number of acks encountered error.
+   * @return
+   */
+  public int getErrors() {
+    return mErrors;
+  }
+
+  /**
+   * Get the number of acks waiting to be sent.
+   * @return
+   */
+  public int getBacklog() {
+    return mBacklog;
+  }
+
+  /**
+   * Get the number of acks sent but not answered by the server yet.
+   * @return
+   */
+  public int getInflight() {
+    return mInflight;
+  }
+
+  /**
+   * Get the number of batches sent.
+   * @return
+   */
+  public long getBatches() {
+    return mBatches;
+  }
+
+  /**
+   * Get the median ack latency.
+   * @return The latency in milliseconds.
+   */
+  public long getLatencyP50() {
+    return mP50;
+  }
+
+  /**
+   * Get the 90th percentile of the ack latency.
+   * @return The latency in milliseconds.
+   */
+  public long getLatencyP90() {
+    return mP90;
+  }
+
+  /**
+   * Get the 99th percentile of the ack latency.
+   * @return The latency in milliseconds.
+   */
+  public long getLatencyP99() {
+    return mP99;
+  }
+
+  /**
+   * Get the max ack latency.
+   * @return The latency in milliseconds.
+   */
+  public long getLatencyMax() {
+    return mMax;
+  }
+
+  @Override
+  public String toString() {
+    return "[ sent="+mSent+", errors="+mErrors+", backlog="+mBacklog+
+        ", inflight="+mInflight+", batches="+mBatches+", p50="+mP50+", p90="+
+        mP90+", p99="+mP99+", max="+mMax+" ]";
+  }
+}
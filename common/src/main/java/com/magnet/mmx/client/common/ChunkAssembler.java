@@ -0,0 +1,305 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+
+import com.magnet.mmx.util.DisposableBinFile;
+import com.magnet.mmx.util.DisposableFile;
+import com.magnet.mmx.util.IntervalSet;
+
+/**
+ * @hide
+ * Assemble the partial payloads (chunks) of a message into a file.  The file
+ * of each chunk ID stays open until all byte ranges are received; the chunks
+ * may arrive in any order or more than once.  A partial file that has not
+ * been updated within the TTL is deleted.  A completed file is renamed out of
+ * the partial file namespace, and the late or duplicate chunks of a recently
+ * completed chunk ID are dropped.
+ */
+class ChunkAssembler implements Closeable {
+  private final static String TAG = "ChunkAssembler";
+  private final static String CHUNK_FILE_PREFIX = "com.magnet.chunk-";
+  private final static String CHUNK_FILE_SUFFIX = ".dat";
+  private final static String PAYLOAD_FILE_PREFIX = "com.magnet.payload-";
+  private final static int MAX_COMPLETED = 256;
+  private final static int DEFAULT_CHUNK_TTL = 10 * 60 * 1000;
+  private final static int BUFFER_SIZE = 32 * 1024;
+  private final static int MAX_POOLED_BUFFERS = 4;
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+  private final static ConcurrentLinkedQueue<ByteBuffer> sBufferPool =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+  private final File mDir;
+  private final long mTTL;
+  private final ConcurrentHashMap<String, Assembly> mAssemblies =
+      new ConcurrentHashMap<String, Assembly>();
+  // The recently completed chunk ID's in completion order.
+  private final Set<String> mCompleted = Collections.newSetFromMap(
+      new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_COMPLETED;
+        }
+      });
+  private ScheduledFuture<?> mSweepTask;
+
+  private static class Assembly {
+    private final String mPath;
+    private final long mTotal;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final IntervalSet mReceived = new IntervalSet();
+    private volatile long mLastUpdate;
+
+    private Assembly(String path, long total) throws IOException {
+      mPath = path;
+      mTotal = total;
+      mFile = new RandomAccessFile(path, "rw");
+      mChannel = mFile.getChannel();
+      mLastUpdate = System.currentTimeMillis();
+    }
+
+    private void close() {
+      try {
+        mFile.close();
+      } catch (IOException e) {
+        // Ignored.
+      }
+    }
+  }
+
+  private final static Creator sCreator = new Creator() {
+    @Override
+    public Object newInstance(MMXConnection con) {
+      return new ChunkAssembler(con.getContext().getDataDir(),
+          con.getSettings().getInt(MMXSettings.PROP_CHUNK_TTL,
+              DEFAULT_CHUNK_TTL));
+    }
+  };
+
+  static ChunkAssembler getInstance(MMXConnection con) {
+    return (ChunkAssembler) con.getManager(TAG, sCreator);
+  }
+
+  /**
+   * Constructor.
+   * @param dir The directory of the partial and completed files.
+   * @param ttl The time-to-live in milliseconds of a partial file, or 0 to
+   *            disable the sweep.
+   */
+  ChunkAssembler(File dir, long ttl) {
+    mDir = dir;
+    mTTL = ttl;
+    if (mTTL > 0) {
+      mSweepTask = SharedTimer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          sweep();
+        }
+      }, Math.max(mTTL / 2, 1000L));
+    }
+  }
+
+  /**
+   * Write a chunk to the file of the chunk ID.
+   * @param cid The chunk ID.
+   * @param offset The byte offset of the chunk.
+   * @param total The total size in bytes of the payload.
+   * @param data The chunk data.
+   * @return The complete file, or null if more chunks are expected or the
+   *         chunk ID has been completed.
+   * @throws IOException
+   */
+  DisposableFile write(String cid, long offset, long total, CharSequence data)
+                        throws IOException {
+    Assembly assembly = mAssemblies.get(cid);
+    if (assembly == null) {
+      if (isCompleted(cid)) {
+        Log.d(TAG, "Drop a late chunk of completed payload cid="+cid);
+        return null;
+      }
+      Assembly newAssembly = new Assembly(new File(mDir,
+          CHUNK_FILE_PREFIX+cid+CHUNK_FILE_SUFFIX).getPath(), total);
+      assembly = mAssemblies.putIfAbsent(cid, newAssembly);
+      if (assembly == null) {
+        assembly = newAssembly;
+        // The chunk ID is marked completed before its assembly is removed,
+        // so check again in case it was completed in the meantime.
+        if (isCompleted(cid)) {
+          mAssemblies.remove(cid, assembly);
+          assembly.close();
+          new File(assembly.mPath).delete();
+          return null;
+        }
+      } else {
+        newAssembly.close();
+      }
+    }
+    synchronized(assembly) {
+      if (mAssemblies.get(cid) != assembly) {
+        // Completed or expired by another thread.
+        return null;
+      }
+      long end = writeChunk(assembly.mChannel, offset, data);
+      assembly.mReceived.add(offset, end);
+      assembly.mLastUpdate = System.currentTimeMillis();
+      if (!assembly.mReceived.covers(0, assembly.mTotal)) {
+        return null;
+      }
+      synchronized(mCompleted) {
+        mCompleted.add(cid);
+      }
+      assembly.close();
+      // Move the file out of the sweep namespace before the assembly is
+      // removed, so no late chunk can reopen the partial file.
+      File file = new File(mDir, PAYLOAD_FILE_PREFIX+cid+CHUNK_FILE_SUFFIX);
+      file.delete();
+      if (!new File(assembly.mPath).renameTo(file)) {
+        Log.w(TAG, "Unable to rename "+assembly.mPath+" to "+file);
+        file = new File(assembly.mPath);
+      }
+      mAssemblies.remove(cid);
+      return new DisposableBinFile(file.getPath(), true);
+    }
+  }
+
+  private boolean isCompleted(String cid) {
+    synchronized(mCompleted) {
+      return mCompleted.contains(cid);
+    }
+  }
+
+  // Encode the chunk directly into a pooled buffer and write it at the
+  // offset without seeking.  Return the end position.
+  private static long writeChunk(FileChannel channel, long offset,
+                                  CharSequence data) throws IOException {
+    CharsetEncoder encoder = UTF8.newEncoder();
+    CharBuffer in = CharBuffer.wrap(data);
+    ByteBuffer buf = acquireBuffer();
+    long pos = offset;
+    try {
+      boolean flushed = false;
+      while (!flushed) {
+        CoderResult result = encoder.encode(in, buf, true);
+        if (result.isError()) {
+          result.throwException();
+        }
+        if (result.isUnderflow()) {
+          flushed = encoder.flush(buf).isUnderflow();
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+          pos += channel.write(buf, pos);
+        }
+        buf.clear();
+      }
+      return pos;
+    } finally {
+      releaseBuffer(buf);
+    }
+  }
+
+  private static ByteBuffer acquireBuffer() {
+    ByteBuffer buf = sBufferPool.poll();
+    return (buf != null) ? buf : ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  private static void releaseBuffer(ByteBuffer buf) {
+    if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+      buf.clear();
+      sBufferPool.offer(buf);
+    }
+  }
+
+  // Delete the expired partial files, including the ones abandoned by a
+  // previous process.
+  private void sweep() {
+    final long expiry = System.currentTimeMillis() - mTTL;
+    final List<String> active = new ArrayList<String>();
+    Iterator<Map.Entry<String, Assembly>> it = mAssemblies.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Assembly> entry = it.next();
+      Assembly assembly = entry.getValue();
+      synchronized(assembly) {
+        if (assembly.mLastUpdate >= expiry) {
+          active.add(new File(assembly.mPath).getName());
+          continue;
+        }
+        it.remove();
+        assembly.close();
+      }
+      Log.w(TAG, "Discard incomplete payload cid="+entry.getKey()+", received="+
+          assembly.mReceived.getLength()+"/"+assembly.mTotal);
+      new File(assembly.mPath).delete();
+    }
+
+    File[] files = (mDir == null) ? null : mDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(CHUNK_FILE_PREFIX) &&
+            name.endsWith(CHUNK_FILE_SUFFIX) && !active.contains(name);
+      }
+    });
+    if (files != null) {
+      for (File file : files) {
+        if (file.lastModified() < expiry) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * @hide
+   * Discard all partial payloads.
+   */
+  @Override
+  public void close() throws IOException {
+    if (mSweepTask != null) {
+      mSweepTask.cancel(false);
+      mSweepTask = null;
+    }
+    Iterator<Assembly> it = mAssemblies.values().iterator();
+    while (it.hasNext()) {
+      Assembly assembly = it.next();
+      synchronized(assembly) {
+        it.remove();
+        assembly.close();
+      }
+      new File(assembly.mPath).delete();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.client.common;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * @hide
+ * A socket factory counting the bytes read from and written to the sockets.
+ * The bytes are counted below TLS and compression, so they are the actual
+ * bytes on the wire.
+ */
+class CountingSocketFactory extends SocketFactory {
+  private final MMXMetrics.Counter mBytesIn;
+  private final MMXMetrics.Counter mBytesOut;
+
+  private class CountingSocket extends Socket {
+    private InputStream mIn;
+    private OutputStream mOut;
+
+    CountingSocket() {
+      super();
+    }
+
+    CountingSocket(String host, int port) throws IOException {
+      super(host, port);
+    }
+
+    CountingSocket(InetAddress host, int port) throws IOException {
+      super(host, port);
+    }
+
+    CountingSocket(String host, int port, InetAddress localHost,
+                    int localPort) throws IOException {
+      super(host, port, localHost, localPort);
+    }
+
+    CountingSocket(InetAddress address, int port, InetAddress localAddress,
+                    int localPort) throws IOException {
+      super(address, port, localAddress, localPort);
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+      if (mIn == null) {
+        mIn = new CountingInputStream(super.getInputStream());
+      }
+      return mIn;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+      if (mOut == null) {
+        mOut = new CountingOutputStream(super.getOutputStream());
+      }
+      return mOut;
+    }
+  }
+
+  private class CountingInputStream extends FilterInputStream {
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        mBytesIn.inc();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0) {
+        mBytesIn.add(n);
+      }
+      return n;
+    }
+  }
+
+  private class CountingOutputStream extends FilterOutputStream {
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      mBytesOut.inc();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      mBytesOut.add(len);
+    }
+  }
+
+  CountingSocketFactory(MMXMetrics metrics) {
+    mBytesIn = metrics.getCounter(MMXMetrics.BYTES_IN);
+    mBytesOut = metrics.getCounter(MMXMetrics.BYTES_OUT);
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    return new CountingSocket();
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return new CountingSocket(host, port);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return new CountingSocket(host, port);
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost,
+                              int localPort) throws IOException {
+    return new CountingSocket(host, port, localHost, localPort);
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port,
+      InetAddress localAddress, int localPort) throws IOException {
+    return new CountingSocket(address, port, localAddress, localPort);
+  }
+}
@@ -185,11 +185,21 @@ public class DeviceManager {
    * @throws MMXException
    */
   public DevList getDevices(String userId) throws MMXException {
+    return getDevicesAsync(userId).getResult();
+  }
+
+  /**
+   * Get all registered devices belonging to a user without blocking.  If
+   * <code>userId</code> is null, the current user will be assumed.
+   * @param userId The user ID (without appID)
+   * @return A future of the list of device ID's.
+   * @throws MMXException
+   */
+  public IQFuture<DevList> getDevicesAsync(String userId) throws MMXException {
     DevRegIQHandler<String, DevList> iqHandler =
         new DevRegIQHandler<String, DevList>();
-    iqHandler.sendGetIQ(mCon, Constants.DeviceCommand.QUERY.name(), userId,
-        DevList.class, iqHandler);
-    return iqHandler.getResult();
+    return iqHandler.sendGetIQAsync(mCon, null,
+        Constants.DeviceCommand.QUERY.name(), userId, DevList.class, 0);
   }
 
 //  /**
@@ -0,0 +1,213 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import com.magnet.mmx.util.Base64;
+import com.magnet.mmx.util.DisposableFile;
+import com.magnet.mmx.util.Utils;
+
+/**
+ * @hide
+ * The lazy body of a file payload.  The file content is base64 encoded (for
+ * a binary file) or XML escaped (for a text file) one block at a time as the
+ * characters are accessed, so only one encoded block is held in memory.  The
+ * characters should be accessed sequentially; a backward access re-reads the
+ * file from the beginning.  Each serialization of the stanza reads the file
+ * again, so the file is finished only when the stanza is disposed; see
+ * {@link MMXPayloadMsgHandler.MMXPacketExtension#dispose()}.
+ */
+class FilePayloadBody implements CharSequence {
+  private final static int BLOCK_SIZE = 3 * 4096;   // must be multiple of 3
+  private final DisposableFile mFile;
+  private final boolean mBinary;
+  private final boolean mXmlEsc;
+  private int mLength = -1;
+  // The current block of the encoded characters.
+  private InputStream mInput;
+  private Reader mReader;
+  private byte[] mBytes;
+  private char[] mChars;
+  private String mBlock;
+  private int mBlockStart;
+
+  FilePayloadBody(DisposableFile file, boolean xmlEsc) {
+    mFile = file;
+    mBinary = file.isBinary();
+    mXmlEsc = xmlEsc;
+  }
+
+  @Override
+  public synchronized int length() {
+    if (mLength < 0) {
+      if (mBinary) {
+        mLength = (int) ((mFile.length() + 2) / 3 * 4);
+      } else {
+        mLength = countText();
+      }
+    }
+    return mLength;
+  }
+
+  @Override
+  public synchronized char charAt(int index) {
+    try {
+      if (mBlock == null || index < mBlockStart) {
+        rewind();
+      }
+      while (index >= mBlockStart + mBlock.length()) {
+        if (!nextBlock()) {
+          throw new IndexOutOfBoundsException("index="+index+", length="+
+              mBlockStart);
+        }
+      }
+      char c = mBlock.charAt(index - mBlockStart);
+      if (index == length() - 1) {
+        closeInput();
+      }
+      return c;
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read "+mFile, e);
+    }
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      sb.append(charAt(i));
+    }
+    return sb;
+  }
+
+  /**
+   * Write all encoded characters to a writer or a builder block by block.
+   * @param out A Writer, a StringBuilder or any Appendable.
+   * @throws IOException
+   */
+  synchronized void writeTo(Appendable out) throws IOException {
+    try {
+      rewind();
+      while (nextBlock()) {
+        out.append(mBlock);
+      }
+    } finally {
+      closeInput();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(length());
+    try {
+      writeTo(sb);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read "+mFile, e);
+    }
+    return sb.toString();
+  }
+
+  // Count the escaped characters of a text file without keeping them.
+  private int countText() {
+    Reader reader = null;
+    try {
+      reader = new InputStreamReader(new FileInputStream(mFile), "UTF-8");
+      char[] chars = new char[BLOCK_SIZE];
+      int length = 0;
+      int n;
+      while ((n = reader.read(chars, 0, chars.length)) > 0) {
+        length += mXmlEsc ? Utils.escapeForXML(new String(chars, 0, n))
+            .length() : n;
+      }
+      return length;
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read "+mFile, e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          // Ignored.
+        }
+      }
+    }
+  }
+
+  private void rewind() throws IOException {
+    closeInput();
+    mInput = new FileInputStream(mFile);
+    if (mBinary) {
+      if (mBytes == null) {
+        mBytes = new byte[BLOCK_SIZE];
+      }
+    } else {
+      mReader = new InputStreamReader(mInput, "UTF-8");
+      if (mChars == null) {
+        mChars = new char[BLOCK_SIZE];
+      }
+    }
+    mBlock = "";
+    mBlockStart = 0;
+  }
+
+  // Advance to the next block.  Return false if no more data.
+  private boolean nextBlock() throws IOException {
+    mBlockStart += mBlock.length();
+    mBlock = "";
+    if (mInput == null) {
+      return false;
+    }
+    if (mBinary) {
+      // Fill the block unless the end of file is reached; a partial block
+      // would otherwise be padded in the middle of the base64 text.
+      int n = 0;
+      int len;
+      while (n < mBytes.length &&
+              (len = mInput.read(mBytes, n, mBytes.length - n)) > 0) {
+        n += len;
+      }
+      if (n > 0) {
+        mBlock = Base64.encodeBytes(mBytes, 0, n);
+      }
+    } else {
+      int n = mReader.read(mChars, 0, mChars.length);
+      if (n > 0) {
+        String text = new String(mChars, 0, n);
+        mBlock = mXmlEsc ? Utils.escapeForXML(text).toString() : text;
+      }
+    }
+    return mBlock.length() > 0;
+  }
+
+  private void closeInput() {
+    try {
+      if (mReader != null) {
+        mReader.close();
+      } else if (mInput != null) {
+        mInput.close();
+      }
+    } catch (IOException e) {
+      // Ignored.
+    }
+    mReader = null;
+    mInput = null;
+  }
+}
@@ -0,0 +1,370 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.magnet.mmx.protocol.Headers;
+import com.magnet.mmx.protocol.MmxHeaders;
+import com.magnet.mmx.util.GsonData;
+
+/**
+ * @hide
+ * Decode the JSON headers of the &lt;mmxmeta&gt; and &lt;meta&gt; elements
+ * directly from the character buffer of the pull parser, without creating
+ * the JSON text as a String or a JSON tree.  The header names are interned
+ * in a small shared cache.  The values are decoded as Gson does: a JSON
+ * number becomes a Double in MmxHeaders and its text in Headers.  An
+ * unexpected JSON is decoded by Gson instead.
+ */
+final class HeaderDecoder {
+  private final static int KEY_CACHE_SIZE = 256;    // must be power of 2
+  private final static int MAX_CACHED_KEY_LEN = 32;
+  private final static String[] sKeyCache = new String[KEY_CACHE_SIZE];
+
+  private final char[] mBuf;
+  private final int mEnd;
+  private int mPos;
+
+  private HeaderDecoder(char[] buf, int start, int length) {
+    mBuf = buf;
+    mPos = start;
+    mEnd = start + length;
+  }
+
+  /**
+   * Decode the text of the current start tag as MmxHeaders.  Upon return,
+   * the parser is positioned at the end tag just like
+   * {@link XmlPullParser#nextText()}.
+   * @param parser A parser positioned at the start tag.
+   * @return The headers, or null if the element is empty.
+   */
+  static MmxHeaders decodeMmxMeta(XmlPullParser parser)
+      throws XmlPullParserException, IOException {
+    return decode(parser, MmxHeaders.class);
+  }
+
+  /**
+   * Decode the text of the current start tag as Headers.  Upon return, the
+   * parser is positioned at the end tag just like
+   * {@link XmlPullParser#nextText()}.
+   * @param parser A parser positioned at the start tag.
+   * @return The headers, or null if the element is empty.
+   */
+  static Headers decodeMeta(XmlPullParser parser)
+      throws XmlPullParserException, IOException {
+    return decode(parser, Headers.class);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends Map<String, ?>> T decode(XmlPullParser parser,
+      Class<T> clz) throws XmlPullParserException, IOException {
+    int eventType = parser.next();
+    if (eventType == XmlPullParser.END_TAG) {
+      return null;
+    }
+    if (eventType != XmlPullParser.TEXT) {
+      throw new XmlPullParserException("TEXT expected", parser, null);
+    }
+    int[] range = new int[2];
+    char[] buf = parser.getTextCharacters(range);
+    T headers;
+    try {
+      HeaderDecoder decoder = new HeaderDecoder(buf, range[0], range[1]);
+      if (clz == MmxHeaders.class) {
+        MmxHeaders mmxMeta = new MmxHeaders();
+        headers = decoder.readHeaders(mmxMeta, false) ? (T) mmxMeta : null;
+      } else {
+        Headers meta = new Headers();
+        headers = decoder.readHeaders(meta, true) ? (T) meta : null;
+      }
+    } catch (IllegalArgumentException e) {
+      headers = GsonData.getGson().fromJson(
+          new String(buf, range[0], range[1]), clz);
+    }
+    if (parser.next() != XmlPullParser.END_TAG) {
+      throw new XmlPullParserException("END_TAG expected", parser, null);
+    }
+    return headers;
+  }
+
+  // Read a JSON object into the map.  Return false if the text is blank.
+  @SuppressWarnings("unchecked")
+  private boolean readHeaders(Map<String, ?> map, boolean asText) {
+    if (!skipSpaces()) {
+      return false;
+    }
+    readObject((Map<String, Object>) map, asText);
+    if (skipSpaces()) {
+      throw error("end of JSON expected");
+    }
+    return true;
+  }
+
+  private void readObject(Map<String, Object> map, boolean asText) {
+    expect('{');
+    if (peek() == '}') {
+      ++mPos;
+      return;
+    }
+    do {
+      if (peek() != '"') {
+        throw error("name expected");
+      }
+      String name = readString(true);
+      expect(':');
+      Object value = asText ? readText() : readValue();
+      map.put(name, value);
+    } while (nextMember('}'));
+  }
+
+  private List<Object> readArray() {
+    List<Object> list = new ArrayList<Object>();
+    expect('[');
+    if (peek() == ']') {
+      ++mPos;
+      return list;
+    }
+    do {
+      list.add(readValue());
+    } while (nextMember(']'));
+    return list;
+  }
+
+  // Read a value as Gson does for Object.
+  private Object readValue() {
+    char c = peek();
+    switch (c) {
+    case '"':
+      return readString(false);
+    case '{':
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      readObject(map, false);
+      return map;
+    case '[':
+      return readArray();
+    case 't':
+      readLiteral("true");
+      return Boolean.TRUE;
+    case 'f':
+      readLiteral("false");
+      return Boolean.FALSE;
+    case 'n':
+      readLiteral("null");
+      return null;
+    default:
+      int start = mPos;
+      skipNumber();
+      try {
+        return Double.valueOf(new String(mBuf, start, mPos - start));
+      } catch (NumberFormatException e) {
+        throw error("invalid number");
+      }
+    }
+  }
+
+  // Read a primitive value as Gson does for String.
+  private String readText() {
+    char c = peek();
+    switch (c) {
+    case '"':
+      return readString(false);
+    case 't':
+      readLiteral("true");
+      return "true";
+    case 'f':
+      readLiteral("false");
+      return "false";
+    case 'n':
+      readLiteral("null");
+      return null;
+    case '{':
+    case '[':
+      throw error("string expected");
+    default:
+      int start = mPos;
+      skipNumber();
+      return new String(mBuf, start, mPos - start);
+    }
+  }
+
+  private String readString(boolean isName) {
+    ++mPos;   // skip the opening quote
+    int start = mPos;
+    while (mPos < mEnd) {
+      char c = mBuf[mPos];
+      if (c == '"') {
+        int len = mPos - start;
+        ++mPos;
+        return isName ? intern(start, len) : new String(mBuf, start, len);
+      }
+      if (c == '\\') {
+        return readEscapedString(start);
+      }
+      ++mPos;
+    }
+    throw error("unterminated string");
+  }
+
+  private String readEscapedString(int start) {
+    StringBuilder sb = new StringBuilder(mPos - start + 16);
+    sb.append(mBuf, start, mPos - start);
+    while (mPos < mEnd) {
+      char c = mBuf[mPos++];
+      if (c == '"') {
+        return sb.toString();
+      }
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      if (mPos >= mEnd) {
+        break;
+      }
+      c = mBuf[mPos++];
+      switch (c) {
+      case 'b': sb.append('\b'); break;
+      case 'f': sb.append('\f'); break;
+      case 'n': sb.append('\n'); break;
+      case 'r': sb.append('\r'); break;
+      case 't': sb.append('\t'); break;
+      case 'u':
+        if (mPos + 4 > mEnd) {
+          throw error("invalid escape");
+        }
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(mBuf[mPos++], 16);
+          if (digit < 0) {
+            throw error("invalid escape");
+          }
+          code = (code << 4) | digit;
+        }
+        sb.append((char) code);
+        break;
+      default:
+        sb.append(c);
+        break;
+      }
+    }
+    throw error("unterminated string");
+  }
+
+  // Look up the name in the cache without creating a String.
+  private String intern(int start, int len) {
+    if (len > MAX_CACHED_KEY_LEN) {
+      return new String(mBuf, start, len);
+    }
+    int hash = 0;
+    for (int i = start, end = start + len; i < end; i++) {
+      hash = 31 * hash + mBuf[i];
+    }
+    int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+    String key = sKeyCache[slot];
+    if (key != null && key.length() == len && key.hashCode() == hash) {
+      int i = 0;
+      while (i < len && key.charAt(i) == mBuf[start + i]) {
+        ++i;
+      }
+      if (i == len) {
+        return key;
+      }
+    }
+    key = new String(mBuf, start, len);
+    sKeyCache[slot] = key;
+    return key;
+  }
+
+  private void readLiteral(String literal) {
+    int len = literal.length();
+    if (mPos + len > mEnd) {
+      throw error("invalid literal");
+    }
+    for (int i = 0; i < len; i++) {
+      if (mBuf[mPos + i] != literal.charAt(i)) {
+        throw error("invalid literal");
+      }
+    }
+    mPos += len;
+  }
+
+  private void skipNumber() {
+    int start = mPos;
+    while (mPos < mEnd) {
+      char c = mBuf[mPos];
+      if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' ||
+          c == 'e' || c == 'E') {
+        ++mPos;
+      } else {
+        break;
+      }
+    }
+    if (mPos == start) {
+      throw error("value expected");
+    }
+  }
+
+  // Consume a ',' or the closing char.  Return true if more members follow.
+  private boolean nextMember(char close) {
+    char c = peek();
+    ++mPos;
+    if (c == ',') {
+      return true;
+    }
+    if (c == close) {
+      return false;
+    }
+    throw error("',' or '"+close+"' expected");
+  }
+
+  private void expect(char c) {
+    if (peek() != c) {
+      throw error("'"+c+"' expected");
+    }
+    ++mPos;
+  }
+
+  // Return the next non-space char without consuming it.
+  private char peek() {
+    if (!skipSpaces()) {
+      throw error("unexpected end of JSON");
+    }
+    return mBuf[mPos];
+  }
+
+  // Return false if no more non-space chars.
+  private boolean skipSpaces() {
+    while (mPos < mEnd) {
+      char c = mBuf[mPos];
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return true;
+      }
+      ++mPos;
+    }
+    return false;
+  }
+
+  private IllegalArgumentException error(String msg) {
+    return new IllegalArgumentException(msg+" at "+mPos);
+  }
+}
@@ -0,0 +1,323 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.magnet.mmx.protocol.Constants;
+import com.magnet.mmx.protocol.MMXStatus;
+
+/**
+ * The pending result of an asynchronous IQ request.  The result can be
+ * retrieved by the blocking {@link #get()} or {@link #getResult()}, or by
+ * the callbacks registered with {@link #addCallback(Callback, Executor)}.
+ * The request is failed with a timed out {@link MMXException} if there is no
+ * response within the timeout; the timeout is enforced by the IQ router of
+ * the connection.
+ *
+ * @param <Result>
+ */
+public class IQFuture<Result> implements Future<Result>, IQListener<Result> {
+  /**
+   * The callback for the completion of the request.
+   *
+   * @param <Result>
+   */
+  public interface Callback<Result> {
+    /**
+     * The request is completed successfully.
+     * @param result
+     */
+    public void onResult(Result result);
+    /**
+     * The request is failed, timed out or cancelled.
+     * @param cause
+     */
+    public void onFailure(MMXException cause);
+  }
+
+  private final static String TAG = "IQFuture";
+  private final static int PENDING = 0;
+  private final static int DONE = 1;
+  private final static int FAILED = 2;
+  private final static int CANCELLED = 3;
+  private final String mCommand;
+  private final long mTimeout;
+  private int mState = PENDING;
+  private Result mResult;
+  private MMXException mException;
+  private List<Entry<Result>> mCallbacks;
+  private Runnable mCanceller;
+
+  private static class Entry<Result> {
+    private final Callback<Result> mCallback;
+    private final Executor mExecutor;
+
+    Entry(Callback<Result> callback, Executor executor) {
+      mCallback = callback;
+      mExecutor = executor;
+    }
+  }
+
+  /**
+   * @hide
+   * Constructor.
+   * @param cmd The command of the request.
+   * @param timeout The timeout in milliseconds.
+   */
+  public IQFuture(String cmd, long timeout) {
+    mCommand = cmd;
+    mTimeout = timeout;
+  }
+
+  /**
+   * Get the command of the request.
+   * @return
+   */
+  public String getCommand() {
+    return mCommand;
+  }
+
+  /**
+   * Get the timeout of the request.
+   * @return The timeout in milliseconds.
+   */
+  public long getTimeout() {
+    return mTimeout;
+  }
+
+  // The hook to clean up the pending request when it is cancelled or timed out.
+  synchronized void setCanceller(Runnable canceller) {
+    mCanceller = canceller;
+  }
+
+  /**
+   * Add a callback to be invoked when the request is completed.  If the
+   * request is already completed, the callback will be invoked immediately.
+   * @param callback The callback.
+   * @param executor The executor to run the callback, or null to run it in
+   *                  the completing thread which may be the Smack reader
+   *                  thread; such callback must not block.
+   * @return This object.
+   */
+  public IQFuture<Result> addCallback(Callback<Result> callback,
+                                        Executor executor) {
+    synchronized(this) {
+      if (mState == PENDING) {
+        if (mCallbacks == null) {
+          mCallbacks = new ArrayList<Entry<Result>>(1);
+        }
+        mCallbacks.add(new Entry<Result>(callback, executor));
+        return this;
+      }
+    }
+    invoke(callback, executor);
+    return this;
+  }
+
+  @Override
+  public void onReceived(Result result) {
+    complete(DONE, result, null, false);
+  }
+
+  // IQ error with MMX payload.
+  @Override
+  public void onError(String cmd, MMXStatus status) {
+    complete(FAILED, null, new MMXException(status.getMessage(),
+        status.getCode(), null), false);
+  }
+
+  // IQ error with standard payload.
+  @Override
+  public void onError(String xml) {
+    complete(FAILED, null, new MMXException(xml, Constants.STATUS_CODE_500),
+        false);
+  }
+
+  /**
+   * Fail the request without sending it.
+   * @param cause
+   * @return true if the request is failed, false if it is already completed.
+   */
+  boolean fail(MMXException cause) {
+    return complete(FAILED, null, cause, false);
+  }
+
+  /**
+   * Fail the request because there is no response within the timeout.
+   * @return true if the request is timed out, false if it is already
+   *         completed.
+   */
+  boolean timeout() {
+    return complete(FAILED, null, new MMXException("Response timed out",
+        Constants.STATUS_CODE_500), true);
+  }
+
+  /**
+   * Cancel the request.  Any late response will be ignored.
+   * @param mayInterruptIfRunning Not used.
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return complete(CANCELLED, null, new MMXException("Request is cancelled",
+        new CancellationException()), true);
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return mState == CANCELLED;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return mState != PENDING;
+  }
+
+  /**
+   * Wait for the result until the request is completed.
+   */
+  @Override
+  public Result get() throws InterruptedException, ExecutionException {
+    synchronized(this) {
+      while (mState == PENDING) {
+        this.wait();
+      }
+    }
+    return report();
+  }
+
+  /**
+   * Wait for the result up to the specified time.
+   */
+  @Override
+  public Result get(long timeout, TimeUnit unit) throws InterruptedException,
+                                ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    synchronized(this) {
+      long wait;
+      while (mState == PENDING) {
+        if ((wait = deadline - System.nanoTime()) <= 0) {
+          throw new TimeoutException();
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, wait);
+      }
+    }
+    return report();
+  }
+
+  /**
+   * Wait for the result up to the request timeout.  This is the synchronous
+   * counterpart of the callbacks.  If any errors from the server or the
+   * request is timed out, the MMXException will be thrown.
+   * @return The result.
+   * @throws MMXException
+   */
+  public Result getResult() throws MMXException {
+    try {
+      return get(mTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      timeout();
+    } catch (TimeoutException e) {
+      timeout();
+    } catch (CancellationException e) {
+      // Fall through.
+    } catch (ExecutionException e) {
+      // Fall through.
+    }
+    synchronized(this) {
+      if (mException != null) {
+        throw mException;
+      }
+      return mResult;
+    }
+  }
+
+  private synchronized Result report() throws ExecutionException {
+    if (mState == CANCELLED) {
+      throw new CancellationException();
+    }
+    if (mState == FAILED) {
+      throw new ExecutionException(mException);
+    }
+    return mResult;
+  }
+
+  // Complete the request once; the canceller is run to clean up the pending
+  // request if it is abandoned.
+  private boolean complete(int state, Result result, MMXException exception,
+                            boolean abandoned) {
+    List<Entry<Result>> callbacks;
+    Runnable canceller;
+    synchronized(this) {
+      if (mState != PENDING) {
+        return false;
+      }
+      mState = state;
+      mResult = result;
+      mException = exception;
+      callbacks = mCallbacks;
+      canceller = abandoned ? mCanceller : null;
+      mCallbacks = null;
+      mCanceller = null;
+      this.notifyAll();
+    }
+    if (canceller != null) {
+      canceller.run();
+    }
+    if (callbacks != null) {
+      for (Entry<Result> entry : callbacks) {
+        invoke(entry.mCallback, entry.mExecutor);
+      }
+    }
+    return true;
+  }
+
+  private void invoke(final Callback<Result> callback, Executor executor) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        Result result;
+        MMXException exception;
+        synchronized(IQFuture.this) {
+          result = mResult;
+          exception = mException;
+        }
+        try {
+          if (exception == null) {
+            callback.onResult(result);
+          } else {
+            callback.onFailure(exception);
+          }
+        } catch (Throwable e) {
+          Log.e(TAG, "Caught exception in IQ callback for "+mCommand, e);
+        }
+      }
+    };
+    if (executor == null) {
+      task.run();
+    } else {
+      executor.execute(task);
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.magnet.mmx.util.XIDUtil;
+
+/**
+ * @hide
+ * The router of the IQ results and errors for the outstanding IQ requests.
+ * It registers one packet listener to the XMPP connection and routes each
+ * IQ reply to its request by the packet ID.  The requests without replies
+ * are timed out by a periodic sweep.
+ */
+class IQRouter implements Closeable {
+  private final static String TAG = "IQRouter";
+  private final static long SWEEP_INTERVAL = 1000L;
+  private final static Creator sCreator = new Creator() {
+    @Override
+    public Object newInstance(MMXConnection con) {
+      return new IQRouter();
+    }
+  };
+
+  /**
+   * The listener for the reply of an IQ request.
+   */
+  interface ReplyListener {
+    /**
+     * The IQ result or error is received.  It is called in the Smack reader
+     * thread.
+     * @param reply
+     */
+    public void onReply(IQ reply);
+    /**
+     * No reply within the timeout, or the connection is closed.
+     * @param reason
+     */
+    public void onTimeout(String reason);
+  }
+
+  private static class Pending {
+    private final IQ mRequest;
+    private final long mDeadline;
+    private final ReplyListener mListener;
+
+    Pending(IQ request, long timeout, ReplyListener listener) {
+      mRequest = request;
+      mDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+      mListener = listener;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Pending> mPending =
+      new ConcurrentHashMap<String, Pending>();
+  private XMPPConnection mXMPPCon;
+  private ScheduledFuture<?> mSweep;
+
+  private final PacketFilter mReplyFilter = new PacketFilter() {
+    @Override
+    public boolean accept(Packet packet) {
+      if (!(packet instanceof IQ)) {
+        return false;
+      }
+      IQ.Type type = ((IQ) packet).getType();
+      return (type == IQ.Type.RESULT || type == IQ.Type.ERROR) &&
+          packet.getPacketID() != null &&
+          mPending.containsKey(packet.getPacketID());
+    }
+  };
+
+  private final PacketListener mReplyListener = new PacketListener() {
+    @Override
+    public void processPacket(Packet packet) throws NotConnectedException {
+      String id = packet.getPacketID();
+      Pending pending = mPending.get(id);
+      if (pending == null) {
+        return;
+      }
+      if (!isValidReply(pending.mRequest, packet)) {
+        Log.w(TAG, "Ignoring IQ reply ID="+id+" from unexpected "+packet.getFrom());
+        return;
+      }
+      if (mPending.remove(id, pending)) {
+        pending.mListener.onReply((IQ) packet);
+      }
+    }
+  };
+
+  /**
+   * Get the IQ router of the connection.
+   * @param con
+   * @return
+   */
+  static IQRouter getInstance(MMXConnection con) {
+    return (IQRouter) con.getManager(TAG, sCreator);
+  }
+
+  private IQRouter() {
+  }
+
+  /**
+   * Send an IQ request and route its reply to the listener.  The IQ must have
+   * a unique packet ID.
+   * @param xmppCon The XMPP connection to send the IQ.
+   * @param iq The IQ request.
+   * @param timeout The timeout in milliseconds.
+   * @param listener The listener for the reply.
+   * @throws NotConnectedException
+   */
+  void send(XMPPConnection xmppCon, IQ iq, long timeout,
+            ReplyListener listener) throws NotConnectedException {
+    bind(xmppCon);
+    String id = iq.getPacketID();
+    mPending.put(id, new Pending(iq, timeout, listener));
+    try {
+      xmppCon.sendPacket(iq);
+    } catch (NotConnectedException e) {
+      mPending.remove(id);
+      throw e;
+    } catch (RuntimeException e) {
+      mPending.remove(id);
+      throw e;
+    }
+  }
+
+  /**
+   * Abandon an outstanding request; its reply will be ignored.
+   * @param packetId
+   * @return true if the request was outstanding.
+   */
+  boolean remove(String packetId) {
+    return mPending.remove(packetId) != null;
+  }
+
+  /**
+   * Get the number of outstanding requests.
+   * @return
+   */
+  int getPendingCount() {
+    return mPending.size();
+  }
+
+  // Register the packet listener to the XMPP connection, or move it to a new
+  // XMPP connection.
+  private synchronized void bind(XMPPConnection xmppCon) {
+    if (mXMPPCon == xmppCon) {
+      return;
+    }
+    if (mXMPPCon != null) {
+      mXMPPCon.removePacketListener(mReplyListener);
+    }
+    mXMPPCon = xmppCon;
+    xmppCon.addPacketListener(mReplyListener, mReplyFilter);
+    if (mSweep == null) {
+      mSweep = SharedTimer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          sweep();
+        }
+      }, SWEEP_INTERVAL);
+    }
+  }
+
+  // Time out the requests past their deadlines.
+  private void sweep() {
+    long now = System.nanoTime();
+    for (Map.Entry<String, Pending> entry : mPending.entrySet()) {
+      Pending pending = entry.getValue();
+      if (now - pending.mDeadline >= 0 &&
+          mPending.remove(entry.getKey(), pending)) {
+        try {
+          pending.mListener.onTimeout("Response timed out");
+        } catch (Throwable e) {
+          Log.e(TAG, "Caught exception in IQ timeout for ID="+entry.getKey(), e);
+        }
+      }
+    }
+  }
+
+  // The reply must come from the server, or the recipient of the request.
+  private boolean isValidReply(IQ request, Packet reply) {
+    String from = reply.getFrom();
+    if (from == null) {
+      return true;
+    }
+    String to = request.getTo();
+    if (to != null) {
+      return from.equalsIgnoreCase(to);
+    }
+    XMPPConnection xmppCon = mXMPPCon;
+    if (xmppCon == null) {
+      return false;
+    }
+    String user = xmppCon.getUser();
+    return from.equalsIgnoreCase(xmppCon.getServiceName()) ||
+        (user != null && (from.equalsIgnoreCase(user) ||
+            from.equalsIgnoreCase(XIDUtil.getBaredXID(user))));
+  }
+
+  /**
+   * Unregister the packet listener and fail all outstanding requests.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized(this) {
+      if (mXMPPCon != null) {
+        mXMPPCon.removePacketListener(mReplyListener);
+        mXMPPCon = null;
+      }
+      if (mSweep != null) {
+        mSweep.cancel(false);
+        mSweep = null;
+      }
+    }
+    for (String id : mPending.keySet()) {
+      Pending pending = mPending.remove(id);
+      if (pending != null) {
+        pending.mListener.onTimeout("Connection is closed");
+      }
+    }
+  }
+}
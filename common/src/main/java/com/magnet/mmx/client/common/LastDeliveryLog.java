@@ -0,0 +1,292 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.magnet.mmx.util.QueueExecutor;
+
+/**
+ * @hide
+ * The persistent high-water mark of the published item delivery time, and
+ * an optional index of the last delivery of each topic.  The marks are
+ * advanced in memory and they are flushed to the memory-mapped files by a
+ * background thread, when the log is closed, or when the JVM shuts down.  The
+ * timer only posts the flush because forcing the files may block.  The
+ * persisted marks never go backwards.
+ */
+class LastDeliveryLog implements Closeable {
+  private final static String TAG = "LastDeliveryLog";
+  private final static Set<LastDeliveryLog> sOpenLogs = new HashSet<LastDeliveryLog>();
+  private final static QueueExecutor sFlusher = new QueueExecutor(
+      "MMX Delivery Log Flusher", true);
+  private final MappedByteBuffer mBuffer;
+  private final TopicDeliveryIndex mIndex;
+  private final long mInterval;
+  private final AtomicLong mHighWater;
+  private long mPersisted;
+  private boolean mIndexDirty;
+  private ScheduledFuture<?> mFlushTask;
+  private boolean mClosed;
+
+  static {
+    sFlusher.start();
+    Runtime.getRuntime().addShutdownHook(new Thread("MMX Delivery Log") {
+      @Override
+      public void run() {
+        flushAll();
+      }
+    });
+  }
+
+  private LastDeliveryLog(MappedByteBuffer buffer, TopicDeliveryIndex index,
+                          long interval) {
+    mBuffer = buffer;
+    mIndex = index;
+    mInterval = interval;
+    mPersisted = buffer.getLong(0);
+    mHighWater = new AtomicLong(mPersisted);
+  }
+
+  /**
+   * Open the log file and the topic index file.
+   * @param path The file path.
+   * @param indexPath The topic index file path, or null for no topic index.
+   * @param interval The max delay in milliseconds to flush the mark, or 0 to
+   *                 flush every change.
+   * @return The log, or null if the file cannot be mapped.
+   */
+  static LastDeliveryLog open(String path, String indexPath, long interval) {
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(path, "rw");
+      if (file.length() != 8) {
+        // Initialize with 8 bytes (long)
+        file.writeLong(0);
+      }
+      TopicDeliveryIndex index = null;
+      if (indexPath != null) {
+        try {
+          index = TopicDeliveryIndex.open(indexPath);
+        } catch (IOException e) {
+          Log.e(TAG, "Unable to open pubsub delivery index", e);
+        }
+      }
+      // The mapping remains valid after the file is closed.
+      LastDeliveryLog log = new LastDeliveryLog(file.getChannel().map(
+          FileChannel.MapMode.READ_WRITE, 0, 8), index, interval);
+      synchronized(sOpenLogs) {
+        sOpenLogs.add(log);
+      }
+      return log;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to persist pubsub delivery log", e);
+      return null;
+    } finally {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          // Ignored
+        }
+      }
+    }
+  }
+
+  private static void flushAll() {
+    List<LastDeliveryLog> logs;
+    synchronized(sOpenLogs) {
+      logs = new ArrayList<LastDeliveryLog>(sOpenLogs);
+    }
+    for (LastDeliveryLog log : logs) {
+      log.flush();
+    }
+  }
+
+  /**
+   * Advance the mark in memory.  An older time is ignored.
+   * @param time The delivery time in milliseconds.
+   */
+  void advance(long time) {
+    long mark;
+    do {
+      if (time <= (mark = mHighWater.get())) {
+        return;
+      }
+    } while (!mHighWater.compareAndSet(mark, time));
+    changed();
+  }
+
+  /**
+   * Advance the global mark and the mark of a topic in memory.
+   * @param node The pubsub node ID.
+   * @param itemId The last delivered item ID, or null.
+   * @param time The delivery time in milliseconds.
+   */
+  void advance(String node, String itemId, long time) {
+    advance(time);
+    if (mIndex == null) {
+      return;
+    }
+    synchronized(this) {
+      if (mClosed) {
+        return;
+      }
+      try {
+        if (!mIndex.put(node, time, itemId)) {
+          return;
+        }
+        mIndexDirty = true;
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to update pubsub delivery index", e);
+        return;
+      }
+    }
+    changed();
+  }
+
+  private void changed() {
+    if (mInterval <= 0) {
+      flush();
+    } else {
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Get the mark including the one not flushed yet.
+   * @return The delivery time in milliseconds.
+   */
+  long get() {
+    return mHighWater.get();
+  }
+
+  /**
+   * Get the last delivery time of a topic.
+   * @param node The pubsub node ID.
+   * @return The delivery time in milliseconds, or null if the topic is not
+   *         indexed.
+   */
+  synchronized Long get(String node) {
+    return (mIndex == null || mClosed) ? null : mIndex.get(node);
+  }
+
+  /**
+   * Get the last delivered item ID of a topic.
+   * @param node The pubsub node ID.
+   * @return The item ID, or null if it is not recorded.
+   */
+  synchronized String getItemId(String node) {
+    if (mIndex == null || mClosed) {
+      return null;
+    }
+    try {
+      return mIndex.getItemId(node);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read pubsub delivery index", e);
+      return null;
+    }
+  }
+
+  /**
+   * Get the last delivery time of all indexed topics.
+   * @return A map of node ID and delivery time, or an empty map.
+   */
+  synchronized Map<String, Long> getAll() {
+    return (mIndex == null || mClosed) ? new HashMap<String, Long>() :
+                                          mIndex.getAll();
+  }
+
+  // Coalesce all changes within the interval into one flush.
+  private synchronized void scheduleFlush() {
+    if (mFlushTask != null || mClosed) {
+      return;
+    }
+    final Runnable flush = new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    };
+    mFlushTask = SharedTimer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized(LastDeliveryLog.this) {
+          mFlushTask = null;
+        }
+        sFlusher.post(flush);
+      }
+    }, mInterval);
+  }
+
+  /**
+   * Write the marks to the files if they are advanced since the last flush.
+   */
+  void flush() {
+    boolean forceIndex;
+    boolean forceMark = false;
+    synchronized(this) {
+      if (mClosed) {
+        return;
+      }
+      forceIndex = mIndexDirty;
+      mIndexDirty = false;
+      long mark = mHighWater.get();
+      if (mark > mPersisted) {
+        mBuffer.putLong(0, mark);
+        mPersisted = mark;
+        forceMark = true;
+      }
+    }
+    // Force without holding the lock, so the advances are not blocked.
+    if (forceIndex) {
+      mIndex.force();
+    }
+    if (forceMark) {
+      mBuffer.force();
+    }
+  }
+
+  /**
+   * Flush the marks and stop the timer.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized(this) {
+      if (mFlushTask != null) {
+        mFlushTask.cancel(false);
+        mFlushTask = null;
+      }
+      flush();
+      mClosed = true;
+    }
+    synchronized(sOpenLogs) {
+      sOpenLogs.remove(this);
+    }
+  }
+}
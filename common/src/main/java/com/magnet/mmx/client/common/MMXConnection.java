@@ -29,8 +29,12 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 
@@ -62,9 +66,15 @@ import com.magnet.mmx.protocol.StatusCode;
 import com.magnet.mmx.protocol.UserCreate;
 import com.magnet.mmx.protocol.UserInfo;
 import com.magnet.mmx.util.BinCodec;
+import com.magnet.mmx.util.BoundedDispatcher;
+import com.magnet.mmx.util.BoundedDispatcher.OverflowPolicy;
 import com.magnet.mmx.util.DefaultEncryptor;
+import com.magnet.mmx.util.Dispatcher;
+import com.magnet.mmx.util.IdGenerator;
 import com.magnet.mmx.util.MMXQueue;
+import com.magnet.mmx.util.OrderedPoolExecutor;
 import com.magnet.mmx.util.QueueExecutor;
+import com.magnet.mmx.util.QueuePoolExecutor;
 import com.magnet.mmx.util.XIDUtil;
 
 /**
@@ -89,6 +99,8 @@ public class MMXConnection implements ConnectionListener {
    */
   public final static int NOT_AVAILABLE = -255;
   private final static String TAG = "MMXConnection";
+  private final static MMXTraceInterceptor[] NO_INTERCEPTORS =
+      new MMXTraceInterceptor[0];
   private final HashMap<String, Object> mManagers = new HashMap<String, Object>();
   private MMXContext mContext;
   private MagnetXMPPConnection mCon;
@@ -96,18 +108,25 @@ public class MMXConnection implements ConnectionListener {
   private MMXSettings mSettings;
   private MMXMessageListener mMsgListener;
   private final MMXQueue mQueue;
-  private QueueExecutor mExecutor;
+  private volatile Dispatcher mDispatcher;
+  private final MMXMetrics mMetrics;
+  // Copy-on-write; the hot paths only read the array.
+  private volatile MMXTraceInterceptor[] mInterceptors = NO_INTERCEPTORS;
   private AnonyAccount mAnonyAcct;
   private String mPubSubServiceName;
   private String mAppId;
   private String mApiKey;
   private MMXid mXID;     // caching the MMX ID (userID/deviceID)
   private String mConToken; // MD5 of host-port-userID
-  private String mUUID;
+  private volatile IdGenerator mIdGen;
   private int mPriority;
-  private long mSeq;
   // To hold the priority temperarily when the connection is not available
   private Integer mPriorityToBe;
+  // To hold the priority while the delivery is suspended by the overflow
+  private Integer mPrioritySuspended;
+  private final Object mPriorityLock = new Object();
+  // Sends the presence for the flow control off the reader thread.
+  private QueueExecutor mFlowControl;
 
   /**
    * Auto create the account if the account does not exist.
@@ -156,18 +175,311 @@ public class MMXConnection implements ConnectionListener {
   public MMXConnection(MMXContext context, MMXQueue queue, MMXSettings settings) {
     mContext = context;
     mQueue = queue;
-    mExecutor = new QueueExecutor("CallbackThread", true);
-    mExecutor.start();
     mSettings = settings.clone();
+    mDispatcher = createDispatcher(mSettings);
+    mMetrics = createMetrics(mSettings);
     initId();
   }
 
+  // Create the metrics if PROP_ENABLE_METRICS is set.
+  private MMXMetrics createMetrics(MMXSettings settings) {
+    if (!settings.getBoolean(MMXSettings.PROP_ENABLE_METRICS, false)) {
+      return null;
+    }
+    MMXMetrics metrics = new MMXMetrics(settings.getInt(
+        MMXSettings.PROP_METRICS_INTERVAL, 60000));
+    if (mQueue != null) {
+      metrics.registerGauge(MMXMetrics.OFFLINE_QUEUE, new MMXMetrics.Gauge() {
+        @Override
+        public long getValue() {
+          return mQueue.size();
+        }
+      });
+    }
+    return metrics;
+  }
+
+  /**
+   * Get the metrics of this connection.
+   * @return The metrics, or null if {@link MMXSettings#PROP_ENABLE_METRICS}
+   *          is not set.
+   */
+  public MMXMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  // Increment a counter if the metrics are enabled.
+  void incCounter(String name) {
+    if (mMetrics != null) {
+      mMetrics.getCounter(name).inc();
+    }
+  }
+
+  /**
+   * Add a trace interceptor.  The interceptors are called in the order of
+   * adding.
+   * @param interceptor A non-null interceptor.
+   */
+  public synchronized void addTraceInterceptor(MMXTraceInterceptor interceptor) {
+    if (interceptor == null) {
+      throw new IllegalArgumentException("Interceptor cannot be null");
+    }
+    MMXTraceInterceptor[] interceptors = Arrays.copyOf(mInterceptors,
+        mInterceptors.length + 1);
+    interceptors[interceptors.length - 1] = interceptor;
+    mInterceptors = interceptors;
+  }
+
+  /**
+   * Remove a trace interceptor.
+   * @param interceptor The interceptor to be removed.
+   * @return true if the interceptor was added.
+   */
+  public synchronized boolean removeTraceInterceptor(
+                                        MMXTraceInterceptor interceptor) {
+    List<MMXTraceInterceptor> list = new ArrayList<MMXTraceInterceptor>(
+        Arrays.asList(mInterceptors));
+    if (!list.remove(interceptor)) {
+      return false;
+    }
+    mInterceptors = list.isEmpty() ? NO_INTERCEPTORS :
+      list.toArray(new MMXTraceInterceptor[list.size()]);
+    return true;
+  }
+
+  // Check if any trace interceptor is added.
+  boolean isTracing() {
+    return mInterceptors.length != 0;
+  }
+
+  // Fire a begin event.  No allocation is done without any interceptor.
+  void traceBegin(MMXTraceInterceptor.Event event, String id) {
+    MMXTraceInterceptor[] interceptors = mInterceptors;
+    if (interceptors.length != 0) {
+      traceBegin(interceptors, event, id, System.nanoTime());
+    }
+  }
+
+  // Fire an end event.  No allocation is done without any interceptor.
+  void traceEnd(MMXTraceInterceptor.Event event, String id, boolean success) {
+    MMXTraceInterceptor[] interceptors = mInterceptors;
+    if (interceptors.length != 0) {
+      traceEnd(interceptors, event, id, System.nanoTime(), success);
+    }
+  }
+
+  // Fire the begin and end events of an operation timed by the caller.
+  void trace(MMXTraceInterceptor.Event event, String id, long beginTime,
+              long endTime) {
+    MMXTraceInterceptor[] interceptors = mInterceptors;
+    if (interceptors.length != 0) {
+      traceBegin(interceptors, event, id, beginTime);
+      traceEnd(interceptors, event, id, endTime, true);
+    }
+  }
+
+  private static void traceBegin(MMXTraceInterceptor[] interceptors,
+      MMXTraceInterceptor.Event event, String id, long nanoTime) {
+    for (MMXTraceInterceptor interceptor : interceptors) {
+      try {
+        interceptor.onBegin(event, id, nanoTime);
+      } catch (Throwable e) {
+        Log.e(TAG, "Trace interceptor failed: "+interceptor, e);
+      }
+    }
+  }
+
+  private static void traceEnd(MMXTraceInterceptor[] interceptors,
+      MMXTraceInterceptor.Event event, String id, long nanoTime,
+      boolean success) {
+    for (MMXTraceInterceptor interceptor : interceptors) {
+      try {
+        interceptor.onEnd(event, id, nanoTime, success);
+      } catch (Throwable e) {
+        Log.e(TAG, "Trace interceptor failed: "+interceptor, e);
+      }
+    }
+  }
+
+  // Create the callback dispatcher according to PROP_CALLBACK_MODE and
+  // PROP_CALLBACK_CAPACITY.
+  private Dispatcher createDispatcher(MMXSettings settings) {
+    String mode = settings.getString(MMXSettings.PROP_CALLBACK_MODE,
+        MMXSettings.CALLBACK_SERIAL);
+    int nThreads = settings.getInt(MMXSettings.PROP_CALLBACK_THREADS,
+        Runtime.getRuntime().availableProcessors());
+    Dispatcher dispatcher;
+    if (MMXSettings.CALLBACK_POOL.equalsIgnoreCase(mode) && nThreads > 1) {
+      dispatcher = new QueuePoolExecutor("CallbackThread", true, nThreads);
+    } else if (MMXSettings.CALLBACK_ORDERED.equalsIgnoreCase(mode) && nThreads > 1) {
+      dispatcher = new OrderedPoolExecutor("CallbackThread", true, nThreads);
+    } else {
+      if (!MMXSettings.CALLBACK_SERIAL.equalsIgnoreCase(mode) &&
+          !MMXSettings.CALLBACK_POOL.equalsIgnoreCase(mode) &&
+          !MMXSettings.CALLBACK_ORDERED.equalsIgnoreCase(mode)) {
+        Log.w(TAG, "Unknown callback mode: "+mode+", use the serial mode");
+      }
+      QueueExecutor executor = new QueueExecutor("CallbackThread", true);
+      executor.start();
+      dispatcher = executor;
+    }
+
+    int capacity = settings.getInt(MMXSettings.PROP_CALLBACK_CAPACITY, 0);
+    if (capacity <= 0) {
+      return dispatcher;
+    }
+    int lowWater = settings.getInt(MMXSettings.PROP_CALLBACK_LOW_WATER,
+        capacity / 2);
+    lowWater = Math.max(0, Math.min(lowWater, capacity - 1));
+    String overflow = settings.getString(MMXSettings.PROP_CALLBACK_OVERFLOW,
+        MMXSettings.OVERFLOW_BLOCK);
+    OverflowPolicy policy;
+    if (MMXSettings.OVERFLOW_DROP.equalsIgnoreCase(overflow)) {
+      policy = OverflowPolicy.DROP_DROPPABLE;
+    } else if (MMXSettings.OVERFLOW_SUSPEND.equalsIgnoreCase(overflow)) {
+      policy = OverflowPolicy.SUSPEND;
+    } else {
+      if (!MMXSettings.OVERFLOW_BLOCK.equalsIgnoreCase(overflow)) {
+        Log.w(TAG, "Unknown callback overflow: "+overflow+", use block");
+      }
+      policy = OverflowPolicy.BLOCK;
+    }
+    return new BoundedDispatcher(dispatcher, capacity, lowWater, policy,
+        mWatermarkListener);
+  }
+
+  // Suspend the message delivery when the callback queue is full, and resume
+  // it when the queue is drained to the low-water mark.  The presence is sent
+  // by a separate thread because the high-water mark is reached in the reader
+  // thread.
+  private final BoundedDispatcher.WatermarkListener mWatermarkListener =
+      new BoundedDispatcher.WatermarkListener() {
+    @Override
+    public void onHighWater() {
+      postFlowControl(new Runnable() {
+        @Override
+        public void run() {
+          suspendDelivery();
+        }
+      });
+    }
+
+    @Override
+    public void onLowWater() {
+      postFlowControl(new Runnable() {
+        @Override
+        public void run() {
+          resumeDelivery();
+        }
+      });
+    }
+  };
+
+  private void postFlowControl(Runnable task) {
+    synchronized(mPriorityLock) {
+      if (mFlowControl == null) {
+        mFlowControl = new QueueExecutor("MMX Flow Control", true);
+        mFlowControl.start();
+      }
+      mFlowControl.post(task);
+    }
+  }
+
+  private void suspendDelivery() {
+    synchronized(mPriorityLock) {
+      if (mPrioritySuspended != null || mPriority == NOT_AVAILABLE) {
+        return;
+      }
+      try {
+        int priority = mPriority;
+        sendPriority(NOT_AVAILABLE);
+        mPrioritySuspended = priority;
+        Log.w(TAG, "Callback queue is full, suspend the delivery");
+      } catch (MMXException e) {
+        Log.e(TAG, "Unable to suspend the delivery", e);
+      }
+    }
+  }
+
+  // Restore the priority saved when suspended, or the one set by the app
+  // while suspended.
+  private void resumeDelivery() {
+    synchronized(mPriorityLock) {
+      if (mPrioritySuspended == null) {
+        return;
+      }
+      try {
+        sendPriority(mPrioritySuspended);
+        mPrioritySuspended = null;
+        Log.i(TAG, "Callback queue is drained, resume the delivery");
+      } catch (MMXException e) {
+        Log.e(TAG, "Unable to resume the delivery", e);
+      }
+    }
+  }
+
   /**
-   * Retrieves the thread in which all messaging callback will be run.
-   * @return The thread for all messaging callback will be run in.
+   * Retrieves the dispatcher in which all messaging callbacks will be run.
+   * @return The dispatcher for all messaging callbacks.
    */
-  QueueExecutor getExecutor() {
-    return mExecutor;
+  public Dispatcher getDispatcher() {
+    return mDispatcher;
+  }
+
+  /**
+   * Replace the dispatcher in which all messaging callbacks will be run.  The
+   * current dispatcher will be terminated and its pending callbacks will be
+   * lost.  It is recommended to set the dispatcher before the connection.
+   * @param dispatcher A non-null dispatcher.
+   */
+  public void setDispatcher(Dispatcher dispatcher) {
+    if (dispatcher == null) {
+      throw new IllegalArgumentException("Dispatcher cannot be null");
+    }
+    Dispatcher oldDispatcher = mDispatcher;
+    mDispatcher = dispatcher;
+    if (oldDispatcher != null && oldDispatcher != dispatcher) {
+      oldDispatcher.quit();
+    }
+  }
+
+  /**
+   * Run a messaging callback in the dispatcher.  Callbacks with the same key
+   * are run in the order of posting.
+   * @param key A sender JID, a topic, or null.
+   * @param task The callback.
+   */
+  void dispatch(Object key, Runnable task) {
+    dispatch(key, task, false);
+  }
+
+  /**
+   * Run a messaging callback in the dispatcher.  If the dispatcher is bounded,
+   * a droppable callback may be dropped when the dispatcher is full.
+   * @param key A sender JID, a topic, or null.
+   * @param task The callback.
+   * @param droppable true if the callback is for an unreliable message.
+   * @return false if the callback is dropped.
+   */
+  boolean dispatch(Object key, Runnable task, boolean droppable) {
+    Dispatcher dispatcher = mDispatcher;
+    MMXMetrics metrics = mMetrics;
+    if (metrics != null) {
+      task = metrics.timeCallback(task);
+    }
+    if (dispatcher instanceof BoundedDispatcher) {
+      if (!((BoundedDispatcher) dispatcher).post(key, task, droppable)) {
+        if (metrics != null) {
+          metrics.callbackDropped();
+        }
+        return false;
+      }
+      return true;
+    }
+    if (dispatcher != null) {
+      dispatcher.post(key, task);
+    }
+    return true;
   }
 
   /**
@@ -184,10 +496,21 @@ public class MMXConnection implements ConnectionListener {
    */
   public void destroy() {
     disconnect();
+    // The managers are not destroyed if the connection was already lost.
+    destroyManagers();
 
-    if (mExecutor != null) {
-      mExecutor.quit();
-      mExecutor = null;
+    if (mDispatcher != null) {
+      mDispatcher.quit();
+      mDispatcher = null;
+    }
+    synchronized(mPriorityLock) {
+      if (mFlowControl != null) {
+        mFlowControl.quit();
+        mFlowControl = null;
+      }
+    }
+    if (mMetrics != null) {
+      mMetrics.close();
     }
     mSettings = null;
     mConListener = null;
@@ -222,18 +545,19 @@ public class MMXConnection implements ConnectionListener {
     return mContext;
   }
 
-  public synchronized String genId() {
-    return mUUID + '-' + Long.toString((++mSeq), 36);
+  public String genId() {
+    return mIdGen.next();
   }
 
   // 16-byte UUID in private encoding.
-  private synchronized void initId() {
+  private void initId() {
     byte[] dst = new byte[16];
     UUID uuid = UUID.randomUUID();
     BinCodec.longToBytes(uuid.getMostSignificantBits(), dst, 0);
     BinCodec.longToBytes(uuid.getLeastSignificantBits(), dst, 8);
-    mUUID = BinCodec.encodeToString(dst, false).substring(0, 22);
-    mSeq = 0;
+    char[] id = new char[BinCodec.encodedLength(dst.length, false)];
+    BinCodec.encode(dst, 0, dst.length, id, 0, false);
+    mIdGen = new IdGenerator(new String(id));
   }
 
   /**
@@ -264,12 +588,25 @@ public class MMXConnection implements ConnectionListener {
    * priority is between -1 and -128 inclusively, messages targeting to the
    * end-point (full JID) will be delivered.  A special priority
    * {@link #NOT_AVAILABLE} will disable the message delivery completely to the
-   * end-point that it will appear as off-line.
+   * end-point that it will appear as off-line.  If the delivery is suspended
+   * because the callback queue is full, the priority is applied when the
+   * delivery is resumed.
    * @param priority {@link #NOT_AVAILABLE}, or between -128 and 128
    * @return The prior priority.
    * @throws MMXException
    */
   public int setPriority(int priority) throws MMXException {
+    synchronized(mPriorityLock) {
+      if (mPrioritySuspended != null) {
+        int oldPriority = mPrioritySuspended;
+        mPrioritySuspended = priority;
+        return oldPriority;
+      }
+      return sendPriority(priority);
+    }
+  }
+
+  private int sendPriority(int priority) throws MMXException {
     if(null != mCon && mCon.isConnected()) {
       try {
         mCon.sendPacket(priorityToPresense(priority));
@@ -358,6 +695,9 @@ public class MMXConnection implements ConnectionListener {
     if (sslContext != null) {
       config.setCustomSSLContext(sslContext);
     }
+    if (socketFactory == null && mMetrics != null) {
+      config.setSocketFactory(new CountingSocketFactory(mMetrics));
+    }
 
     switch (Log.getLoggable(null)) {
     case Log.VERBOSE:
@@ -428,6 +768,7 @@ public class MMXConnection implements ConnectionListener {
     try {
       mCon.connect();
       setPendingPriority();
+      incCounter(MMXMetrics.RECONNECTS);
       return true;
     } catch (Throwable e) {
       throw new MMXException("Unable to reconnect", e);
@@ -948,7 +1289,9 @@ public class MMXConnection implements ConnectionListener {
         MessageDigest md5 = MessageDigest.getInstance("MD5");
         md5.update(token.getBytes());
         byte[] digest = md5.digest();
-        mConToken = BinCodec.encodeToString(digest, false).substring(0, 22);
+        char[] chars = new char[BinCodec.encodedLength(digest.length, false)];
+        BinCodec.encode(digest, 0, digest.length, chars, 0, false);
+        mConToken = new String(chars);
       } catch (Throwable e) {
         Log.w(TAG, "Cannot hash the connection token; use plain text", e);
         mConToken = token;
@@ -977,7 +1320,7 @@ public class MMXConnection implements ConnectionListener {
         Log.w(TAG, "authenticated(): mCon was null; did resource bind fail?");
         mCon = (MagnetXMPPConnection) con;
       }
-      setPriority(getPriority());
+      sendPriority(getPriority());
     } catch (MMXException e) {
       Log.e(TAG, "Unable to send presence with priority", e);
     }
@@ -1011,13 +1354,15 @@ public class MMXConnection implements ConnectionListener {
     int maxItems = mSettings.getInt(MMXSettings.PROP_MAX_LAST_PUB_ITEMS, 0);
     if (maxItems != 0) {
       try {
-        Date lastDeliveryTime = PubSubManager.getInstance(this)
-            .getLastDelivery();
-        MMXStatus status = PubSubManager.getInstance(this)
-            .requestLastPublishedItems(maxItems, lastDeliveryTime);
+        // Each topic is asked for the items since its own last delivery.
+        Map<String, MMXStatus> result = PubSubManager.getInstance(this)
+            .requestMissedPublishedItems(maxItems);
         if (Log.isLoggable(TAG, Log.DEBUG)) {
-          Log.d(TAG, "sendLastPublishedItems(): " + status.getMessage() + ", code="
-              + status.getCode());
+          for (Map.Entry<String, MMXStatus> entry : result.entrySet()) {
+            Log.d(TAG, "sendLastPublishedItems(): topic=" + entry.getKey() +
+                ", " + entry.getValue().getMessage() + ", code=" +
+                entry.getValue().getCode());
+          }
         }
       } catch (MMXException e) {
         Log.e(TAG, "sendLastPublishedItems() failed", e);
@@ -1062,12 +1407,13 @@ public class MMXConnection implements ConnectionListener {
 
   @Override
   public void reconnectionSuccessful() {
+    incCounter(MMXMetrics.RECONNECTS);
     // After the reconnection, resume to the previous presence state (or message
     // flow control.)  MMX has a different behavior from Smack which reuses
     // the initial connection config for sending <presence> or not.
     if (mPriority != NOT_AVAILABLE) {
       try {
-        setPriority(mPriority);
+        sendPriority(mPriority);
       } catch (MMXException e) {
         Log.e(TAG, "OnReconnection: unable to send presence with priority "+mPriority);
       }
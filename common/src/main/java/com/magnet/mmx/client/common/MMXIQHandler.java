@@ -15,13 +15,11 @@
 
 package com.magnet.mmx.client.common;
 
-import org.jivesoftware.smack.PacketListener;
+import java.util.concurrent.TimeUnit;
+
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.XMPPConnection;
-import org.jivesoftware.smack.filter.IQReplyFilter;
-import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.IQ;
-import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smack.util.XmlStringBuilder;
@@ -58,6 +56,13 @@ import com.magnet.mmx.util.GsonData;
  *    myIQHandler.sendSetIQ(con, "create", myData, Result.class, listener);
  *    Result result = myIQHandler.getResult();
  * </pre>
+ * To send the "set" IQ without blocking the calling thread:
+ * <pre>
+ *    MMXIQHandler myIQHandler = new MyMMXIQHandler<Request, Result>(...);
+ *    IQFuture<Result> future = myIQHandler.sendSetIQAsync(con, null, "create",
+ *        myData, Result.class, 0);
+ *    future.addCallback(callback, executor);
+ * </pre>
  *
  * @param <Request>
  * @param <Result>
@@ -66,10 +71,9 @@ abstract class MMXIQHandler<Request, Result>
                         implements IQListener<Result> {
   public abstract String getElementName();
   public abstract String getNamespace();
-  private final static long TIMEOUT = 30000L;
-  private boolean mTimedOut;
-  protected Result mResult;
-  protected MMXStatus mError;
+  final static long TIMEOUT = 30000L;
+  // The result of the blocking request when this handler is the listener.
+  private final IQFuture<Result> mFuture = new IQFuture<Result>(null, TIMEOUT);
 
   class Provider implements IQProvider {
     @Override
@@ -191,54 +195,24 @@ abstract class MMXIQHandler<Request, Result>
    * @throws MMXException
    */
   public Result getResult() throws MMXException {
-    synchronized(this) {
-      if (mError == null && mResult == null) {
-        try {
-          mTimedOut = true;
-          this.wait(TIMEOUT);
-        } catch (InterruptedException e) {
-          // Ignored.
-        }
-      }
-    }
-    if (mError != null) {
-      throw new MMXException(mError.getMessage(), mError.getCode(), null);
-    }
-    if (mTimedOut) {
-      throw new MMXException("Response timed out", Constants.STATUS_CODE_500);
-    }
-    return mResult;
+    return mFuture.getResult();
   }
 
   @Override
   public void onReceived(Result result) {
-    synchronized(this) {
-      mResult = result;
-      mTimedOut = false;
-      this.notifyAll();
-    }
+    mFuture.onReceived(result);
   }
 
   // IQ error with MMX payload.
   @Override
   public void onError(String cmd, MMXStatus status) {
-    synchronized(this) {
-      mError = status;
-      mTimedOut = false;
-      this.notifyAll();
-    }
+    mFuture.onError(cmd, status);
   }
 
   // IQ error with standard payload.
   @Override
   public void onError(String xml) {
-    synchronized(this) {
-      mError = new MMXStatus();
-      mError.setMessage(xml);
-      mError.setCode(Constants.STATUS_CODE_500);
-      mTimedOut = false;
-      this.notifyAll();
-    }
+    mFuture.onError(xml);
   }
 
   /**
@@ -311,22 +285,98 @@ abstract class MMXIQHandler<Request, Result>
     sendIQ(con, IQ.Type.GET, dst, cmd, rqt, resultClz, listener);
   }
 
+  /**
+   * Send a request using SET-IQ without blocking.  The result is delivered
+   * through the returned future.
+   * @param con
+   * @param dst A full JID, or null for MMX.
+   * @param cmd
+   * @param rqt
+   * @param resultClz
+   * @param timeout The timeout in milliseconds, or 0 for the default timeout.
+   * @return A future of the result.
+   * @throws MMXException
+   */
+  public IQFuture<Result> sendSetIQAsync(MMXConnection con, String dst,
+      String cmd, Request rqt, Class<Result> resultClz, long timeout)
+          throws MMXException {
+    return sendIQAsync(con, IQ.Type.SET, dst, cmd, rqt, resultClz, timeout);
+  }
+
+  /**
+   * Send a request using GET-IQ without blocking.  The result is delivered
+   * through the returned future.
+   * @param con
+   * @param dst A full JID, or null for MMX.
+   * @param cmd
+   * @param rqt
+   * @param resultClz
+   * @param timeout The timeout in milliseconds, or 0 for the default timeout.
+   * @return A future of the result.
+   * @throws MMXException
+   */
+  public IQFuture<Result> sendGetIQAsync(MMXConnection con, String dst,
+      String cmd, Request rqt, Class<Result> resultClz, long timeout)
+          throws MMXException {
+    return sendIQAsync(con, IQ.Type.GET, dst, cmd, rqt, resultClz, timeout);
+  }
+
+  // Send an IQ (either SET or GET) request to MMX and return a future.
+  protected IQFuture<Result> sendIQAsync(MMXConnection con, IQ.Type type,
+      String dst, String cmd, Request rqt, Class<Result> resultClz,
+      long timeout) throws MMXException {
+    IQFuture<Result> future = new IQFuture<Result>(cmd,
+        (timeout > 0) ? timeout : TIMEOUT);
+    sendIQ(con, type, dst, cmd, rqt, resultClz, future, future);
+    return future;
+  }
+
   // Send an IQ (either SET or GET) request to MMX and wait for a result.
   protected void sendIQ(MMXConnection con, IQ.Type type, String dst, String cmd,
                       Request rqt, final Class<Result> resultClz,
                       final IQListener<Result> listener) throws MMXException {
+    sendIQ(con, type, dst, cmd, rqt, resultClz, listener,
+        (listener == this) ? mFuture : null);
+  }
+
+  // The reply is routed by the IQRouter of the connection.  The future, if
+  // not null, can abandon the request when it is cancelled or timed out.
+  private void sendIQ(final MMXConnection con, IQ.Type type, String dst,
+                      final String cmd, Request rqt,
+                      final Class<Result> resultClz,
+                      final IQListener<Result> listener,
+                      IQFuture<Result> future) throws MMXException {
     final XMPPConnection xmppCon = con.getXMPPConnection();
     if (xmppCon == null) {
       throw new ConnectionException("Not connect to MMX Server", null);
     }
+    final String packetId = con.genId();
     try {
-      IQ iq = new MMXIQ(cmd, rqt, dst);
-      iq.setPacketID(con.genId());
+      final IQRouter router = IQRouter.getInstance(con);
+      final MMXMetrics metrics = con.getMetrics();
+      final long startTime = (metrics != null) ? System.nanoTime() : 0;
+      final IQ iq = new MMXIQ(cmd, rqt, dst);
+      iq.setPacketID(packetId);
       iq.setType(type);
-      PacketFilter packetFilter = new IQReplyFilter(iq, xmppCon);
-      PacketListener packetListener = new PacketListener() {
+      if (future != null) {
+        future.setCanceller(new Runnable() {
+          @Override
+          public void run() {
+            router.remove(iq.getPacketID());
+          }
+        });
+      }
+      con.traceBegin(MMXTraceInterceptor.Event.IQ, packetId);
+      router.send(xmppCon, iq, (future != null) ? future.getTimeout() : TIMEOUT,
+          new IQRouter.ReplyListener() {
         @Override
-        public void processPacket(Packet packet) throws NotConnectedException {
+        public void onReply(IQ packet) {
+          con.traceEnd(MMXTraceInterceptor.Event.IQ, packetId,
+              packet.getType() != IQ.Type.ERROR);
+          if (metrics != null) {
+            metrics.getHistogram(MMXMetrics.IQ_LATENCY+cmd).record(
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+          }
           if (packet instanceof MMXIQHandler.MMXIQ) {
             MMXIQ iq = (MMXIQ) packet;
             if (GsonData.CONTENT_TYPE_JSON.equals(iq.getContentType())) {
@@ -338,18 +388,28 @@ abstract class MMXIQHandler<Request, Result>
                 listener.onReceived(res);
               }
             }
-          } else if (((IQ) packet).getType() == IQ.Type.ERROR) {
+          } else if (packet.getType() == IQ.Type.ERROR) {
             listener.onError(packet.toString());
           } else {
             listener.onError("Unsupported IQ extension: "+packet+
                              "\nForgot to register an IQ Provider?");
           }
-          xmppCon.removePacketListener(this);
         }
-      };
-      xmppCon.addPacketListener(packetListener, packetFilter);
-      xmppCon.sendPacket(iq);
+
+        @Override
+        public void onTimeout(String reason) {
+          con.traceEnd(MMXTraceInterceptor.Event.IQ, packetId, false);
+          if (metrics != null) {
+            metrics.getCounter(MMXMetrics.IQ_TIMEOUTS).inc();
+          }
+          MMXStatus status = new MMXStatus();
+          status.setMessage(reason);
+          status.setCode(Constants.STATUS_CODE_500);
+          listener.onError(cmd, status);
+        }
+      });
     } catch (NotConnectedException e) {
+      con.traceEnd(MMXTraceInterceptor.Event.IQ, packetId, false);
       throw new MMXException(e.getMessage(), e);
     }
   }
@@ -16,7 +16,6 @@
 package com.magnet.mmx.client.common;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -29,7 +28,6 @@ import com.magnet.mmx.client.common.MMXPayloadMsgHandler.MMXPacketExtension;
 import com.magnet.mmx.protocol.Constants;
 import com.magnet.mmx.protocol.MMXid;
 import com.magnet.mmx.protocol.Payload;
-import com.magnet.mmx.util.DisposableBinFile;
 import com.magnet.mmx.util.DisposableFile;
 import com.magnet.mmx.util.XIDUtil;
 
@@ -264,7 +262,11 @@ public class MMXMessage implements Serializable {
 
   // Assemble multiple payloads into a complete message.
   // Return true if the message is fully assembled.
-  boolean assemble(MMXContext context) throws IOException {
+  boolean assemble(ChunkAssembler assembler) throws IOException {
+    // Avoid decoding a payload which is not chunked.
+    if (mPayload.getCid() == null) {
+      return true;
+    }
     Payload pl = mPayload.getPayloadExt();
     String cid = pl.getCid();
     int total = pl.getDataSize();
@@ -273,24 +275,12 @@ public class MMXMessage implements Serializable {
       return true;
     }
 
-    // Write a partial payload to a file whose name is "cid.dat".
-    DisposableFile file = new DisposableBinFile(
-        context.getFilePath(cid+".dat"), true);
-    RandomAccessFile raf = null;
-    try {
-      raf = new RandomAccessFile(file, "rw");
-      raf.seek(offset);
-      raf.write(pl.getData().toString().getBytes());
-      if (file.length() < total) {
-        return false;
-      }
-      // Got all partial payloads; use the new payload based on the file.
-      mPayload = new MMXPayload(pl.getMsgType(), file);
-      return true;
-    } finally {
-      if (raf != null) {
-        raf.close();
-      }
+    DisposableFile file = assembler.write(cid, offset, total, pl.getData());
+    if (file == null) {
+      return false;
     }
+    // Got all partial payloads; use the new payload based on the file.
+    mPayload = new MMXPayload(pl.getMsgType(), file);
+    return true;
   }
 }
@@ -0,0 +1,357 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.client.common;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.magnet.mmx.util.LatencyHistogram;
+
+/**
+ * The metrics of a connection: counters, gauges and latency histograms in
+ * milliseconds.  The metrics are enabled by
+ * {@link MMXSettings#PROP_ENABLE_METRICS}; otherwise
+ * {@link MMXConnection#getMetrics()} returns null and nothing is recorded.
+ * The metrics are pushed to the registered exporters every
+ * {@link MMXSettings#PROP_METRICS_INTERVAL} milliseconds.
+ * <pre>
+ * MMXMetrics metrics = con.getMetrics();
+ * if (metrics != null) {
+ *   metrics.addExporter(new MMXMetrics.LogExporter());
+ * }
+ * </pre>
+ */
+public class MMXMetrics {
+  private final static String TAG = "MMXMetrics";
+  /**
+   * Counter of the received messages.
+   */
+  public final static String MESSAGES_IN = "messages.in";
+  /**
+   * Counter of the sent messages.
+   */
+  public final static String MESSAGES_OUT = "messages.out";
+  /**
+   * Counter of the received published items.
+   */
+  public final static String ITEMS_IN = "items.in";
+  /**
+   * Counter of the published items.
+   */
+  public final static String ITEMS_OUT = "items.out";
+  /**
+   * Counter of the bytes received from the socket.  The bytes are not counted
+   * if the connection uses a custom socket factory.
+   */
+  public final static String BYTES_IN = "bytes.in";
+  /**
+   * Counter of the bytes sent to the socket.  The bytes are not counted if
+   * the connection uses a custom socket factory.
+   */
+  public final static String BYTES_OUT = "bytes.out";
+  /**
+   * Prefix of the IQ latency histograms; the suffix is the command.
+   */
+  public final static String IQ_LATENCY = "iq.latency.";
+  /**
+   * Counter of the timed out IQ requests.
+   */
+  public final static String IQ_TIMEOUTS = "iq.timeouts";
+  /**
+   * Gauge of the callbacks waiting to be run.
+   */
+  public final static String CALLBACK_DEPTH = "callback.depth";
+  /**
+   * Histogram of the time from dispatching a callback to running it.
+   */
+  public final static String CALLBACK_LATENCY = "callback.latency";
+  /**
+   * Counter of the callbacks dropped by a full dispatcher.
+   */
+  public final static String CALLBACK_DROPS = "callback.drops";
+  /**
+   * Gauge of the acks of the received reliable messages waiting to be sent.
+   */
+  public final static String ACK_BACKLOG = "ack.backlog";
+  /**
+   * Counter of the successful reconnections.
+   */
+  public final static String RECONNECTS = "reconnects";
+  /**
+   * Gauge of the items in the offline queue.
+   */
+  public final static String OFFLINE_QUEUE = "offline.queue";
+
+  /**
+   * A value sampled when the metrics are exported.
+   */
+  public interface Gauge {
+    /**
+     * Get the current value.  It must not block.
+     * @return
+     */
+    public long getValue();
+  }
+
+  /**
+   * The receiver of the metrics.
+   */
+  public interface Exporter {
+    /**
+     * Export the metrics.  It is called periodically in a shared timer
+     * thread; it must not block for long.
+     * @param metrics The metrics of a connection.
+     */
+    public void export(MMXMetrics metrics);
+  }
+
+  /**
+   * A monotonic counter.
+   */
+  public static class Counter {
+    private final AtomicLong mValue = new AtomicLong();
+
+    public void inc() {
+      mValue.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      mValue.addAndGet(delta);
+    }
+
+    public long get() {
+      return mValue.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(mValue.get());
+    }
+  }
+
+  /**
+   * An exporter writing all metrics to the log at INFO level.
+   */
+  public static class LogExporter implements Exporter {
+    @Override
+    public void export(MMXMetrics metrics) {
+      StringBuilder sb = new StringBuilder("metrics:");
+      for (Map.Entry<String, Counter> entry :
+          new TreeMap<String, Counter>(metrics.getCounters()).entrySet()) {
+        sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+      }
+      for (Map.Entry<String, Gauge> entry :
+          new TreeMap<String, Gauge>(metrics.getGauges()).entrySet()) {
+        sb.append(' ').append(entry.getKey()).append('=')
+          .append(entry.getValue().getValue());
+      }
+      for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String,
+          LatencyHistogram>(metrics.getHistograms()).entrySet()) {
+        sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+      }
+      Log.i(TAG, sb.toString());
+    }
+  }
+
+  // A callback timed from its dispatching.
+  private class TimedCallback implements Runnable {
+    private final Runnable mTask;
+    private final long mPostTime = System.nanoTime();
+
+    TimedCallback(Runnable task) {
+      mTask = task;
+    }
+
+    @Override
+    public void run() {
+      mCallbackDepth.decrementAndGet();
+      mCallbackLatency.record(TimeUnit.NANOSECONDS.toMillis(
+          System.nanoTime() - mPostTime));
+      mTask.run();
+    }
+  }
+
+  private final ConcurrentHashMap<String, Counter> mCounters =
+      new ConcurrentHashMap<String, Counter>();
+  private final ConcurrentHashMap<String, Gauge> mGauges =
+      new ConcurrentHashMap<String, Gauge>();
+  private final ConcurrentHashMap<String, LatencyHistogram> mHistograms =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private final CopyOnWriteArrayList<Exporter> mExporters =
+      new CopyOnWriteArrayList<Exporter>();
+  private final AtomicInteger mCallbackDepth = new AtomicInteger();
+  private final LatencyHistogram mCallbackLatency;
+  private final long mInterval;
+  private ScheduledFuture<?> mTimer;
+
+  /**
+   * Constructor.
+   * @param interval The export interval in milliseconds.
+   */
+  MMXMetrics(long interval) {
+    mInterval = Math.max(1000L, interval);
+    mCallbackLatency = getHistogram(CALLBACK_LATENCY);
+    registerGauge(CALLBACK_DEPTH, new Gauge() {
+      @Override
+      public long getValue() {
+        return mCallbackDepth.get();
+      }
+    });
+  }
+
+  /**
+   * Get a counter by name, or create it if it does not exist.
+   * @param name The counter name.
+   * @return The counter.
+   */
+  public Counter getCounter(String name) {
+    Counter counter = mCounters.get(name);
+    if (counter == null) {
+      Counter newCounter = new Counter();
+      if ((counter = mCounters.putIfAbsent(name, newCounter)) == null) {
+        counter = newCounter;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Get a histogram by name, or create it if it does not exist.
+   * @param name The histogram name.
+   * @return The histogram.
+   */
+  public LatencyHistogram getHistogram(String name) {
+    LatencyHistogram histogram = mHistograms.get(name);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      if ((histogram = mHistograms.putIfAbsent(name, newHistogram)) == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Register a gauge.  An existing gauge with the same name is replaced.
+   * @param name The gauge name.
+   * @param gauge The gauge.
+   */
+  public void registerGauge(String name, Gauge gauge) {
+    mGauges.put(name, gauge);
+  }
+
+  /**
+   * Unregister a gauge.
+   * @param name The gauge name.
+   */
+  public void unregisterGauge(String name) {
+    mGauges.remove(name);
+  }
+
+  /**
+   * Get all counters.
+   * @return A read-only map of counter names to counters.
+   */
+  public Map<String, Counter> getCounters() {
+    return Collections.unmodifiableMap(mCounters);
+  }
+
+  /**
+   * Get all gauges.
+   * @return A read-only map of gauge names to gauges.
+   */
+  public Map<String, Gauge> getGauges() {
+    return Collections.unmodifiableMap(mGauges);
+  }
+
+  /**
+   * Get all histograms.
+   * @return A read-only map of histogram names to histograms.
+   */
+  public Map<String, LatencyHistogram> getHistograms() {
+    return Collections.unmodifiableMap(mHistograms);
+  }
+
+  /**
+   * Add an exporter.  The periodic export starts with the first exporter.
+   * @param exporter
+   */
+  public synchronized void addExporter(Exporter exporter) {
+    mExporters.addIfAbsent(exporter);
+    if (mTimer == null) {
+      mTimer = SharedTimer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          export();
+        }
+      }, mInterval);
+    }
+  }
+
+  /**
+   * Remove an exporter.  The periodic export stops with the last exporter.
+   * @param exporter
+   * @return true if the exporter was added.
+   */
+  public synchronized boolean removeExporter(Exporter exporter) {
+    boolean removed = mExporters.remove(exporter);
+    if (mExporters.isEmpty() && mTimer != null) {
+      mTimer.cancel(false);
+      mTimer = null;
+    }
+    return removed;
+  }
+
+  /**
+   * Push the metrics to all exporters now.
+   */
+  public void export() {
+    for (Exporter exporter : mExporters) {
+      try {
+        exporter.export(this);
+      } catch (Throwable e) {
+        Log.e(TAG, "Exporter failed: "+exporter, e);
+      }
+    }
+  }
+
+  // Time a callback from now until it is run.
+  Runnable timeCallback(Runnable task) {
+    mCallbackDepth.incrementAndGet();
+    return new TimedCallback(task);
+  }
+
+  // The timed callback was dropped by the dispatcher.
+  void callbackDropped() {
+    mCallbackDepth.decrementAndGet();
+    getCounter(CALLBACK_DROPS).inc();
+  }
+
+  // Stop the periodic export.
+  synchronized void close() {
+    mExporters.clear();
+    if (mTimer != null) {
+      mTimer.cancel(false);
+      mTimer = null;
+    }
+  }
+}
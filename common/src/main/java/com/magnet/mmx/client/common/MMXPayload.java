@@ -19,7 +19,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +34,7 @@ import com.magnet.mmx.protocol.Payload;
 import com.magnet.mmx.util.Base64;
 import com.magnet.mmx.util.DisposableFile;
 import com.magnet.mmx.util.FileUtil;
+import com.magnet.mmx.util.GsonData;
 
 /**
  * This class represents an immutable application data to be sent through
@@ -60,6 +63,20 @@ public class MMXPayload implements Serializable {
   private MmxHeaders mMmxMeta;
   private Headers mMeta;
   private Payload mPayload;
+  // The undecoded payload of an incoming message; see getPayloadExt().
+  // Guarded by this object with mPayload.
+  private transient RawPayload mRawPayload;
+  // The serialized headers are reused until the headers are changed.
+  private transient String mMmxMetaJson;
+  // A copy of the recipients in mMmxMetaJson; the caller may change the array
+  // in place between the sends.
+  private transient MMXid[] mToCopy;
+  private transient String mMetaJson;
+  // The meta headers map has been handed out and may be changed directly.
+  private transient boolean mMetaShared;
+  // The file is shared with other copies; sending this copy does not finish
+  // the file.
+  private transient boolean mFileShared;
 
   /**
    * Get the allowable size of the payload and meta data.
@@ -140,6 +157,13 @@ public class MMXPayload implements Serializable {
     mPayload = payload;
   }
 
+  // An internal constructor used by incoming receiver; the payload is decoded
+  // on first access.
+  MMXPayload(MmxHeaders mmxMeta, Headers meta, RawPayload payload) {
+    this(mmxMeta, meta, (Payload) null);
+    mRawPayload = payload;
+  }
+
   /**
    * Set an MMX meta header to this payload.  Duplicated header will be
    * overwritten.
@@ -149,6 +173,8 @@ public class MMXPayload implements Serializable {
    */
   public MMXPayload setMmxMetaData(String name, Object value) {
     mMmxMeta.put(name, value);
+    mMmxMetaJson = null;
+    mToCopy = null;
     return this;
   }
 
@@ -160,6 +186,7 @@ public class MMXPayload implements Serializable {
    */
   public MMXPayload setAllMetaData(Map<String, String> headers) {
     mMeta.putAll(headers);
+    mMetaJson = null;
     return this;
   }
 
@@ -172,6 +199,7 @@ public class MMXPayload implements Serializable {
    */
   public MMXPayload setMetaData(String name, String value) {
     mMeta.put(name, value);
+    mMetaJson = null;
     return this;
   }
 
@@ -182,6 +210,7 @@ public class MMXPayload implements Serializable {
    */
   public MMXPayload setContentType(String value) {
     mMeta.setContentType(value);
+    mMetaJson = null;
     return this;
   }
 
@@ -192,6 +221,7 @@ public class MMXPayload implements Serializable {
    */
   public MMXPayload setContentEncoding(String value) {
     mMeta.setContentEncoding(value);
+    mMetaJson = null;
     return this;
   }
 
@@ -211,7 +241,10 @@ public class MMXPayload implements Serializable {
    * @return This object.
    */
   MMXPayload setFrom(MMXid xid) {
-    mMmxMeta.put(MmxHeaders.FROM, xid);
+    Object old = mMmxMeta.put(MmxHeaders.FROM, xid);
+    if (old != xid && (old == null || !old.equals(xid))) {
+      mMmxMetaJson = null;
+    }
     return this;
   }
 
@@ -222,9 +255,33 @@ public class MMXPayload implements Serializable {
    */
   MMXPayload setTo(MMXid[] xids) {
     mMmxMeta.put(MmxHeaders.TO, xids);
+    if (mToCopy == null || !Arrays.equals(mToCopy, xids)) {
+      mMmxMetaJson = null;
+      mToCopy = (xids == null) ? null : xids.clone();
+    }
     return this;
   }
 
+  /**
+   * Get a copy with its own headers; the content is shared.
+   * @param fileShared true if a file content is still needed after the copy
+   *        is sent.
+   * @return A new payload.
+   */
+  MMXPayload copy(boolean fileShared) {
+    MmxHeaders mmxMeta = new MmxHeaders();
+    mmxMeta.putAll(mMmxMeta);
+    Headers meta = new Headers();
+    meta.putAll(mMeta);
+    MMXPayload payload = new MMXPayload(mmxMeta, meta, getPayloadExt());
+    payload.mFileShared = fileShared;
+    return payload;
+  }
+
+  boolean isFileShared() {
+    return mFileShared;
+  }
+
   /**
    * Unmarshall the sender from the deserialized JSON object to MMX ID.
    * @return null or a sender ID.
@@ -257,7 +314,10 @@ public class MMXPayload implements Serializable {
    * Get the identifier of the data.
    * @return The data identifier.
    */
-  public String getType() {
+  public synchronized String getType() {
+    if (mRawPayload != null) {
+      return mRawPayload.getMsgType();
+    }
     return mPayload.getMsgType();
   }
 
@@ -266,7 +326,7 @@ public class MMXPayload implements Serializable {
    * @return The total payload size.
    */
   public int getDataSize() {
-    return mPayload.getDataSize();
+    return getPayloadExt().getDataSize();
   }
 
   /**
@@ -274,7 +334,7 @@ public class MMXPayload implements Serializable {
    * @return The sent time or null.
    */
   public Date getSentTime() {
-    return mPayload.getSentTime();
+    return getPayloadExt().getSentTime();
   }
 
   /**
@@ -285,10 +345,11 @@ public class MMXPayload implements Serializable {
    */
   public CharSequence getDataAsText() {
     DisposableFile file;
-    if ((file = mPayload.getFile()) != null) {
+    Payload payload = getPayloadExt();
+    if ((file = payload.getFile()) != null) {
       return FileUtil.encodeFile(file, false);
     } else {
-      return mPayload.getData();
+      return payload.getData();
     }
   }
 
@@ -301,18 +362,19 @@ public class MMXPayload implements Serializable {
   public InputStream getDataAsInputStream() throws IOException {
     if (!Constants.BASE64.equalsIgnoreCase(getContentEncoding())) {
       // Content is not base64 encoded, get it as input stream.
-      return mPayload.getDataAsInputStream();
+      return getPayloadExt().getDataAsInputStream();
     }
 
     FileInputStream ins = null;
     File tmpFile = File.createTempFile("mmx", ".bin");
     tmpFile.deleteOnExit();
-    if (mPayload.getData() != null) {
+    Payload payload = getPayloadExt();
+    if (payload.getData() != null) {
       // Memory content is base64 encoded
-      Base64.decodeToFile(mPayload.getData().toString(), tmpFile.getPath());
-    } else if (mPayload.getFile() != null) {
+      Base64.decodeToFile(payload.getData().toString(), tmpFile.getPath());
+    } else if (payload.getFile() != null) {
       // File content is base64 encoded.
-      Base64.decodeFileToFile(mPayload.getFile().getPath(), tmpFile.getPath());
+      Base64.decodeFileToFile(payload.getFile().getPath(), tmpFile.getPath());
     }
 
     ins = new FileInputStream(tmpFile);
@@ -325,6 +387,9 @@ public class MMXPayload implements Serializable {
    * @return The meta headers in this payload.
    */
   public Map<String, String> getAllMetaData() {
+    // The caller may change the map, so the JSON can no longer be reused.
+    mMetaShared = true;
+    mMetaJson = null;
     return mMeta;
   }
 
@@ -384,13 +449,61 @@ public class MMXPayload implements Serializable {
 
   /**
    * @hide
-   * Get the internal payload extension object.
+   * Get the serialized MMX meta headers.  The JSON is reused until the
+   * headers are changed through this payload.
+   * @return The JSON of the MMX meta headers.
+   */
+  String getMmxMetaJson() {
+    if (mMmxMetaJson == null) {
+      mMmxMetaJson = GsonData.getGson().toJson(mMmxMeta);
+    }
+    return mMmxMetaJson;
+  }
+
+  /**
+   * @hide
+   * Get the serialized meta headers.  The JSON is reused until the headers
+   * are changed through this payload; it is not reused once the map has been
+   * handed out by {@link #getAllMetaData()}, because the map may be changed
+   * directly.
+   * @return The JSON of the meta headers.
+   */
+  String getMetaJson() {
+    if (mMetaShared) {
+      return GsonData.getGson().toJson(mMeta);
+    }
+    if (mMetaJson == null) {
+      mMetaJson = GsonData.getGson().toJson(mMeta);
+    }
+    return mMetaJson;
+  }
+
+  /**
+   * @hide
+   * Get the internal payload extension object.  An incoming payload is
+   * decoded once even if it is accessed by multiple threads.
    * @return
    */
-  Payload getPayloadExt() {
+  synchronized Payload getPayloadExt() {
+    if (mRawPayload != null) {
+      mPayload = mRawPayload.decode();
+      mRawPayload = null;
+    }
     return mPayload;
   }
 
+  /**
+   * @hide
+   * Get the chunk ID without decoding the payload.
+   * @return The chunk ID of a partial payload, or null.
+   */
+  synchronized String getCid() {
+    if (mRawPayload != null) {
+      return mRawPayload.getCid();
+    }
+    return (mPayload == null) ? null : mPayload.getCid();
+  }
+
   /**
    * Get the total size of the payload which includes the content data, content
    * data identifier and meta data.
@@ -404,18 +517,24 @@ public class MMXPayload implements Serializable {
         size += header.getValue().length();
       }
     }
-    if (mPayload != null) {
-      String type = mPayload.getMsgType();
+    Payload payload = getPayloadExt();
+    if (payload != null) {
+      String type = payload.getMsgType();
       if (type != null) {
         size += type.length();
       }
-      size += mPayload.getDataSize();
+      size += payload.getDataSize();
     }
     return size;
   }
 
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    getPayloadExt();
+    out.defaultWriteObject();
+  }
+
   @Override
   public String toString() {
-    return "[ mmxmeta=("+mMmxMeta+"), meta=("+mMeta+"), payload="+mPayload+" ]";
+    return "[ mmxmeta=("+mMmxMeta+"), meta=("+mMeta+"), payload="+getPayloadExt()+" ]";
   }
 }
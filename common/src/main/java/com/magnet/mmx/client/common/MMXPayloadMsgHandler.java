@@ -68,10 +68,26 @@ public class MMXPayloadMsgHandler {
     private MmxHeaders mMmxMeta;
     private Headers mMeta;
     private Payload mPayload;
+    private RawPayload mRawPayload;
     private transient CharSequence mXml;
+    // The pre-serialized headers from MMXPayload, or null.
+    private transient String mMmxMetaJson;
+    private transient String mMetaJson;
+    // The parsing time of an incoming extension.
+    private transient long mParseBegin;
+    private transient long mParseEnd;
+    // The file is shared with other stanzas; dispose() does not finish it.
+    private transient boolean mFileShared;
+    private transient boolean mDisposed;
 
     public MMXPacketExtension(MMXPayload payload) {
       this(payload.getMmxMeta(), payload.getMetaExt(), payload.getPayloadExt());
+      mFileShared = payload.isFileShared();
+      mMmxMetaJson = payload.getMmxMetaJson();
+      // The headers may be altered for a binary file payload.
+      if (mMeta != null && mMeta.equals(payload.getMetaExt())) {
+        mMetaJson = payload.getMetaJson();
+      }
     }
 
     public MMXPacketExtension(Map<String, Object> mmxMeta,
@@ -96,6 +112,47 @@ public class MMXPayloadMsgHandler {
       }
     }
 
+    // An incoming extension adopts the decoded headers and keeps the payload
+    // undecoded.
+    MMXPacketExtension(MmxHeaders mmxMeta, Headers meta, RawPayload payload) {
+      mMmxMeta = mmxMeta;
+      mMeta = meta;
+      mRawPayload = payload;
+    }
+
+    /**
+     * Finish the file of an outbound file payload after the stanza is sent or
+     * has failed.  The file is read each time the stanza is serialized, so it
+     * must not be finished before.
+     */
+    synchronized void dispose() {
+      if (mDisposed || mFileShared || mPayload == null) {
+        return;
+      }
+      mDisposed = true;
+      DisposableFile file = mPayload.getFile();
+      if (file != null) {
+        file.finish();
+      }
+    }
+
+    long getParseBegin() {
+      return mParseBegin;
+    }
+
+    long getParseEnd() {
+      return mParseEnd;
+    }
+
+    // Decode the payload once; the extension may be shared by threads.
+    private synchronized Payload getPayloadExt() {
+      if (mPayload == null && mRawPayload != null) {
+        mPayload = mRawPayload.decode();
+        mRawPayload = null;
+      }
+      return mPayload;
+    }
+
     @Override
     public String getElementName() {
       return Constants.MMX;
@@ -115,8 +172,9 @@ public class MMXPayloadMsgHandler {
       // TODO: the SDK should be smart enough not to do XML escape for certain
       // content type or using an option to disable XML escape.
       boolean xmlEsc = true;
+      Payload payload = getPayloadExt();
       Date sentTime = new Date();
-      mPayload.setSentTime(sentTime);
+      payload.setSentTime(sentTime);
 
       XmlStringBuilder xml = new XmlStringBuilder();
       xml.halfOpenElement(getElementName());
@@ -124,38 +182,39 @@ public class MMXPayloadMsgHandler {
       xml.rightAngelBracket();
       if (mMmxMeta != null) {
         xml.openElement(Constants.MMX_MMXMETA);
-        xml.append(GsonData.getGson().toJson(mMmxMeta));
+        xml.append((mMmxMetaJson != null) ? mMmxMetaJson :
+            GsonData.getGson().toJson(mMmxMeta));
         xml.closeElement(Constants.MMX_MMXMETA);
       }
       if (mMeta != null) {
         xml.openElement(Constants.MMX_META);
         // The headers encoded by GSON is XML safe; no XML escape is needed.
-        xml.append(GsonData.getGson().toJson(mMeta));
+        xml.append((mMetaJson != null) ? mMetaJson :
+            GsonData.getGson().toJson(mMeta));
         xml.closeElement(Constants.MMX_META);
       }
       // The <payload/> element is mandatory.
       xml.halfOpenElement(Constants.MMX_PAYLOAD);
-      xml.optAttribute(Constants.MMX_ATTR_MTYPE, mPayload.getMsgType());
-      xml.optAttribute(Constants.MMX_ATTR_CID, mPayload.getCid());
-      xml.attribute(Constants.MMX_ATTR_CHUNK, mPayload.formatChunk());
+      xml.optAttribute(Constants.MMX_ATTR_MTYPE, payload.getMsgType());
+      xml.optAttribute(Constants.MMX_ATTR_CID, payload.getCid());
+      xml.attribute(Constants.MMX_ATTR_CHUNK, payload.formatChunk());
       xml.attribute(Constants.MMX_ATTR_STAMP, TimeUtil.toString(sentTime));
       xml.rightAngelBracket();
       CharSequence csq = null;
-      if (mPayload.getData() != null) {
+      if (payload.getData() != null) {
         if (!xmlEsc) {
-          csq = mPayload.getData();
+          csq = payload.getData();
         } else {
-          if (mPayload.getDataSize() >= Constants.PAYLOAD_THRESHOLD) {
-            csq = FileUtil.encodeForXml(mPayload.getData());
+          if (payload.getDataSize() >= Constants.PAYLOAD_THRESHOLD) {
+            csq = FileUtil.encodeForXml(payload.getData());
           } else {
-            csq = Utils.escapeForXML(mPayload.getData());
+            csq = Utils.escapeForXML(payload.getData());
           }
         }
-      } else if (mPayload.getFile() != null) {
-        csq = FileUtil.encodeFile(mPayload.getFile(), xmlEsc);
-        // TODO: it is problematic if not caching the xml; otherwise, finish
-        // the file after being sent.
-        mPayload.getFile().finish();
+      } else if (payload.getFile() != null) {
+        // Encode the file lazily while the stanza is written; the file is
+        // finished by dispose().
+        csq = new FilePayloadBody(payload.getFile(), xmlEsc);
       }
       if (csq != null) {
         xml.append(csq);
@@ -167,7 +226,10 @@ public class MMXPayloadMsgHandler {
       return xml;
     }
 
-    public MMXPayload getPayload() {
+    public synchronized MMXPayload getPayload() {
+      if (mPayload == null && mRawPayload != null) {
+        return new MMXPayload(mMmxMeta, mMeta, mRawPayload);
+      }
       return new MMXPayload(mMmxMeta, mMeta, mPayload);
     }
   }
@@ -176,29 +238,28 @@ public class MMXPayloadMsgHandler {
   public static class Provider implements PacketExtensionProvider {
     @Override
     public PacketExtension parseExtension(XmlPullParser parser) throws Exception {
+      long begin = System.nanoTime();
       MmxHeaders mmxMeta = null;
       Headers meta = null;
-      Payload payload = null;
+      RawPayload payload = null;
       boolean done = false;
       do {
         int eventType = parser.next();
         if (eventType == XmlPullParser.START_TAG) {
           if (Constants.MMX_MMXMETA.equals(parser.getName())) {
-            mmxMeta = GsonData.getGson().fromJson(parser.nextText(), MmxHeaders.class);
+            mmxMeta = HeaderDecoder.decodeMmxMeta(parser);
           } else if (Constants.MMX_META.equals(parser.getName())) {
-            meta = GsonData.getGson().fromJson(parser.nextText(), Headers.class);
+            meta = HeaderDecoder.decodeMeta(parser);
           } else if (Constants.MMX_PAYLOAD.equals(parser.getName())) {
             String mtype = parser.getAttributeValue(null, Constants.MMX_ATTR_MTYPE);
             String cid = parser.getAttributeValue(null, Constants.MMX_ATTR_CID);
-            Date sentTime = TimeUtil.toDate(parser.getAttributeValue(null,
-                Constants.MMX_ATTR_STAMP));
+            String stamp = parser.getAttributeValue(null,
+                Constants.MMX_ATTR_STAMP);
             String chunk = parser.getAttributeValue(null,
                 Constants.MMX_ATTR_CHUNK);
             String data = parser.nextText();
-            payload = new Payload(mtype, data);
-            payload.setSentTime(sentTime);
-            payload.parseChunk(chunk);
-            payload.setCid(cid);
+            // Defer decoding the payload until it is accessed.
+            payload = new RawPayload(mtype, cid, chunk, stamp, data);
           }
         } else if (eventType == XmlPullParser.END_TAG) {
           if (Constants.MMX.equals(parser.getName())) {
@@ -207,7 +268,10 @@ public class MMXPayloadMsgHandler {
         }
       } while (!done);
 
-      return new MMXPacketExtension(mmxMeta, meta, payload);
+      MMXPacketExtension ext = new MMXPacketExtension(mmxMeta, meta, payload);
+      ext.mParseBegin = begin;
+      ext.mParseEnd = System.nanoTime();
+      return ext;
     }
   }
 
@@ -114,6 +114,92 @@ public interface MMXSettings {
    * means to get the max items configured by the server.
    */
   public static final String PROP_MAX_LAST_PUB_ITEMS = "maxLastPubItems";
+  /**
+   * Max delay in milliseconds to persist the last delivery time of the
+   * published items (int.)  A longer delay reduces the disk I/O when many
+   * items are delivered, but more items may be delivered again after a crash.
+   * 0 will persist every delivery.  Default is 1000.
+   */
+  public static final String PROP_DELIVERY_FLUSH_INTERVAL = "deliveryFlushInterval";
+  /**
+   * Time in milliseconds to keep an incomplete chunked payload since its last
+   * received chunk (int.)  The partial file is deleted afterward.  0 will keep
+   * the partial files until the connection is closed.  Default is 600000.
+   */
+  public static final String PROP_CHUNK_TTL = "chunkTTL";
+  /**
+   * How the messaging callbacks are dispatched (String.)  {@link #CALLBACK_SERIAL}
+   * runs all callbacks in one thread, {@link #CALLBACK_POOL} runs callbacks in
+   * a thread pool without ordering, and {@link #CALLBACK_ORDERED} runs
+   * callbacks in a thread pool while keeping the order per sender or per
+   * topic.  Default is {@link #CALLBACK_SERIAL}.
+   */
+  public static final String PROP_CALLBACK_MODE = "callbackMode";
+  /**
+   * Max number of callback threads for the pool or ordered callback mode
+   * (int.)  Default is the number of available processors.
+   */
+  public static final String PROP_CALLBACK_THREADS = "callbackThreads";
+  public static final String CALLBACK_SERIAL = "serial";
+  public static final String CALLBACK_POOL = "pool";
+  public static final String CALLBACK_ORDERED = "ordered";
+  /**
+   * Max number of pending messaging callbacks (int.)  Default is 0 which means
+   * unbounded.
+   */
+  public static final String PROP_CALLBACK_CAPACITY = "callbackCapacity";
+  /**
+   * What to do when the pending callbacks reach the capacity (String.)
+   * {@link #OVERFLOW_BLOCK} blocks the incoming stanzas so the server is
+   * throttled by TCP, {@link #OVERFLOW_DROP} drops the normal (unreliable)
+   * messages first, and {@link #OVERFLOW_SUSPEND} suspends the message
+   * delivery by setting the priority to {@link MMXConnection#NOT_AVAILABLE}
+   * until the pending callbacks fall to the low-water mark.  Default is
+   * {@link #OVERFLOW_BLOCK}.  In the block mode, the callbacks should not
+   * wait for any IQ results; otherwise the connection may stall until the IQ
+   * times out.
+   */
+  public static final String PROP_CALLBACK_OVERFLOW = "callbackOverflow";
+  /**
+   * The low-water mark of the pending callbacks to resume the delivery (int.)
+   * Default is half of the capacity.
+   */
+  public static final String PROP_CALLBACK_LOW_WATER = "callbackLowWater";
+  public static final String OVERFLOW_BLOCK = "block";
+  public static final String OVERFLOW_DROP = "drop";
+  public static final String OVERFLOW_SUSPEND = "suspend";
+  /**
+   * Max number of outstanding IQ requests in a bulk operation, max number
+   * of unanswered acks, max number of unaccepted batches in a batched
+   * multicast, or max number of unaccepted messages while sending the queued
+   * items (int.)  Default is 32.
+   */
+  public static final String PROP_MAX_INFLIGHT_IQS = "maxInflightIQs";
+  /**
+   * Max number of recipients in each batch of a batched multicast (int.)
+   * Default is 1000.
+   */
+  public static final String PROP_MULTICAST_BATCH_SIZE = "multicastBatchSize";
+  /**
+   * Max number of acks of the received reliable messages to be sent in a
+   * batch (int.)  Default is 64.
+   */
+  public static final String PROP_ACK_BATCH_SIZE = "ackBatchSize";
+  /**
+   * Max time in milliseconds to collect the acks for a batch (int.)  Default
+   * is 20.
+   */
+  public static final String PROP_ACK_WINDOW = "ackWindow";
+  /**
+   * Enable the metrics of the connection (boolean.)  Default is false.
+   * @see MMXConnection#getMetrics()
+   */
+  public static final String PROP_ENABLE_METRICS = "enableMetrics";
+  /**
+   * Interval in milliseconds to push the metrics to the exporters (int.)
+   * Default is 60000.
+   */
+  public static final String PROP_METRICS_INTERVAL = "metricsInterval";
 
   public static final String PROP_PRESENCE_MODE = "presenceMode";
   public static final String PROP_PRESENCE_STATUS = "presenceStatus";
@@ -114,7 +114,7 @@ public class MMXSignalMsgHandler {
         int eventType = parser.next();
         if (eventType == XmlPullParser.START_TAG) {
           if (Constants.MMX_MMXMETA.equals(parser.getName())) {
-            mmxMeta = GsonData.getGson().fromJson(parser.nextText(), MmxHeaders.class);
+            mmxMeta = HeaderDecoder.decodeMmxMeta(parser);
           }
         } else if (eventType == XmlPullParser.END_TAG) {
           if (Constants.MMX.equals(parser.getName())) {
@@ -0,0 +1,78 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.client.common;
+
+/**
+ * An interceptor of the timing events on the hot paths of a connection.  Each
+ * operation fires a begin event and an end event correlated by the message,
+ * item or packet ID, so the end-to-end latency of a message can be decomposed
+ * by combining the events of both ends.  The timestamps are from
+ * {@link System#nanoTime()}.  The interceptors are called synchronously in
+ * the calling threads (including the Smack reader thread); they must be
+ * thread-safe and must not block.
+ * @see MMXConnection#addTraceInterceptor(MMXTraceInterceptor)
+ */
+public interface MMXTraceInterceptor {
+  /**
+   * The traced operations.
+   */
+  public enum Event {
+    /**
+     * Sending a message; the ID is the message ID.
+     */
+    SEND_PAYLOAD,
+    /**
+     * Publishing an item to a topic; the ID is the item ID.
+     */
+    PUBLISH,
+    /**
+     * An IQ round-trip from sending the request to receiving the reply or
+     * timing out; the ID is the packet ID.
+     */
+    IQ,
+    /**
+     * Parsing an incoming MMX stanza in the Smack reader thread; the ID is
+     * the message ID.  Both events are fired after the stanza is parsed.
+     */
+    PARSE,
+    /**
+     * A messaging callback from dispatching it to its completion; the ID is
+     * the message or item ID.
+     */
+    DISPATCH,
+    /**
+     * Acknowledging a received reliable message from queuing the ack to
+     * receiving the reply; the ID is the message ID.
+     */
+    ACK
+  }
+
+  /**
+   * An operation has begun.
+   * @param event The operation.
+   * @param id The message, item or packet ID.
+   * @param nanoTime The timestamp.
+   */
+  public void onBegin(Event event, String id, long nanoTime);
+
+  /**
+   * An operation has ended.
+   * @param event The operation.
+   * @param id The message, item or packet ID.
+   * @param nanoTime The timestamp.
+   * @param success false if the operation failed or timed out.
+   */
+  public void onEnd(Event event, String id, long nanoTime, boolean success);
+}
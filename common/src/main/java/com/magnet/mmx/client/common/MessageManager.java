@@ -18,10 +18,14 @@ package com.magnet.mmx.client.common;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
@@ -59,7 +63,6 @@ import com.magnet.mmx.protocol.MsgsState;
 import com.magnet.mmx.protocol.MsgsState.MessageStatus;
 import com.magnet.mmx.protocol.StatusCode;
 import com.magnet.mmx.util.Converter;
-import com.magnet.mmx.util.QueueExecutor;
 import com.magnet.mmx.util.TagUtil;
 import com.magnet.mmx.util.XIDUtil;
 
@@ -69,10 +72,18 @@ import com.magnet.mmx.util.XIDUtil;
  */
 public class MessageManager implements Closeable {
   private static final String TAG = "MessageManager";
-  private int mAckErrors;
-  private int mAckCounters;
+  static final int DEFAULT_MAX_INFLIGHT_IQS = 32;
+  private static final int DEFAULT_MULTICAST_BATCH_SIZE = 1000;
+  private static final int DEFAULT_ACK_BATCH_SIZE = 64;
+  private static final int DEFAULT_ACK_WINDOW = 20;
   private final MMXConnection mCon;
-  private QueueExecutor mAckExecutor;
+  private AckSender mAckSender;
+  // Batch message ID to its batched multicast.
+  private final ConcurrentHashMap<String, MulticastFanOut> mFanOuts =
+      new ConcurrentHashMap<String, MulticastFanOut>();
+  // Message ID to the pending acceptance of a reliable message.
+  private final ConcurrentHashMap<String, IQFuture<List<MMXid>>> mAccepts =
+      new ConcurrentHashMap<String, IQFuture<List<MMXid>>>();
   private final static Creator sCreator = new Creator() {
     @Override
     public Object newInstance(MMXConnection con) {
@@ -92,13 +103,30 @@ public class MessageManager implements Closeable {
         final NodeExtension nodeExt = event.getEvent();
         final MMXTopic topic = PubSubManager.getInstance(mCon).nodeToTopic(nodeExt.getNode());
         if (PubSubElementType.ITEMS_EVENT.getElementName().equals(nodeExt.getElementName())) {
-          mCon.getExecutor().post(new Runnable() {
+          MMXMetrics metrics = mCon.getMetrics();
+          if (metrics != null) {
+            metrics.getCounter(MMXMetrics.ITEMS_IN).add(
+                ((ItemsExtension) nodeExt).getItems().size());
+          }
+          if (mCon.isTracing()) {
+            traceItems((ItemsExtension) nodeExt);
+          }
+          // getlatest re-sends the last delivered item if it has the same
+          // time as "since"; skip it.
+          final String lastItemId = PubSubManager.getInstance(mCon)
+              .getLastDeliveredItemId(nodeExt.getNode());
+          // Keep the items in order per topic.
+          mCon.dispatch(nodeExt.getNode(), new Runnable() {
             @Override
             public void run() {
               ItemsExtension items = (ItemsExtension) nodeExt;
               List<PayloadItem<MMXPacketExtension>> list =
                   (List<PayloadItem<MMXPacketExtension>>) items.getItems();
               for (Item listItem : list) {
+                if (lastItemId != null && lastItemId.equals(listItem.getId())) {
+                  Log.d(TAG, "Skipping delivered item ID="+listItem.getId());
+                  continue;
+                }
                 try {
                   PayloadItem<MMXPacketExtension> item =
                       (PayloadItem<MMXPacketExtension>) listItem;
@@ -106,6 +134,8 @@ public class MessageManager implements Closeable {
                   MMXMessage msg = new MMXMessage(item.getId(), from, to,
                                                   mmx.getPayload());
                   listener.onItemReceived(msg, topic);
+                  mCon.traceEnd(MMXTraceInterceptor.Event.DISPATCH,
+                      item.getId(), true);
                 } catch (ClassCastException e) {
                   // Ignore all non-MMX published item.
                   Log.w(TAG, "Ignoring non-MMX published item ID="+listItem.getId());
@@ -125,8 +155,15 @@ public class MessageManager implements Closeable {
 //                ", tod="+TimeUtil.toString(new Date()), null);
 //          }
 
-          // Save the last published item delivery time.
-          PubSubManager.getInstance(mCon).saveLastDelivery(new Date());
+          // Save the last published item and its delivery time of this topic.
+          String deliveredItemId = null;
+          for (Object item : ((ItemsExtension) nodeExt).getItems()) {
+            if (item instanceof Item) {
+              deliveredItemId = ((Item) item).getId();
+            }
+          }
+          PubSubManager.getInstance(mCon).saveLastDelivery(nodeExt.getNode(),
+              deliveredItemId, System.currentTimeMillis());
         } else {
           Log.w(TAG, "Ignoring pubsub event: "+
                       nodeExt.getElementName()+", topic="+topic);
@@ -141,7 +178,7 @@ public class MessageManager implements Closeable {
       final MMXMessageListener listener = mCon.getMessageListener();
       if (listener != null) {
         final MMXErrorMessage errMsg = new MMXErrorMessage((Message) packet);
-        mCon.getExecutor().post(new Runnable() {
+        mCon.dispatch(getConversationKey(packet.getFrom()), new Runnable() {
           @Override
           public void run() {
             listener.onErrorMessageReceived(errMsg);
@@ -162,12 +199,12 @@ public class MessageManager implements Closeable {
         if (orgMsgId != null) {
           // Original sender received the delivery receipt.
           if (listener != null) {
-            mCon.getExecutor().post(new Runnable() {
+            mCon.dispatch(getConversationKey(packet.getFrom()), new Runnable() {
               @Override
               public void run() {
                 listener.onMessageDelivered(msg.getFrom(), orgMsgId);
-                // Must run in a thread because IQ is a blocking call.
-                mAckExecutor.post(new SendAck(packet));
+                mAckSender.post(packet.getFrom(), packet.getTo(),
+                    packet.getPacketID());
               }
             });
           }
@@ -176,30 +213,50 @@ public class MessageManager implements Closeable {
         // A mmx stanza is received (partially or completely) along with an
         // optional delivery receipt request.  We don't support a delivery
         // receipt request without mmx stanza yet.
+        if (msg.getPayload() != null) {
+          mCon.incCounter(MMXMetrics.MESSAGES_IN);
+          if (mCon.isTracing()) {
+            MMXPacketExtension ext = packet.getExtension(Constants.MMX,
+                Constants.MMX_NS_MSG_PAYLOAD);
+            mCon.trace(MMXTraceInterceptor.Event.PARSE, msg.getId(),
+                ext.getParseBegin(), ext.getParseEnd());
+          }
+        }
         if (listener != null && msg.getPayload() != null) {
-          if (msg.assemble(mCon.getContext())) {
+          if (msg.assemble(ChunkAssembler.getInstance(mCon))) {
 //            // The message is from off-line storage.
 //            DelayInfo delay = packet.getExtension("delay", "urn:xmpp:delay");
 //            if (delay != null) {
 //              Date tod = delay.getStamp();
 //              mCon.getContext().debug(TAG, "delay="+TimeUtil.toString(tod), null);
 //            }
-            mCon.getExecutor().post(new Runnable() {
+            // Unreliable messages may be dropped if the callback queue is full.
+            boolean droppable = (xmppmsg.getType() == Type.normal);
+            mCon.traceBegin(MMXTraceInterceptor.Event.DISPATCH, msg.getId());
+            if (!mCon.dispatch(getConversationKey(packet.getFrom()), new Runnable() {
               @Override
               public void run() {
                 try {
                   listener.onMessageReceived(msg, msg.getReceiptId());
+                  mCon.traceEnd(MMXTraceInterceptor.Event.DISPATCH,
+                      msg.getId(), true);
                   // Only reliable messages (non-normal type with a body) will trigger
                   // an ACK to be sent.
                   if (xmppmsg.getType() != Type.normal) {
-                    // Must run in a thread because IQ is a blocking call.
-                    mAckExecutor.post(new SendAck(packet));
+                    mAckSender.post(packet.getFrom(), packet.getTo(),
+                        packet.getPacketID());
                   }
                 } catch (MessageHandlingException ex) {
+                  mCon.traceEnd(MMXTraceInterceptor.Event.DISPATCH,
+                      msg.getId(), false);
                   Log.i(TAG, "Unable to handle the message. NOT sending the ack.", ex);
                 }
               }
-            });
+            }, droppable)) {
+              mCon.traceEnd(MMXTraceInterceptor.Event.DISPATCH, msg.getId(),
+                  false);
+              Log.d(TAG, "Callback queue is full, dropped msg ID="+msg.getId());
+            }
           } else {
             // Partial message is received.
           }
@@ -214,7 +271,8 @@ public class MessageManager implements Closeable {
   private final PacketListener mMsgSignalPacketListener = new PacketListener() {
     @Override
     public void processPacket(final Packet packet) throws NotConnectedException {
-      mCon.getExecutor().post(new Runnable() {
+      // The signals are from the server; keep ACK_BEGIN before ACK_END.
+      mCon.dispatch(getConversationKey(packet.getFrom()), new Runnable() {
         @Override
         public void run() {
           final MMXMessageListener listener = mCon.getMessageListener();
@@ -222,6 +280,24 @@ public class MessageManager implements Closeable {
               Constants.MMX, Constants.MMX_NS_MSG_SIGNAL);
           MmxHeaders mmxMeta = extension.getMmxMeta();
           SignalMsg sigMsg = SignalMsg.parse(mmxMeta);
+          if (sigMsg == null) {
+            return;
+          }
+          // The signals of a batch are aggregated by its multicast.
+          MulticastFanOut fanOut = mFanOuts.get(sigMsg.getMsgId());
+          if (fanOut != null) {
+            fanOut.onSignal(sigMsg.getType(), sigMsg.getMsgId(),
+                sigMsg.getInvalidReceivers(), listener);
+            return;
+          }
+          if (sigMsg.getType() != SignalMsg.Type.ACK_BEGIN) {
+            IQFuture<List<MMXid>> accept = mAccepts.remove(sigMsg.getMsgId());
+            if (accept != null) {
+              List<MMXid> invalid = sigMsg.getInvalidReceivers();
+              accept.onReceived((invalid != null) ? invalid :
+                Collections.<MMXid>emptyList());
+            }
+          }
           if (sigMsg.getType() == SignalMsg.Type.ACK_ONCE) {
             mCon.getMessageListener().onMessageAccepted(
                 sigMsg.getInvalidReceivers(), sigMsg.getMsgId());
@@ -253,8 +329,9 @@ public class MessageManager implements Closeable {
   private final PacketListener mMsgPayloadSentListener = new PacketListener() {
     @Override
     public void processPacket(final Packet packet) throws NotConnectedException {
+      disposePayload(packet);
       if (mCon.getMessageListener() != null) {
-        mCon.getExecutor().post(new Runnable() {
+        mCon.dispatch(getConversationKey(packet.getTo()), new Runnable() {
           @Override
           public void run() {
             mCon.getMessageListener().onMessageSent(packet.getPacketID());
@@ -267,8 +344,14 @@ public class MessageManager implements Closeable {
   private final PacketListener mMsgPayloadFailedListener = new PacketListener() {
     @Override
     public void processPacket(final Packet packet) throws NotConnectedException {
+      disposePayload(packet);
+      IQFuture<List<MMXid>> accept = mAccepts.remove(packet.getPacketID());
+      if (accept != null) {
+        accept.fail(new MMXException("Message is rejected: "+
+            packet.getPacketID(), StatusCode.BAD_REQUEST));
+      }
       if (mCon.getMessageListener() != null) {
-        mCon.getExecutor().post(new Runnable() {
+        mCon.dispatch(getConversationKey(packet.getTo()), new Runnable() {
           @Override
           public void run() {
             mCon.getMessageListener().onMessageFailed(packet.getPacketID());
@@ -278,6 +361,21 @@ public class MessageManager implements Closeable {
     }
   };
 
+  // Finish the file of a file payload once its message is sent or failed.
+  private static void disposePayload(Packet packet) {
+    MMXPacketExtension extension = packet.getExtension(Constants.MMX,
+        Constants.MMX_NS_MSG_PAYLOAD);
+    if (extension != null) {
+      extension.dispose();
+    }
+  }
+
+  // The callbacks for the same peer are run in order; use the bared JID so
+  // the messages from multiple devices of a peer are in order too.
+  private static String getConversationKey(String jid) {
+    return (jid == null) ? null : XIDUtil.getBaredXID(jid);
+  }
+
   /**
    * @hide
    * Get the instance of MessageManager.
@@ -313,26 +411,6 @@ public class MessageManager implements Closeable {
     }
   }
 
-  private class SendAck implements Runnable {
-    private final Packet mPacket;
-
-    public SendAck(Packet packet) {
-      mPacket = packet;
-    }
-
-    @Override
-    public void run() {
-      try {
-        MessageManager.this.mAckCounters++;
-        MessageManager.this.sendAck(mPacket.getFrom(), mPacket.getTo(),
-                                     mPacket.getPacketID());
-      } catch (Throwable e) {
-        MessageManager.this.mAckErrors++;
-        e.printStackTrace();
-      }
-    }
-  }
-
   private static class PacketCopy extends Packet {
     private final CharSequence text;
 
@@ -355,8 +433,21 @@ public class MessageManager implements Closeable {
 
   protected MessageManager(MMXConnection con) {
     mCon = con;
-    mAckExecutor = new QueueExecutor("MMX Ack Sender", true);
-    mAckExecutor.start();
+    MMXSettings settings = con.getSettings();
+    mAckSender = new AckSender(con, this,
+        settings.getInt(MMXSettings.PROP_ACK_BATCH_SIZE, DEFAULT_ACK_BATCH_SIZE),
+        settings.getInt(MMXSettings.PROP_ACK_WINDOW, DEFAULT_ACK_WINDOW),
+        settings.getInt(MMXSettings.PROP_MAX_INFLIGHT_IQS, DEFAULT_MAX_INFLIGHT_IQS));
+    mAckSender.start();
+    MMXMetrics metrics = con.getMetrics();
+    if (metrics != null) {
+      metrics.registerGauge(MMXMetrics.ACK_BACKLOG, new MMXMetrics.Gauge() {
+        @Override
+        public long getValue() {
+          return mAckSender.getBacklog();
+        }
+      });
+    }
     MsgMMXIQHandler<MsgsState.Request, MsgsState.Response> msgIQHandler = new
         MsgMMXIQHandler<MsgsState.Request, MsgsState.Response>();
     msgIQHandler.registerIQProvider();
@@ -366,10 +457,19 @@ public class MessageManager implements Closeable {
 
   @Override
   public void close() throws IOException {
-    if (mAckExecutor != null) {
-      mAckExecutor.quit();
-      mAckExecutor = null;
+    if (mAckSender != null) {
+      mAckSender.quit();
     }
+    for (MulticastFanOut fanOut : mFanOuts.values()) {
+      fanOut.getFuture().fail(new MMXException("Connection is closed",
+          Constants.STATUS_CODE_500));
+    }
+    mFanOuts.clear();
+    for (IQFuture<List<MMXid>> accept : mAccepts.values()) {
+      accept.fail(new MMXException("Connection is closed",
+          Constants.STATUS_CODE_500));
+    }
+    mAccepts.clear();
   }
 
   @Override
@@ -479,6 +579,7 @@ public class MessageManager implements Closeable {
     if (msgId == null) {
       msgId = mCon.genId();
     }
+    mCon.traceBegin(MMXTraceInterceptor.Event.SEND_PAYLOAD, msgId);
     msg.setPacketID(msgId);
     if (options != null && options.isReceiptEnabled()) {
       msg.addExtension(new DeliveryReceiptRequest());
@@ -510,13 +611,123 @@ public class MessageManager implements Closeable {
         msg.setTo(xids[0]);
         xmppCon.sendPacket(msg);
       }
+      mCon.incCounter(MMXMetrics.MESSAGES_OUT);
+      mCon.traceEnd(MMXTraceInterceptor.Event.SEND_PAYLOAD, msgId, true);
 
       return msg.getPacketID();
     } catch (Throwable e) {
+      mCon.traceEnd(MMXTraceInterceptor.Event.SEND_PAYLOAD, msgId, false);
       throw new MMXException(e.getMessage(), e);
     }
   }
 
+  /**
+   * Send a reliable payload to a large number of recipients.  The recipients
+   * are split into batches bounded by {@link MMXSettings#PROP_MULTICAST_BATCH_SIZE}
+   * and by {@link MMXPayload#getMaxSizeAllowed()}, and each batch is sent as
+   * a multicast message.  Up to {@link MMXSettings#PROP_MAX_INFLIGHT_IQS}
+   * batches are outstanding until the server accepts them.  The listener gets
+   * one {@link MMXMessageListener#onMessageSubmitted(String)} and one
+   * {@link MMXMessageListener#onMessageAccepted(List, String)} with the
+   * returned message ID, and the future completes with the invalid
+   * recipients of all batches.
+   *
+   * @param to An array of MMX ID's for user or end-point.
+   * @param payload A non-null payload object.
+   * @param options Send options or null.
+   * @return A future of the aggregated result.
+   * @throws MMXException
+   */
+  public IQFuture<MulticastResult> sendMulticast(MMXid[] to,
+      MMXPayload payload, Options options) throws MMXException {
+    if (payload == null) {
+      throw new MMXException("Payload cannot be null", StatusCode.BAD_REQUEST);
+    }
+    if (to == null || to.length == 0) {
+      throw new MMXException("Recipients cannot be null or empty",
+          StatusCode.BAD_REQUEST);
+    }
+    validatePayload(payload);
+
+    MMXSettings settings = mCon.getSettings();
+    MulticastFanOut fanOut = new MulticastFanOut(this, mCon.genId(), to,
+        payload, options, settings.getInt(MMXSettings.PROP_MULTICAST_BATCH_SIZE,
+            DEFAULT_MULTICAST_BATCH_SIZE), settings.getInt(
+            MMXSettings.PROP_MAX_INFLIGHT_IQS, DEFAULT_MAX_INFLIGHT_IQS),
+        MMXIQHandler.TIMEOUT);
+    for (String batchId : fanOut.getBatchIds()) {
+      mFanOuts.put(batchId, fanOut);
+    }
+    fanOut.start();
+    return fanOut.getFuture();
+  }
+
+  /**
+   * Send a payload with a message ID, and get a future completed with the
+   * invalid recipients when the server accepts it (ACK_END or ACK_ONCE.)  A
+   * droppable payload is completed once it is sent.  The future fails with
+   * {@link IQFuture#timeout()} if the message is not accepted within the
+   * timeout.
+   * @param msgId A unique message ID.
+   * @param to An array of MMX ID's for user or end-point.
+   * @param payload A non-null payload object.
+   * @param options Send options or null.
+   * @param timeout The timeout in milliseconds, or 0 for no timeout.
+   * @return A future of the invalid recipients.
+   */
+  IQFuture<List<MMXid>> sendPayloadAsync(final String msgId, MMXid[] to,
+      MMXPayload payload, Options options, long timeout) {
+    final IQFuture<List<MMXid>> future = new IQFuture<List<MMXid>>(null,
+        timeout);
+    boolean droppable = options != null && options.isDroppable();
+    if (!droppable) {
+      mAccepts.put(msgId, future);
+      future.setCanceller(new Runnable() {
+        @Override
+        public void run() {
+          mAccepts.remove(msgId, future);
+        }
+      });
+      if (timeout > 0) {
+        final ScheduledFuture<?> timer = SharedTimer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            future.timeout();
+          }
+        }, timeout);
+        future.addCallback(new IQFuture.Callback<List<MMXid>>() {
+          @Override
+          public void onResult(List<MMXid> invalidRecipients) {
+            timer.cancel(false);
+          }
+
+          @Override
+          public void onFailure(MMXException cause) {
+            timer.cancel(false);
+          }
+        }, null);
+      }
+    }
+    try {
+      sendPayload(msgId, to, payload, options);
+    } catch (MMXException e) {
+      mAccepts.remove(msgId, future);
+      future.fail(e);
+      return future;
+    }
+    if (droppable) {
+      future.onReceived(Collections.<MMXid>emptyList());
+    }
+    return future;
+  }
+
+  // Stop routing the signals of the batches to the multicast.
+  void removeFanOut(MulticastFanOut fanOut) {
+    for (String batchId : fanOut.getBatchIds()) {
+      mFanOuts.remove(batchId, fanOut);
+    }
+  }
+
   /**
    * Send a reliable error message as a reply to a message.  The following
    * code fragment shows how to send MMXError payload against the original
@@ -625,6 +836,24 @@ public class MessageManager implements Closeable {
     return result;
   }
 
+  // Fire the parse events and the dispatch begin events of the published
+  // items.
+  private void traceItems(ItemsExtension items) {
+    for (Object obj : items.getItems()) {
+      if (!(obj instanceof PayloadItem)) {
+        continue;
+      }
+      PayloadItem<?> item = (PayloadItem<?>) obj;
+      Object ext = item.getPayload();
+      if (ext instanceof MMXPacketExtension) {
+        mCon.trace(MMXTraceInterceptor.Event.PARSE, item.getId(),
+            ((MMXPacketExtension) ext).getParseBegin(),
+            ((MMXPacketExtension) ext).getParseEnd());
+        mCon.traceBegin(MMXTraceInterceptor.Event.DISPATCH, item.getId());
+      }
+    }
+  }
+
   // Generate a delivery receipt ID based on the sender XID and msg ID.
   static String genReceiptId(String from, String msgId) {
     return Converter.Scrambler.convert((msgId+'#'+from)).toString();
@@ -662,6 +891,14 @@ public class MessageManager implements Closeable {
     }
   }
 
+  // Send an ack without blocking; used by the ack sender to pipeline acks.
+  IQFuture<MMXStatus> sendAckAsync(String sender, String rcvr, String msgId)
+      throws MMXException {
+    MsgAck ack = new MsgAck(sender, rcvr, msgId);
+    return new AckMMXIQHandler().sendSetIQAsync(mCon, null,
+        Constants.MessageCommand.ack.toString(), ack, MMXStatus.class, 0);
+  }
+
   /**
    * @hide
    * Get the tags from a message.
@@ -673,6 +910,17 @@ public class MessageManager implements Closeable {
     return getTags(MsgId.IdType.message, msgId);
   }
 
+  /**
+   * @hide
+   * Get the tags from a message without blocking.
+   * @param msgId The message ID.
+   * @return A future of the message tags.
+   * @throws MMXException
+   */
+  public IQFuture<MsgTags> getAllTagsAsync(String msgId) throws MMXException {
+    return getTagsAsync(MsgId.IdType.message, msgId);
+  }
+
   /**
    * @hide
    * Set the tags to a message. The entire old tags will be overwritten by the
@@ -721,6 +969,17 @@ public class MessageManager implements Closeable {
     return getEvents(MsgId.IdType.message, msgId);
   }
 
+  /**
+   * @hide
+   * Get the events from a message without blocking.
+   * @param msgId The message ID.
+   * @return A future of the message events.
+   * @throws MMXException
+   */
+  public IQFuture<MsgEvents> getEventsAsync(String msgId) throws MMXException {
+    return getEventsAsync(MsgId.IdType.message, msgId);
+  }
+
   /**
    * @hide
    * Set the events to a message.  The entire old events will be overwritten
@@ -758,6 +1017,115 @@ public class MessageManager implements Closeable {
     return doEvents(MessageCommand.removeEvents, MsgId.IdType.message, msgId, events);
   }
 
+  /**
+   * @hide
+   * Get the tags from multiple messages.  The requests are pipelined.
+   * @param msgIds A list of message ID's.
+   * @return A map of message ID and its tags; the tags are null if failed.
+   * @throws MMXException
+   */
+  public Map<String, MsgTags> bulkGetTags(List<String> msgIds) throws MMXException {
+    return bulkGetTags(MsgId.IdType.message, msgIds);
+  }
+
+  /**
+   * @hide
+   * Set the tags to multiple messages.  The entire old tags will be
+   * overwritten by the new tags.  The requests are pipelined.
+   * @param msgIds A list of message ID's.
+   * @param tags A list of tags.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkSetTags(List<String> msgIds,
+      List<String> tags) throws MMXException {
+    return bulkDoTags(MessageCommand.setTags, MsgId.IdType.message,
+        msgIds, tags);
+  }
+
+  /**
+   * @hide
+   * Add the tags to multiple messages.  The requests are pipelined.
+   * @param msgIds A list of message ID's.
+   * @param tags A list of tags.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkAddTags(List<String> msgIds,
+      List<String> tags) throws MMXException {
+    return bulkDoTags(MessageCommand.addTags, MsgId.IdType.message,
+        msgIds, tags);
+  }
+
+  /**
+   * @hide
+   * Remove the tags from multiple messages.  The requests are pipelined.
+   * @param msgIds A list of message ID's.
+   * @param tags A list of tags.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkRemoveTags(List<String> msgIds,
+      List<String> tags) throws MMXException {
+    return bulkDoTags(MessageCommand.removeTags, MsgId.IdType.message,
+        msgIds, tags);
+  }
+
+  /**
+   * @hide
+   * Get the events from multiple messages.  The requests are pipelined.
+   * @param msgIds A list of message ID's.
+   * @return A map of message ID and its events; the events are null if failed.
+   * @throws MMXException
+   */
+  public Map<String, MsgEvents> bulkGetEvents(List<String> msgIds)
+      throws MMXException {
+    return bulkGetEvents(MsgId.IdType.message, msgIds);
+  }
+
+  /**
+   * @hide
+   * Set the events to multiple messages.  The entire old events will be
+   * overwritten by the new events.  The requests are pipelined.
+   * @param msgIds A list of message ID's.
+   * @param events A list of events.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkSetEvents(List<String> msgIds,
+      List<String> events) throws MMXException {
+    return bulkDoEvents(MessageCommand.setEvents, MsgId.IdType.message,
+        msgIds, events);
+  }
+
+  /**
+   * @hide
+   * Add the events to multiple messages.  The requests are pipelined.
+   * @param msgIds A list of message ID's.
+   * @param events A list of events.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkAddEvents(List<String> msgIds,
+      List<String> events) throws MMXException {
+    return bulkDoEvents(MessageCommand.addEvents, MsgId.IdType.message,
+        msgIds, events);
+  }
+
+  /**
+   * @hide
+   * Remove the events from multiple messages.  The requests are pipelined.
+   * @param msgIds A list of message ID's.
+   * @param events A list of events.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkRemoveEvents(List<String> msgIds,
+      List<String> events) throws MMXException {
+    return bulkDoEvents(MessageCommand.removeEvents, MsgId.IdType.message,
+        msgIds, events);
+  }
+
   /**
    * @hide
    * Validate the payload before sending it to the server.
@@ -773,20 +1141,31 @@ public class MessageManager implements Closeable {
 
   // Used by MessageManager and PushManager.
   MsgTags getTags(MsgId.IdType idType, String msgId) throws MMXException {
+    return getTagsAsync(idType, msgId).getResult();
+  }
+
+  // Used by MessageManager and PushManager.
+  IQFuture<MsgTags> getTagsAsync(MsgId.IdType idType, String msgId)
+                                  throws MMXException {
     if (msgId == null) {
       throw new MMXException("Message ID cannot be null", StatusCode.BAD_REQUEST);
     }
     MsgMMXIQHandler<MsgId, MsgTags> iqHandler = new
         MsgMMXIQHandler<MsgId, MsgTags>();
-    iqHandler.sendGetIQ(mCon, Constants.MessageCommand.getTags.toString(),
-        new MsgId(idType, msgId), MsgTags.class, iqHandler);
-    MsgTags msgTags = iqHandler.getResult();
-    return msgTags;
+    return iqHandler.sendGetIQAsync(mCon, null,
+        Constants.MessageCommand.getTags.toString(), new MsgId(idType, msgId),
+        MsgTags.class, 0);
   }
 
   // Used by MessageManager and PushManager.
   MMXStatus doTags(MessageCommand cmd, MsgId.IdType idType, String msgId,
                             List<String> tags) throws MMXException {
+    return doTagsAsync(cmd, idType, msgId, tags).getResult();
+  }
+
+  // Used by MessageManager and PushManager.
+  IQFuture<MMXStatus> doTagsAsync(MessageCommand cmd, MsgId.IdType idType,
+                      String msgId, List<String> tags) throws MMXException {
     if (msgId == null) {
       throw new MMXException("Message ID cannot be null", StatusCode.BAD_REQUEST);
     }
@@ -803,26 +1182,37 @@ public class MessageManager implements Closeable {
     MsgEvents msgTags = new MsgEvents(idType, msgId, tags);
     MsgMMXIQHandler<MsgEvents, MMXStatus> iqHandler = new
         MsgMMXIQHandler<MsgEvents, MMXStatus>();
-    iqHandler.sendSetIQ(mCon, cmd.toString(), msgTags, MMXStatus.class, iqHandler);
-    return iqHandler.getResult();
+    return iqHandler.sendSetIQAsync(mCon, null, cmd.toString(), msgTags,
+        MMXStatus.class, 0);
   }
 
   // Used by MessageManager and PushManager.
   MsgEvents getEvents(MsgId.IdType idType, String msgId) throws MMXException {
+    return getEventsAsync(idType, msgId).getResult();
+  }
+
+  // Used by MessageManager and PushManager.
+  IQFuture<MsgEvents> getEventsAsync(MsgId.IdType idType, String msgId)
+                                      throws MMXException {
     if (msgId == null) {
       throw new MMXException("Message ID cannot be null", StatusCode.BAD_REQUEST);
     }
     MsgMMXIQHandler<MsgId, MsgEvents> iqHandler = new
         MsgMMXIQHandler<MsgId, MsgEvents>();
-    iqHandler.sendGetIQ(mCon, Constants.MessageCommand.getEvents.toString(),
-        new MsgId(idType, msgId), MsgEvents.class, iqHandler);
-    MsgEvents msgEvents = iqHandler.getResult();
-    return msgEvents;
+    return iqHandler.sendGetIQAsync(mCon, null,
+        Constants.MessageCommand.getEvents.toString(), new MsgId(idType, msgId),
+        MsgEvents.class, 0);
   }
 
   // Used by MessageManager and PushManager.
   MMXStatus doEvents(MessageCommand cmd, MsgId.IdType idType, String msgId,
                             List<String> events) throws MMXException {
+    return doEventsAsync(cmd, idType, msgId, events).getResult();
+  }
+
+  // Used by MessageManager and PushManager.
+  IQFuture<MMXStatus> doEventsAsync(MessageCommand cmd, MsgId.IdType idType,
+                      String msgId, List<String> events) throws MMXException {
     if (msgId == null) {
       throw new MMXException("Message ID cannot be null", StatusCode.BAD_REQUEST);
     }
@@ -838,8 +1228,140 @@ public class MessageManager implements Closeable {
     MsgEvents msgEvents = new MsgEvents(idType, msgId, events);
     MsgMMXIQHandler<MsgEvents, MMXStatus> iqHandler = new
         MsgMMXIQHandler<MsgEvents, MMXStatus>();
-    iqHandler.sendSetIQ(mCon, cmd.toString(), msgEvents, MMXStatus.class, iqHandler);
-    return iqHandler.getResult();
+    return iqHandler.sendSetIQAsync(mCon, null, cmd.toString(), msgEvents,
+        MMXStatus.class, 0);
+  }
+
+  // An asynchronous IQ request for one ID in a bulk operation.
+  interface BulkRequest<T> {
+    public IQFuture<T> send(String id) throws MMXException;
+  }
+
+  // Send the requests for the ID's (e.g. message ID's) with a window of
+  // outstanding IQ's.  The duplicated ID's are coalesced into one request.  The caller is
+  // blocked only when the window is full.
+  <T> Map<String, IQFuture<T>> pipeline(List<String> msgIds,
+                                  BulkRequest<T> request) throws MMXException {
+    int window = mCon.getSettings().getInt(MMXSettings.PROP_MAX_INFLIGHT_IQS,
+        DEFAULT_MAX_INFLIGHT_IQS);
+    final Semaphore inflight = new Semaphore(Math.max(1, window));
+    IQFuture.Callback<T> release = new IQFuture.Callback<T>() {
+      @Override
+      public void onResult(T result) {
+        inflight.release();
+      }
+
+      @Override
+      public void onFailure(MMXException cause) {
+        inflight.release();
+      }
+    };
+    Map<String, IQFuture<T>> futures = new LinkedHashMap<String, IQFuture<T>>(
+        msgIds.size());
+    for (String msgId : msgIds) {
+      if (futures.containsKey(msgId)) {
+        continue;
+      }
+      try {
+        inflight.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new MMXException("Bulk operation is interrupted", e);
+      }
+      IQFuture<T> future;
+      try {
+        future = request.send(msgId);
+      } catch (MMXException e) {
+        future = new IQFuture<T>(null, 0);
+        future.fail(e);
+      }
+      futures.put(msgId, future.addCallback(release, null));
+    }
+    return futures;
+  }
+
+  // Wait for the bulk results in the order of the requests; a failed request
+  // is reported in its status.
+  static Map<String, MMXStatus> toStatusMap(Map<String, IQFuture<MMXStatus>> futures) {
+    Map<String, MMXStatus> result = new LinkedHashMap<String, MMXStatus>(
+        futures.size());
+    for (Map.Entry<String, IQFuture<MMXStatus>> entry : futures.entrySet()) {
+      MMXStatus status;
+      try {
+        status = entry.getValue().getResult();
+      } catch (MMXException e) {
+        status = new MMXStatus();
+        status.setCode(e.getCode());
+        status.setMessage(e.getMessage());
+      }
+      result.put(entry.getKey(), status);
+    }
+    return result;
+  }
+
+  // Wait for the bulk results in the order of the requests; a failed request
+  // has a null result.
+  static <T> Map<String, T> toResultMap(Map<String, IQFuture<T>> futures) {
+    Map<String, T> result = new LinkedHashMap<String, T>(futures.size());
+    for (Map.Entry<String, IQFuture<T>> entry : futures.entrySet()) {
+      T value = null;
+      try {
+        value = entry.getValue().getResult();
+      } catch (MMXException e) {
+        Log.w(TAG, "Bulk request failed for msg ID="+entry.getKey()+": "+e.getMessage());
+      }
+      result.put(entry.getKey(), value);
+    }
+    return result;
+  }
+
+  // Used by MessageManager and PushManager.
+  Map<String, MsgTags> bulkGetTags(final MsgId.IdType idType,
+                                    List<String> msgIds) throws MMXException {
+    return toResultMap(pipeline(msgIds, new BulkRequest<MsgTags>() {
+      @Override
+      public IQFuture<MsgTags> send(String msgId) throws MMXException {
+        return getTagsAsync(idType, msgId);
+      }
+    }));
+  }
+
+  // Used by MessageManager and PushManager.
+  Map<String, MMXStatus> bulkDoTags(final MessageCommand cmd,
+      final MsgId.IdType idType, List<String> msgIds, final List<String> tags)
+          throws MMXException {
+    if (cmd != MessageCommand.setTags || (tags != null && !tags.isEmpty())) {
+      validateTags(tags);
+    }
+    return toStatusMap(pipeline(msgIds, new BulkRequest<MMXStatus>() {
+      @Override
+      public IQFuture<MMXStatus> send(String msgId) throws MMXException {
+        return doTagsAsync(cmd, idType, msgId, tags);
+      }
+    }));
+  }
+
+  // Used by MessageManager and PushManager.
+  Map<String, MsgEvents> bulkGetEvents(final MsgId.IdType idType,
+                                        List<String> msgIds) throws MMXException {
+    return toResultMap(pipeline(msgIds, new BulkRequest<MsgEvents>() {
+      @Override
+      public IQFuture<MsgEvents> send(String msgId) throws MMXException {
+        return getEventsAsync(idType, msgId);
+      }
+    }));
+  }
+
+  // Used by MessageManager and PushManager.
+  Map<String, MMXStatus> bulkDoEvents(final MessageCommand cmd,
+      final MsgId.IdType idType, List<String> msgIds, final List<String> events)
+          throws MMXException {
+    return toStatusMap(pipeline(msgIds, new BulkRequest<MMXStatus>() {
+      @Override
+      public IQFuture<MMXStatus> send(String msgId) throws MMXException {
+        return doEventsAsync(cmd, idType, msgId, events);
+      }
+    }));
   }
 
   private void validateTags(List<String> tags) throws MMXException {
@@ -859,6 +1381,16 @@ public class MessageManager implements Closeable {
    * @return The number of acks sent and number of acks encountered error.
    */
   public int[] getAckStat() {
-    return new int[] { mAckCounters, mAckErrors };
+    return new int[] { mAckSender.getSentCount(), mAckSender.getErrorCount() };
+  }
+
+  /**
+   * @hide
+   * Return a snapshot of the ack statistics including the backlog and the
+   * latency percentiles.
+   * @return The ack statistics.
+   */
+  public AckStats getAckStats() {
+    return mAckSender.getStats();
   }
 }
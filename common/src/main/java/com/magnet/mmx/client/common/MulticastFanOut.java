@@ -0,0 +1,246 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import com.magnet.mmx.protocol.MMXid;
+import com.magnet.mmx.util.QueueExecutor;
+
+/**
+ * @hide
+ * A multicast message whose recipients are split into batches.  A window of
+ * batches is sent; the next batch is sent when the server accepts a batch
+ * (ACK_END or ACK_ONCE.)  The per-batch signals are aggregated into one
+ * submitted callback, one accepted callback and the completion of the
+ * future.  The multicast fails if no batch is accepted within the timeout.
+ * The following batches are sent by a sender thread, so the signal handler
+ * is not blocked, and each batch is sent with its own copy of the payload.
+ */
+class MulticastFanOut implements Runnable {
+  private final static String TAG = "MulticastFanOut";
+  // Estimated JSON overhead of a recipient in the "To" header.
+  final static int RECIPIENT_OVERHEAD = 48;
+  private final static QueueExecutor sSender = new QueueExecutor(
+      "MMX Multicast Sender", true);
+  private final MessageManager mMsgMgr;
+  private final String mMsgId;
+  private final MMXPayload mPayload;
+  private final Options mOptions;
+  private final List<MMXid[]> mBatches;
+  private final List<String> mBatchIds;
+  private final Set<String> mPending = new HashSet<String>();
+  private final List<MMXid> mInvalidRecipients = new ArrayList<MMXid>();
+  private final IQFuture<MulticastResult> mFuture;
+  private final int mWindow;
+  private final long mTimeout;
+  private int mNext;
+  private boolean mSubmitted;
+  private boolean mFinished;
+  private ScheduledFuture<?> mTimer;
+
+  static {
+    sSender.start();
+  }
+
+  MulticastFanOut(MessageManager msgMgr, String msgId, MMXid[] to,
+                   MMXPayload payload, Options options, int batchSize,
+                   int window, long timeout) {
+    mMsgMgr = msgMgr;
+    mMsgId = msgId;
+    mPayload = payload;
+    mOptions = options;
+    mWindow = Math.max(1, window);
+    mTimeout = timeout;
+    mBatches = split(to, Math.max(1, batchSize), Math.max(
+        MMXPayload.getMaxSizeAllowed() - payload.getSize(), RECIPIENT_OVERHEAD));
+    mBatchIds = new ArrayList<String>(mBatches.size());
+    for (int i = 0; i < mBatches.size(); i++) {
+      mBatchIds.add(msgId + '.' + i);
+    }
+    mFuture = new IQFuture<MulticastResult>(null, timeout);
+  }
+
+  // Split the recipients by count and by the estimated header size.
+  static List<MMXid[]> split(MMXid[] to, int batchSize, int maxBytes) {
+    List<MMXid[]> batches = new ArrayList<MMXid[]>();
+    int start = 0;
+    int bytes = 0;
+    for (int i = 0; i < to.length; i++) {
+      int size = RECIPIENT_OVERHEAD + to[i].getUserId().length() +
+          ((to[i].getDeviceId() == null) ? 0 : to[i].getDeviceId().length());
+      if (i > start && (i - start == batchSize || bytes + size > maxBytes)) {
+        batches.add(Arrays.copyOfRange(to, start, i));
+        start = i;
+        bytes = 0;
+      }
+      bytes += size;
+    }
+    if (start < to.length) {
+      batches.add(Arrays.copyOfRange(to, start, to.length));
+    }
+    return batches;
+  }
+
+  String getMsgId() {
+    return mMsgId;
+  }
+
+  List<String> getBatchIds() {
+    return mBatchIds;
+  }
+
+  IQFuture<MulticastResult> getFuture() {
+    return mFuture;
+  }
+
+  /**
+   * Send the first window of batches.
+   */
+  void start() {
+    mFuture.setCanceller(new Runnable() {
+      @Override
+      public void run() {
+        finish();
+      }
+    });
+    int first, last;
+    synchronized(this) {
+      resetTimer();
+      first = mNext;
+      while (mNext < mBatches.size() && mPending.size() < mWindow) {
+        mPending.add(mBatchIds.get(mNext++));
+      }
+      last = mNext;
+    }
+    for (int i = first; i < last; i++) {
+      if (!send(i)) {
+        return;
+      }
+    }
+  }
+
+  // Reserve the next batch in the window; return its index or -1.
+  private int reserveNext() {
+    if (mNext >= mBatches.size()) {
+      return -1;
+    }
+    mPending.add(mBatchIds.get(mNext));
+    return mNext++;
+  }
+
+  // Send a batch with a copy of the payload, because sending sets the
+  // recipients in the payload.  A file content is finished after the last
+  // batch is sent.  Return false if the multicast has failed.
+  private boolean send(int index) {
+    String batchId = mBatchIds.get(index);
+    synchronized(this) {
+      if (mFinished) {
+        return false;
+      }
+    }
+    try {
+      MMXPayload payload = mPayload.copy(index < mBatches.size() - 1);
+      mMsgMgr.sendPayload(batchId, mBatches.get(index), payload, mOptions);
+      return true;
+    } catch (MMXException e) {
+      Log.e(TAG, "Unable to send batch "+batchId, e);
+      finish();
+      mFuture.fail(e);
+      return false;
+    }
+  }
+
+  /**
+   * Handle a signal of a batch.
+   * @param type The signal type.
+   * @param batchId The batch message ID.
+   * @param invalidRecipients The invalid recipients in the batch, or null.
+   * @param listener The message listener, or null.
+   */
+  void onSignal(SignalMsg.Type type, String batchId,
+                 List<MMXid> invalidRecipients, MMXMessageListener listener) {
+    boolean submitted = false;
+    int next = -1;
+    MulticastResult result = null;
+    synchronized(this) {
+      if (type == SignalMsg.Type.ACK_BEGIN) {
+        submitted = !mSubmitted;
+        mSubmitted = true;
+      } else if (mPending.remove(batchId)) {
+        if (invalidRecipients != null) {
+          mInvalidRecipients.addAll(invalidRecipients);
+        }
+        resetTimer();
+        next = reserveNext();
+        if (next < 0 && mPending.isEmpty()) {
+          result = new MulticastResult(mMsgId, mBatchIds, mInvalidRecipients);
+        }
+      }
+    }
+    if (next >= 0) {
+      final int index = next;
+      sSender.post(new Runnable() {
+        @Override
+        public void run() {
+          send(index);
+        }
+      });
+    }
+    if (submitted && listener != null) {
+      listener.onMessageSubmitted(mMsgId);
+    }
+    if (result != null) {
+      finish();
+      if (listener != null) {
+        listener.onMessageAccepted(mInvalidRecipients, mMsgId);
+      }
+      mFuture.onReceived(result);
+    }
+  }
+
+  private void resetTimer() {
+    if (mTimer != null) {
+      mTimer.cancel(false);
+    }
+    mTimer = (mTimeout <= 0) ? null : SharedTimer.schedule(this, mTimeout);
+  }
+
+  // No batch is accepted within the timeout.
+  @Override
+  public void run() {
+    Log.w(TAG, "Multicast "+mMsgId+" timed out; pending batches="+mPending);
+    finish();
+    mFuture.timeout();
+  }
+
+  // Stop tracking the batches.
+  private void finish() {
+    synchronized(this) {
+      mFinished = true;
+      if (mTimer != null) {
+        mTimer.cancel(false);
+        mTimer = null;
+      }
+    }
+    mMsgMgr.removeFanOut(this);
+  }
+}
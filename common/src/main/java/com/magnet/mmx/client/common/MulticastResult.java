@@ -0,0 +1,69 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.util.List;
+
+import com.magnet.mmx.protocol.MMXid;
+
+/**
+ * The aggregated result of a batched multicast message.  The recipients were
+ * split into batches and each batch was sent as a separate message; the
+ * result is available after the server has accepted all batches.
+ * @see MessageManager#sendMulticast(MMXid[], MMXPayload, Options)
+ */
+public class MulticastResult {
+  private final String mMsgId;
+  private final List<String> mBatchIds;
+  private final List<MMXid> mInvalidRecipients;
+
+  MulticastResult(String msgId, List<String> batchIds,
+                   List<MMXid> invalidRecipients) {
+    mMsgId = msgId;
+    mBatchIds = batchIds;
+    mInvalidRecipients = invalidRecipients;
+  }
+
+  /**
+   * Get the message ID of the multicast message.
+   * @return The message ID.
+   */
+  public String getMsgId() {
+    return mMsgId;
+  }
+
+  /**
+   * Get the message ID's of the batches in the sending order.
+   * @return A list of message ID's.
+   */
+  public List<String> getBatchIds() {
+    return mBatchIds;
+  }
+
+  /**
+   * Get the invalid recipients from all batches.
+   * @return An empty list or a list of invalid recipients.
+   */
+  public List<MMXid> getInvalidRecipients() {
+    return mInvalidRecipients;
+  }
+
+  @Override
+  public String toString() {
+    return "[ msgId="+mMsgId+", batches="+mBatchIds.size()+", invalid="+
+        mInvalidRecipients+" ]";
+  }
+}
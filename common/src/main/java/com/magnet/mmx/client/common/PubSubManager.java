@@ -15,13 +15,12 @@
 
 package com.magnet.mmx.client.common;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -128,16 +127,18 @@ import com.magnet.mmx.util.XIDUtil;
  * Every published item will be received through the callback
  * {@link MMXMessageListener#onItemReceived(MMXMessage, MMXTopic)}.
  */
-public class PubSubManager {
+public class PubSubManager implements Closeable {
   private final static String TAG = "PubSubManager";
   private final static String FIELD_DESCRIPTION = "pubsub#description";
   private final static String FIELD_SEND_ITEM_SUBSCRIBE = "pubsub#send_item_subscribe";
   private final static String LAST_DELIVERY_FILE = "com.magnet.pubsub-";
+  private final static String DELIVERY_INDEX_FILE = "com.magnet.pubsub-idx-";
+  private final static int DEFAULT_DELIVERY_FLUSH_INTERVAL = 1000;
   private final static String USER_TOPIC_NOT_ALLOWED = "User topic is not allowed";
   private final static boolean SHOW_USER_TOPICS = false;
   private final static boolean SHOW_USER_TOPIC_SUBSCRIPTIONS = true;
   private final MMXConnection mCon;
-  private MappedByteBuffer mBuffer;
+  private LastDeliveryLog mDeliveryLog;
   private final String mAppPrefix;
   private final String mAppTopic;
   private final String mMyTopic;
@@ -309,31 +310,8 @@ public class PubSubManager {
     MMXQueue queue = mCon.getQueue();
     String itemId = id != null ? id : mCon.genId();
     if (mCon.isConnected()) {
-      try {
-        // XMPP does not include publisher during delivery; MMX includes the
-        // authenticated (after online) publisher to the item.
-        payload.setFrom(mCon.getXID());
-
-        // TODO: smack caches the node.  It returns the node if the node is
-        // deleted using custom IQ.  It can be a memory leak.
-        LeafNode node = getNode(realTopic, topic);
-        node.send(new PayloadItem<MMXPayloadMsgHandler.MMXPacketExtension>(itemId,
-                new MMXPayloadMsgHandler.MMXPacketExtension(payload)));
-        return itemId;
-      } catch (XMPPErrorException e) {
-        String condition = e.getXMPPError().getCondition();
-        if (XMPPError.Condition.item_not_found.equals(condition)) {
-          throw new TopicNotFoundException(topic);
-        }
-        if (XMPPError.Condition.forbidden.equals(condition)) {
-          throw new TopicPermissionException(topic);
-        }
-        throw new MMXException(e.getMessage(), e);
-      } catch (MMXException e) {
-        throw e;
-      } catch (Throwable e) {
-        throw new MMXException(e.getMessage(), e);
-      }
+      publishOnline(itemId, realTopic, topic, payload);
+      return itemId;
     } else if (queue != null) {
       //Not connected, and queue exists, queue...
       Item.PubSub item = new Item.PubSub(itemId, realTopic, topic, payload);
@@ -344,6 +322,48 @@ public class PubSubManager {
     }
   }
 
+  // Publish an item while connected; the item is not queued if the
+  // connection is lost.
+  void publishOnline(String itemId, String realTopic, String topic,
+      MMXPayload payload) throws TopicNotFoundException,
+      TopicPermissionException, MMXException {
+    mCon.traceBegin(MMXTraceInterceptor.Event.PUBLISH, itemId);
+    MMXPacketExtension extension = null;
+    boolean success = false;
+    try {
+      // XMPP does not include publisher during delivery; MMX includes the
+      // authenticated (after online) publisher to the item.
+      payload.setFrom(mCon.getXID());
+
+      // TODO: smack caches the node.  It returns the node if the node is
+      // deleted using custom IQ.  It can be a memory leak.
+      LeafNode node = getNode(realTopic, topic);
+      extension = new MMXPacketExtension(payload);
+      node.send(new PayloadItem<MMXPacketExtension>(itemId, extension));
+      mCon.incCounter(MMXMetrics.ITEMS_OUT);
+      success = true;
+    } catch (XMPPErrorException e) {
+      String condition = e.getXMPPError().getCondition();
+      if (XMPPError.Condition.item_not_found.equals(condition)) {
+        throw new TopicNotFoundException(topic);
+      }
+      if (XMPPError.Condition.forbidden.equals(condition)) {
+        throw new TopicPermissionException(topic);
+      }
+      throw new MMXException(e.getMessage(), e);
+    } catch (MMXException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new MMXException(e.getMessage(), e);
+    } finally {
+      // The item is sent synchronously.
+      if (extension != null) {
+        extension.dispose();
+      }
+      mCon.traceEnd(MMXTraceInterceptor.Event.PUBLISH, itemId, success);
+    }
+  }
+
   /**
    * Get published items by their ID's.
    * @param topic A topic object.
@@ -1053,14 +1073,18 @@ public class PubSubManager {
    */
   public MMXStatus requestLastPublishedItems(MMXTopic topic, int maxItems,
                                               Date since) throws MMXException {
+    return requestLastPublishedItemsAsync(topic, maxItems, since).getResult();
+  }
+
+  private IQFuture<MMXStatus> requestLastPublishedItemsAsync(MMXTopic topic,
+                          int maxItems, Date since) throws MMXException {
     try {
       SendLastPublishedItems rqt = new SendLastPublishedItems((topic == null) ?
           null : new MMXTopicId(topic), maxItems, since);
       PubSubIQHandler<SendLastPublishedItems, MMXStatus> iqHandler =
           new PubSubIQHandler<SendLastPublishedItems, MMXStatus>();
-      iqHandler.sendGetIQ(mCon, Constants.PubSubCommand.getlatest.toString(),
-          rqt, MMXStatus.class, iqHandler);
-      return iqHandler.getResult();
+      return iqHandler.sendGetIQAsync(mCon, null,
+          Constants.PubSubCommand.getlatest.toString(), rqt, MMXStatus.class, 0);
     } catch (MMXException e) {
       throw e;
     } catch (Throwable e) {
@@ -1068,6 +1092,52 @@ public class PubSubManager {
     }
   }
 
+  /**
+   * @hide
+   * Request the items missed by each subscribed topic since its own last
+   * delivery.  The topics without any delivery record use the global last
+   * delivery time.  If no topics have been indexed, it is same as
+   * {@link #requestLastPublishedItems(int, Date)} with the global last
+   * delivery time.  The requests are pipelined.
+   * @param maxItems Maximum of items to be returned per topic.
+   * @return A map of topic node ID and the request status.
+   * @throws MMXException
+   */
+  Map<String, MMXStatus> requestMissedPublishedItems(final int maxItems)
+                                                  throws MMXException {
+    final Date lastDelivery = getLastDelivery();
+    LastDeliveryLog log = getDeliveryLog();
+    final Map<String, Long> index = (log == null) ?
+        new HashMap<String, Long>() : log.getAll();
+    if (index.isEmpty()) {
+      Map<String, MMXStatus> result = new HashMap<String, MMXStatus>(1);
+      result.put("*", requestLastPublishedItems(maxItems, lastDelivery));
+      return result;
+    }
+
+    List<Subscription> subs;
+    try {
+      subs = getPubSubManager().getSubscriptions();
+    } catch (Throwable e) {
+      throw new MMXException(e.getMessage(), e);
+    }
+    LinkedHashSet<String> nodes = new LinkedHashSet<String>(subs.size());
+    for (Subscription sub : subs) {
+      if (nodeToTopic(sub.getNode()) != null) {
+        nodes.add(sub.getNode());
+      }
+    }
+    return MessageManager.toStatusMap(MessageManager.getInstance(mCon).pipeline(
+        new ArrayList<String>(nodes), new MessageManager.BulkRequest<MMXStatus>() {
+      @Override
+      public IQFuture<MMXStatus> send(String node) throws MMXException {
+        Long time = index.get(node);
+        Date since = (time == null) ? lastDelivery : new Date(time);
+        return requestLastPublishedItemsAsync(nodeToTopic(node), maxItems, since);
+      }
+    }));
+  }
+
   /**
    * Search for global topics by topic attributes and/or tags.
    * @param operator The AND or OR operator.
@@ -1188,55 +1258,74 @@ public class PubSubManager {
     }
   }
 
+  // Advance the last delivery time in memory; it is persisted later.
+  boolean saveLastDelivery(long lastDeliveryTime) {
+    LastDeliveryLog log = getDeliveryLog();
+    if (log == null) {
+      return false;
+    }
+    log.advance(lastDeliveryTime);
+    return true;
+  }
+
   boolean saveLastDelivery(Date lastDeliveryTime) {
-    if (mBuffer == null) {
-      // Delay initializing mBuffer until mCon is connected.
-      mBuffer = mapDeliveryLogFile();
-    }
-    mBuffer.position(0);
-    mBuffer.putLong(lastDeliveryTime.getTime());
-    mBuffer.force();
-    //Log.d(TAG, "save last del time="+lastDeliveryTime.getTime(), null);
+    return saveLastDelivery(lastDeliveryTime.getTime());
+  }
+
+  // Advance the last delivery time and item of a topic in memory; it is
+  // persisted later.
+  boolean saveLastDelivery(String node, String lastItemId, long lastDeliveryTime) {
+    LastDeliveryLog log = getDeliveryLog();
+    if (log == null) {
+      return false;
+    }
+    log.advance(node, lastItemId, lastDeliveryTime);
     return true;
   }
 
+  // Get the last delivered item ID of a topic, or null.
+  String getLastDeliveredItemId(String node) {
+    LastDeliveryLog log = getDeliveryLog();
+    return (log == null) ? null : log.getItemId(node);
+  }
+
   /**
    * Get the last published item delivery time.
    */
   public Date getLastDelivery() {
-    if (mBuffer == null) {
-      // Delay initializing mBuffer until mCon is connected.
-      mBuffer = mapDeliveryLogFile();
-    }
-    mBuffer.position(0);
-    long lastDeliveryTime = mBuffer.getLong();
+    LastDeliveryLog log = getDeliveryLog();
+    long lastDeliveryTime = (log == null) ? 0L : log.get();
     //Log.d(TAG, "load last del time="+lastDeliveryTime, null);
     return new Date(lastDeliveryTime);
   }
 
-  private MappedByteBuffer mapDeliveryLogFile() {
-    RandomAccessFile file = null;
-    try {
+  // Delay opening the log until mCon is connected.
+  private synchronized LastDeliveryLog getDeliveryLog() {
+    if (mDeliveryLog == null) {
       String path = mCon.getContext().getFilePath(LAST_DELIVERY_FILE+
                                               mCon.getConnectionToken()+".bin");
-      file = new RandomAccessFile(path, "rw");
-      if (file.length() != 8) {
-        // Initialize with 8 bytes (long)
-        file.writeLong(0);
-      }
-      // Map file into memory so it can be GC when this pubsub manager is done.
-      return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
-    } catch (IOException e) {
-      Log.e(TAG, "Unable to persist pubsub delivery log", e);
-      return null;
-    } finally {
-      if (file != null) {
-        try {
-          file.close();
-        } catch (IOException e) {
-          // Ignored
-        }
-      }
+      String indexPath = mCon.getContext().getFilePath(DELIVERY_INDEX_FILE+
+                                              mCon.getConnectionToken()+".bin");
+      mDeliveryLog = LastDeliveryLog.open(path, indexPath, mCon.getSettings().getInt(
+          MMXSettings.PROP_DELIVERY_FLUSH_INTERVAL,
+          DEFAULT_DELIVERY_FLUSH_INTERVAL));
+    }
+    return mDeliveryLog;
+  }
+
+  /**
+   * @hide
+   * Persist the pending last delivery time.
+   */
+  @Override
+  public void close() throws IOException {
+    LastDeliveryLog log;
+    synchronized(this) {
+      log = mDeliveryLog;
+      mDeliveryLog = null;
+    }
+    if (log != null) {
+      log.close();
     }
   }
 
@@ -16,6 +16,7 @@
 package com.magnet.mmx.client.common;
 
 import java.util.List;
+import java.util.Map;
 
 import com.magnet.mmx.protocol.Constants;
 import com.magnet.mmx.protocol.Constants.MessageCommand;
@@ -260,4 +261,115 @@ public class PushManager {
     return MessageManager.getInstance(mCon).doEvents(MessageCommand.removeEvents,
         MsgId.IdType.pushMessage, msgId, events);
   }
+
+  /**
+   * @hide
+   * Get the tags from multiple push messages.  The requests are pipelined.
+   * @param msgIds A list of push message ID's.
+   * @return A map of message ID and its tags; the tags are null if failed.
+   * @throws MMXException
+   */
+  public Map<String, MsgTags> bulkGetTags(List<String> msgIds) throws MMXException {
+    return MessageManager.getInstance(mCon).bulkGetTags(
+        MsgId.IdType.pushMessage, msgIds);
+  }
+
+  /**
+   * @hide
+   * Set the tags to multiple push messages.  The entire old tags will be
+   * overwritten by the new tags.  The requests are pipelined.
+   * @param msgIds A list of push message ID's.
+   * @param tags A list of tags.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkSetTags(List<String> msgIds,
+      List<String> tags) throws MMXException {
+    return MessageManager.getInstance(mCon).bulkDoTags(
+        MessageCommand.setTags, MsgId.IdType.pushMessage, msgIds, tags);
+  }
+
+  /**
+   * @hide
+   * Add the tags to multiple push messages.  The requests are pipelined.
+   * @param msgIds A list of push message ID's.
+   * @param tags A list of tags.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkAddTags(List<String> msgIds,
+      List<String> tags) throws MMXException {
+    return MessageManager.getInstance(mCon).bulkDoTags(
+        MessageCommand.addTags, MsgId.IdType.pushMessage, msgIds, tags);
+  }
+
+  /**
+   * @hide
+   * Remove the tags from multiple push messages.  The requests are pipelined.
+   * @param msgIds A list of push message ID's.
+   * @param tags A list of tags.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkRemoveTags(List<String> msgIds,
+      List<String> tags) throws MMXException {
+    return MessageManager.getInstance(mCon).bulkDoTags(
+        MessageCommand.removeTags, MsgId.IdType.pushMessage, msgIds, tags);
+  }
+
+  /**
+   * @hide
+   * Get the events from multiple push messages.  The requests are pipelined.
+   * @param msgIds A list of push message ID's.
+   * @return A map of message ID and its events; the events are null if failed.
+   * @throws MMXException
+   */
+  public Map<String, MsgEvents> bulkGetEvents(List<String> msgIds)
+      throws MMXException {
+    return MessageManager.getInstance(mCon).bulkGetEvents(
+        MsgId.IdType.pushMessage, msgIds);
+  }
+
+  /**
+   * @hide
+   * Set the events to multiple push messages.  The entire old events will be
+   * overwritten by the new events.  The requests are pipelined.
+   * @param msgIds A list of push message ID's.
+   * @param events A list of events.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkSetEvents(List<String> msgIds,
+      List<String> events) throws MMXException {
+    return MessageManager.getInstance(mCon).bulkDoEvents(
+        MessageCommand.setEvents, MsgId.IdType.pushMessage, msgIds, events);
+  }
+
+  /**
+   * @hide
+   * Add the events to multiple push messages.  The requests are pipelined.
+   * @param msgIds A list of push message ID's.
+   * @param events A list of events.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkAddEvents(List<String> msgIds,
+      List<String> events) throws MMXException {
+    return MessageManager.getInstance(mCon).bulkDoEvents(
+        MessageCommand.addEvents, MsgId.IdType.pushMessage, msgIds, events);
+  }
+
+  /**
+   * @hide
+   * Remove the events from multiple push messages.  The requests are pipelined.
+   * @param msgIds A list of push message ID's.
+   * @param events A list of events.
+   * @return A map of message ID and its status.
+   * @throws MMXException
+   */
+  public Map<String, MMXStatus> bulkRemoveEvents(List<String> msgIds,
+      List<String> events) throws MMXException {
+    return MessageManager.getInstance(mCon).bulkDoEvents(
+        MessageCommand.removeEvents, MsgId.IdType.pushMessage, msgIds, events);
+  }
 }
@@ -0,0 +1,285 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.client.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.magnet.mmx.protocol.MMXid;
+import com.magnet.mmx.util.MMXQueue.Item;
+
+/**
+ * @hide
+ * Send the pending items of a persistent queue in the queued order.  A
+ * prefetch thread loads and decodes the items ahead of the sender.  The
+ * messages are pipelined up to a window of unaccepted messages; a message is
+ * accepted when the server signals ACK_END or ACK_ONCE.  The published items
+ * are sent in turn because each publish waits for its result.  Only the
+ * contiguous prefix of the sent items is removed from the store in batches,
+ * and the drain stops sending at the first retryable failure, so an
+ * interrupted drain resumes from the first item not yet accepted and the
+ * items are never delivered out of order (an item accepted after a failed
+ * one may be delivered again.)
+ */
+public class QueueDrainer {
+  /**
+   * The backing store of a queue.
+   */
+  public interface Store {
+    /**
+     * Get the IDs of the pending items in the queued order.
+     * @return A snapshot of the IDs.
+     */
+    public List<String> getIds();
+    /**
+     * Load an item.
+     * @param id The item ID.
+     * @return The item, or null if it has been removed.
+     * @throws IOException The item cannot be read.
+     */
+    public Item load(String id) throws IOException;
+    /**
+     * Remove the items.
+     * @param ids The item IDs.
+     * @throws IOException
+     */
+    public void remove(Collection<String> ids) throws IOException;
+  }
+
+  private final static String TAG = "QueueDrainer";
+  // An item loaded by the prefetcher; the item is null if it is unreadable.
+  private final static class Loaded {
+    private final String mId;
+    private final Item mItem;
+
+    Loaded(String id, Item item) {
+      mId = id;
+      mItem = item;
+    }
+  }
+  private final static Loaded EOF = new Loaded(null, null);
+
+  private final MMXConnection mCon;
+  private final Store mStore;
+  private final int mWindow;
+  private final long mTimeout;
+  private final Semaphore mPermits;
+  // The outcomes of the unremoved items in the sent order: null if pending,
+  // TRUE if sent or dropped, FALSE if failed.
+  private final LinkedHashMap<String, Boolean> mOutcomes =
+      new LinkedHashMap<String, Boolean>();
+  private volatile boolean mStopped;
+
+  /**
+   * Constructor.  The window is {@link MMXSettings#PROP_MAX_INFLIGHT_IQS}.
+   * @param con The connection to send the items.
+   * @param store The backing store of the queue.
+   */
+  public QueueDrainer(MMXConnection con, Store store) {
+    mCon = con;
+    mStore = store;
+    mWindow = Math.max(1, con.getSettings().getInt(
+        MMXSettings.PROP_MAX_INFLIGHT_IQS,
+        MessageManager.DEFAULT_MAX_INFLIGHT_IQS));
+    mTimeout = MMXIQHandler.TIMEOUT;
+    mPermits = new Semaphore(mWindow);
+  }
+
+  /**
+   * Send the pending items until the queue is empty or the connection is
+   * lost.  It blocks until the sent items are accepted or timed out.
+   * @return The number of items sent and removed.
+   */
+  public int drain() {
+    final List<String> ids = mStore.getIds();
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    if (Log.isLoggable(TAG, Log.DEBUG)) {
+      Log.d(TAG, "drain(): Found "+ids.size()+" pending items to send.");
+    }
+    final BlockingQueue<Loaded> loaded = new ArrayBlockingQueue<Loaded>(
+        mWindow);
+    Thread prefetcher = new Thread("MMX Queue Prefetcher") {
+      @Override
+      public void run() {
+        try {
+          for (String id : ids) {
+            if (mStopped) {
+              break;
+            }
+            loaded.put(load(id));
+          }
+          loaded.put(EOF);
+        } catch (InterruptedException e) {
+          // Stopped.
+        }
+      }
+    };
+    prefetcher.setDaemon(true);
+    prefetcher.start();
+
+    int count = 0;
+    try {
+      Loaded entry;
+      while (!mStopped && (entry = loaded.take()) != EOF) {
+        if (entry.mItem == null) {
+          outcome(entry.mId, Boolean.TRUE);
+        } else if (!mCon.isConnected()) {
+          Log.w(TAG, "drain(): Stopped because not connected.");
+          mStopped = true;
+        } else if (!mPermits.tryAcquire(mTimeout, TimeUnit.MILLISECONDS)) {
+          Log.w(TAG, "drain(): Stopped because no message is accepted.");
+          mStopped = true;
+        } else {
+          outcome(entry.mId, null);
+          send(entry.mId, entry.mItem);
+        }
+        count += flush(mWindow);
+      }
+      // Wait for the unaccepted messages.
+      if (mPermits.tryAcquire(mWindow, mTimeout, TimeUnit.MILLISECONDS)) {
+        mPermits.release(mWindow);
+      }
+    } catch (InterruptedException e) {
+      mStopped = true;
+    } finally {
+      prefetcher.interrupt();
+    }
+    count += flush(1);
+    if (Log.isLoggable(TAG, Log.DEBUG)) {
+      Log.d(TAG, "drain(): Sent "+count+" items; stopped="+mStopped);
+    }
+    return count;
+  }
+
+  /**
+   * Stop the drain.  The unsent items remain in the queue.
+   */
+  public void stop() {
+    mStopped = true;
+  }
+
+  private Loaded load(String id) {
+    try {
+      Item item = mStore.load(id);
+      return new Loaded(id, item);
+    } catch (Throwable e) {
+      Log.e(TAG, "load(): Dropping unreadable item: "+id, e);
+      return new Loaded(id, null);
+    }
+  }
+
+  private void send(final String id, Item item) {
+    switch (item.getType()) {
+    case MESSAGE:
+      IQFuture<List<MMXid>> future = MessageManager.getInstance(mCon)
+        .sendPayloadAsync(id, (MMXid[]) GlobalAddress.convertDestination(
+            ((Item.Message) item).getDestination()), item.getPayload(),
+            item.getOptions(), mTimeout);
+      future.addCallback(new IQFuture.Callback<List<MMXid>>() {
+        @Override
+        public void onResult(List<MMXid> invalidRecipients) {
+          done(id);
+          mPermits.release();
+        }
+
+        @Override
+        public void onFailure(MMXException cause) {
+          failed(id, cause);
+          mPermits.release();
+        }
+      }, null);
+      break;
+    case PUBSUB:
+      Item.PubSub pubsub = (Item.PubSub) item;
+      try {
+        PubSubManager.getInstance(mCon).publishOnline(id,
+            pubsub.getRealTopic(), pubsub.getTopic(), item.getPayload());
+        done(id);
+      } catch (MMXException e) {
+        failed(id, e);
+      } finally {
+        mPermits.release();
+      }
+      break;
+    default:
+      Log.w(TAG, "send(): Dropping unknown item type: "+item.getType());
+      done(id);
+      mPermits.release();
+    }
+  }
+
+  // Record the outcome of an item; an existing item keeps its order.
+  private void outcome(String id, Boolean outcome) {
+    synchronized(mOutcomes) {
+      mOutcomes.put(id, outcome);
+    }
+  }
+
+  // An item is sent or dropped; remove it once all items before it are done.
+  private void done(String id) {
+    outcome(id, Boolean.TRUE);
+  }
+
+  // An item is failed.  Drop the item rejected by the server; otherwise
+  // (e.g. timed out or disconnected), keep it and stop.
+  private void failed(String id, MMXException cause) {
+    if (cause instanceof TopicNotFoundException ||
+        cause instanceof TopicPermissionException ||
+        cause.getCode() == MMXException.BAD_REQUEST) {
+      Log.e(TAG, "Dropping rejected item "+id, cause);
+      done(id);
+    } else {
+      Log.w(TAG, "Unable to send item "+id+"; stopping the drain", cause);
+      mStopped = true;
+      outcome(id, Boolean.FALSE);
+    }
+  }
+
+  // Remove the contiguous prefix of the done items if there are at least
+  // "min" of them.  The items after a pending or failed item are kept.
+  private int flush(int min) {
+    List<String> batch = new ArrayList<String>();
+    synchronized(mOutcomes) {
+      for (Map.Entry<String, Boolean> entry : mOutcomes.entrySet()) {
+        if (entry.getValue() != Boolean.TRUE) {
+          break;
+        }
+        batch.add(entry.getKey());
+      }
+      if (batch.isEmpty() || batch.size() < min) {
+        return 0;
+      }
+      for (String id : batch) {
+        mOutcomes.remove(id);
+      }
+    }
+    try {
+      mStore.remove(batch);
+    } catch (IOException e) {
+      Log.e(TAG, "flush(): Unable to remove "+batch.size()+" sent items", e);
+    }
+    return batch.size();
+  }
+}
@@ -0,0 +1,412 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.client.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+
+import com.magnet.mmx.protocol.Headers;
+import com.magnet.mmx.protocol.MMXid;
+import com.magnet.mmx.protocol.MmxHeaders;
+import com.magnet.mmx.protocol.Payload;
+import com.magnet.mmx.util.GsonData;
+import com.magnet.mmx.util.MMXQueue.Item;
+
+/**
+ * @hide
+ * A compact versioned binary encoding of the queued items.  The strings are
+ * UTF-8 with a varint length, the numbers are varints and the text data of
+ * the payload is stored as raw UTF-8 bytes.  A payload with file data is
+ * stored with Java serialization because the file is owned by the protocol
+ * library.  The items encoded by Java serialization in the previous versions
+ * are still decoded.
+ * <pre>
+ * byte version
+ * byte type               // Item.Type
+ * str id
+ * str realTopic, topic    // PUBSUB only
+ * varint n+1, address[n]  // MESSAGE only; 0 for null
+ * byte options            // OPT_* flags
+ * byte kind               // PAYLOAD_*
+ * payload                 // unless PAYLOAD_NONE
+ *
+ * address: byte type, str userId, deviceId, displayName (USER) or
+ *          str name (TOPIC)
+ * payload: str mmxMetaJson, varint n+1, (str name, value)[n], then
+ *          str msgType, cid, chunk, varlong sentTime+1, str data (TEXT) or
+ *          varint length, byte[] serialized (SERIALIZED)
+ * str: varint length+1 (0 for null), byte[] UTF-8
+ * </pre>
+ */
+public final class QueueItemCodec {
+  /**
+   * The current version of the encoding.
+   */
+  public final static int VERSION = 1;
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+  // The magic number of a Java serialization stream.
+  private final static byte STREAM_MAGIC = (byte) 0xac;
+  private final static int OPT_PRESENT = 0x01;
+  private final static int OPT_DROPPABLE = 0x02;
+  private final static int OPT_RECEIPT = 0x04;
+  private final static int PAYLOAD_NONE = 0;
+  private final static int PAYLOAD_TEXT = 1;
+  private final static int PAYLOAD_SERIALIZED = 2;
+  private final static Item.Type[] sTypes = Item.Type.values();
+  private final static GlobalAddress.Type[] sAddrTypes =
+      GlobalAddress.Type.values();
+
+  private QueueItemCodec() {
+  }
+
+  /**
+   * Encode an item.
+   * @param item A queued item.
+   * @return The encoded bytes.
+   * @throws IOException
+   */
+  public static byte[] encode(Item item) throws IOException {
+    return encode(item, true);
+  }
+
+  /**
+   * Encode an item without its payload.  The summary is small enough to be
+   * kept in an index; {@link #decode(byte[])} returns the item without the
+   * payload.
+   * @param item A queued item.
+   * @return The encoded bytes.
+   * @throws IOException
+   */
+  public static byte[] encodeSummary(Item item) throws IOException {
+    return encode(item, false);
+  }
+
+  private static byte[] encode(Item item, boolean withPayload)
+                                throws IOException {
+    Writer out = new Writer(withPayload ? 256 : 64);
+    out.writeByte(VERSION);
+    out.writeByte(item.getType().ordinal());
+    out.writeString(item.getId());
+    if (item instanceof Item.PubSub) {
+      Item.PubSub pubsub = (Item.PubSub) item;
+      out.writeString(pubsub.getRealTopic());
+      out.writeString(pubsub.getTopic());
+    } else if (item instanceof Item.Message) {
+      writeAddresses(out, ((Item.Message) item).getDestination());
+    }
+    Options options = item.getOptions();
+    int flags = 0;
+    if (options != null) {
+      flags = OPT_PRESENT;
+      if (options.isDroppable()) {
+        flags |= OPT_DROPPABLE;
+      }
+      if (options.isReceiptEnabled()) {
+        flags |= OPT_RECEIPT;
+      }
+    }
+    out.writeByte(flags);
+    writePayload(out, withPayload ? item.getPayload() : null);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode an item encoded by {@link #encode(Item)} or Java serialization.
+   * @param data The encoded bytes.
+   * @return The item.
+   * @throws IOException Unsupported version or corrupted data.
+   */
+  public static Item decode(byte[] data) throws IOException {
+    if (data.length > 0 && data[0] == STREAM_MAGIC) {
+      return (Item) deserialize(data, 0, data.length);
+    }
+    Reader in = new Reader(data);
+    try {
+      int version = in.readByte();
+      if (version != VERSION) {
+        throw new StreamCorruptedException("Unsupported version: "+version);
+      }
+      Item.Type type = sTypes[in.readByte()];
+      String id = in.readString();
+      Item item;
+      switch (type) {
+      case PUBSUB:
+        String realTopic = in.readString();
+        String topic = in.readString();
+        item = new Item.PubSub(id, realTopic, topic, null);
+        break;
+      case MESSAGE:
+        item = new Item.Message(id, null);
+        ((Item.Message) item).setDestination(readAddresses(in));
+        break;
+      default:
+        throw new StreamCorruptedException("Unknown item type: "+type);
+      }
+      int flags = in.readByte();
+      if ((flags & OPT_PRESENT) != 0) {
+        item.setOptions(new Options()
+            .setDroppable((flags & OPT_DROPPABLE) != 0)
+            .enableReceipt((flags & OPT_RECEIPT) != 0));
+      }
+      item.setPayload(readPayload(in));
+      return item;
+    } catch (IndexOutOfBoundsException e) {
+      throw new StreamCorruptedException("Truncated item");
+    }
+  }
+
+  private static void writeAddresses(Writer out, GlobalAddress[] addresses) {
+    if (addresses == null) {
+      out.writeVarLong(0);
+      return;
+    }
+    out.writeVarLong(addresses.length + 1);
+    for (GlobalAddress address : addresses) {
+      out.writeByte(address.getType().ordinal());
+      if (address.getType() == GlobalAddress.Type.USER) {
+        MMXid xid = address.getXid();
+        out.writeString(xid.getUserId());
+        out.writeString(xid.getDeviceId());
+        out.writeString(xid.getDisplayName());
+      } else {
+        out.writeString(address.getName());
+      }
+    }
+  }
+
+  private static GlobalAddress[] readAddresses(Reader in) {
+    int count = (int) in.readVarLong() - 1;
+    if (count < 0) {
+      return null;
+    }
+    GlobalAddress[] addresses = new GlobalAddress[count];
+    for (int i = 0; i < count; i++) {
+      if (sAddrTypes[in.readByte()] == GlobalAddress.Type.USER) {
+        String userId = in.readString();
+        String deviceId = in.readString();
+        String displayName = in.readString();
+        addresses[i] = new GlobalAddress.User(
+            new MMXid(userId, deviceId, displayName));
+      } else {
+        addresses[i] = new GlobalAddress.Topic(in.readString());
+      }
+    }
+    return addresses;
+  }
+
+  private static void writePayload(Writer out, MMXPayload payload)
+                                    throws IOException {
+    Payload payloadExt = (payload == null) ? null : payload.getPayloadExt();
+    if (payloadExt == null) {
+      out.writeByte(PAYLOAD_NONE);
+      return;
+    }
+    boolean text = payloadExt.getFile() == null;
+    out.writeByte(text ? PAYLOAD_TEXT : PAYLOAD_SERIALIZED);
+    MmxHeaders mmxMeta = payload.getMmxMeta();
+    out.writeString((mmxMeta == null || mmxMeta.isEmpty()) ?
+        null : payload.getMmxMetaJson());
+    Headers meta = payload.getMetaExt();
+    if (meta == null) {
+      out.writeVarLong(0);
+    } else {
+      out.writeVarLong(meta.size() + 1);
+      for (Map.Entry<String, String> header : meta.entrySet()) {
+        out.writeString(header.getKey());
+        out.writeString(header.getValue());
+      }
+    }
+    if (!text) {
+      byte[] data = serialize(payloadExt);
+      out.writeVarLong(data.length);
+      out.write(data, 0, data.length);
+      return;
+    }
+    out.writeString(payloadExt.getMsgType());
+    out.writeString(payloadExt.getCid());
+    out.writeString(payloadExt.formatChunk());
+    Date sentTime = payloadExt.getSentTime();
+    out.writeVarLong((sentTime == null) ? 0 : sentTime.getTime() + 1);
+    CharSequence data = payloadExt.getData();
+    out.writeString((data == null) ? null : data.toString());
+  }
+
+  private static MMXPayload readPayload(Reader in) throws IOException {
+    int kind = in.readByte();
+    if (kind == PAYLOAD_NONE) {
+      return null;
+    }
+    String mmxMetaJson = in.readString();
+    MmxHeaders mmxMeta = (mmxMetaJson == null) ? null :
+        GsonData.getGson().fromJson(mmxMetaJson, MmxHeaders.class);
+    Headers meta = null;
+    int count = (int) in.readVarLong() - 1;
+    if (count >= 0) {
+      meta = new Headers();
+      for (int i = 0; i < count; i++) {
+        String name = in.readString();
+        meta.put(name, in.readString());
+      }
+    }
+    Payload payloadExt;
+    if (kind == PAYLOAD_SERIALIZED) {
+      int length = (int) in.readVarLong();
+      payloadExt = (Payload) deserialize(in.mBuf, in.skip(length), length);
+    } else {
+      String msgType = in.readString();
+      String cid = in.readString();
+      String chunk = in.readString();
+      long sentTime = in.readVarLong();
+      payloadExt = new Payload(msgType, in.readString());
+      if (sentTime > 0) {
+        payloadExt.setSentTime(new Date(sentTime - 1));
+      }
+      payloadExt.parseChunk(chunk);
+      payloadExt.setCid(cid);
+    }
+    return new MMXPayload(mmxMeta, meta, payloadExt);
+  }
+
+  private static byte[] serialize(Object obj) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    try {
+      oos.writeObject(obj);
+    } finally {
+      oos.close();
+    }
+    return baos.toByteArray();
+  }
+
+  private static Object deserialize(byte[] data, int offset, int length)
+                                    throws IOException {
+    ObjectInputStream ois = new ObjectInputStream(
+        new ByteArrayInputStream(data, offset, length));
+    try {
+      return ois.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new StreamCorruptedException(e.getMessage());
+    } finally {
+      ois.close();
+    }
+  }
+
+  // A growable buffer without the synchronization of ByteArrayOutputStream.
+  private static class Writer {
+    private byte[] mBuf;
+    private int mSize;
+
+    Writer(int capacity) {
+      mBuf = new byte[capacity];
+    }
+
+    private void ensure(int length) {
+      if (mSize + length > mBuf.length) {
+        byte[] buf = new byte[Math.max(mBuf.length * 2, mSize + length)];
+        System.arraycopy(mBuf, 0, buf, 0, mSize);
+        mBuf = buf;
+      }
+    }
+
+    void writeByte(int b) {
+      ensure(1);
+      mBuf[mSize++] = (byte) b;
+    }
+
+    void writeVarLong(long value) {
+      ensure(10);
+      while ((value & ~0x7fL) != 0) {
+        mBuf[mSize++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      mBuf[mSize++] = (byte) value;
+    }
+
+    void write(byte[] data, int offset, int length) {
+      ensure(length);
+      System.arraycopy(data, offset, mBuf, mSize, length);
+      mSize += length;
+    }
+
+    void writeString(String str) {
+      if (str == null) {
+        writeVarLong(0);
+        return;
+      }
+      byte[] bytes = str.getBytes(UTF8);
+      writeVarLong(bytes.length + 1);
+      write(bytes, 0, bytes.length);
+    }
+
+    byte[] toByteArray() {
+      byte[] data = new byte[mSize];
+      System.arraycopy(mBuf, 0, data, 0, mSize);
+      return data;
+    }
+  }
+
+  private static class Reader {
+    private final byte[] mBuf;
+    private int mPos;
+
+    Reader(byte[] buf) {
+      mBuf = buf;
+    }
+
+    int readByte() {
+      if (mPos >= mBuf.length) {
+        throw new IndexOutOfBoundsException();
+      }
+      return mBuf[mPos++] & 0xff;
+    }
+
+    long readVarLong() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IndexOutOfBoundsException();
+    }
+
+    // Skip the bytes; return the offset of the skipped bytes.
+    int skip(int length) {
+      if (length < 0 || mPos + length > mBuf.length) {
+        throw new IndexOutOfBoundsException();
+      }
+      int offset = mPos;
+      mPos += length;
+      return offset;
+    }
+
+    String readString() {
+      int length = (int) readVarLong() - 1;
+      if (length < 0) {
+        return null;
+      }
+      return new String(mBuf, skip(length), length, UTF8);
+    }
+  }
+}
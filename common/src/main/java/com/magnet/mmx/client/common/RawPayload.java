@@ -0,0 +1,59 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import com.magnet.mmx.protocol.Payload;
+import com.magnet.mmx.util.TimeUtil;
+
+/**
+ * @hide
+ * The undecoded &lt;payload&gt; element of an incoming message.  The message
+ * type and the chunk ID are available right away; the sent time, the chunk
+ * information and the data are decoded into a {@link Payload} only when the
+ * payload is accessed.
+ */
+final class RawPayload {
+  private final String mMsgType;
+  private final String mCid;
+  private final String mChunk;
+  private final String mStamp;
+  private final String mData;
+
+  RawPayload(String msgType, String cid, String chunk, String stamp,
+              String data) {
+    mMsgType = msgType;
+    mCid = cid;
+    mChunk = chunk;
+    mStamp = stamp;
+    mData = data;
+  }
+
+  String getMsgType() {
+    return mMsgType;
+  }
+
+  String getCid() {
+    return mCid;
+  }
+
+  Payload decode() {
+    Payload payload = new Payload(mMsgType, mData);
+    payload.setSentTime(TimeUtil.toDate(mStamp));
+    payload.parseChunk(mChunk);
+    payload.setCid(mCid);
+    return payload;
+  }
+}
@@ -0,0 +1,51 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @hide
+ * A daemon timer thread shared by all connections for the short periodic
+ * housekeeping tasks (e.g. IQ timeouts and delivery log flushing.)  The tasks
+ * must not block.
+ */
+final class SharedTimer {
+  private final static ScheduledThreadPoolExecutor sTimer =
+      new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "MMX Timer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private SharedTimer() {
+  }
+
+  static ScheduledFuture<?> schedule(Runnable task, long delay) {
+    return sTimer.schedule(task, delay, TimeUnit.MILLISECONDS);
+  }
+
+  static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay) {
+    return sTimer.scheduleWithFixedDelay(task, delay, delay,
+        TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,250 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.magnet.mmx.client.common;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @hide
+ * A memory-mapped index of the last delivery time and the last delivered
+ * item ID of each topic.  The file has a 16-byte header (magic, version,
+ * record count) followed by fixed 256-byte records:
+ * <pre>
+ *   long   delivery time
+ *   short  node length, node in UTF-8 (max 170 bytes)
+ *   short  item ID length, item ID in UTF-8 (max 74 bytes)
+ * </pre>
+ * The topics with longer node names are not indexed; a longer item ID is
+ * not recorded.  The empty records found when the file is loaded are reused.
+ * This class is not thread safe.
+ */
+class TopicDeliveryIndex {
+  private final static String TAG = "TopicDeliveryIndex";
+  private final static int MAGIC = 0x4d4d5849;   // MMXI
+  private final static int VERSION = 1;
+  private final static int HEADER_SIZE = 16;
+  private final static int RECORD_SIZE = 256;
+  private final static int MAX_NODE_LEN = 170;
+  private final static int ITEM_OFFSET = 8 + 2 + MAX_NODE_LEN;
+  private final static int MAX_ITEM_LEN = RECORD_SIZE - ITEM_OFFSET - 2;
+  private final static int INITIAL_CAPACITY = 64;
+  private final String mPath;
+  private final HashMap<String, Integer> mSlots = new HashMap<String, Integer>();
+  // The empty slots below the record count.
+  private final ArrayList<Integer> mFreeSlots = new ArrayList<Integer>();
+  private MappedByteBuffer mBuffer;
+  private int mCapacity;
+  // The number of slots in use or free; new slots are allocated after them.
+  private int mCount;
+
+  private TopicDeliveryIndex(String path) {
+    mPath = path;
+  }
+
+  /**
+   * Open or create the index file.  A corrupted file will be reset.
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  static TopicDeliveryIndex open(String path) throws IOException {
+    TopicDeliveryIndex index = new TopicDeliveryIndex(path);
+    index.load();
+    return index;
+  }
+
+  private void load() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(mPath, "rw");
+    try {
+      long length = file.length();
+      int count = 0;
+      if (length >= HEADER_SIZE) {
+        file.seek(0);
+        if (file.readInt() == MAGIC && file.readInt() == VERSION) {
+          count = file.readInt();
+        }
+        if (count < 0 || HEADER_SIZE + (long) count * RECORD_SIZE > length) {
+          Log.w(TAG, "Reset corrupted delivery index: "+mPath);
+          count = 0;
+        }
+      }
+      mCapacity = Math.max(INITIAL_CAPACITY, count);
+      mBuffer = map(file, mCapacity);
+      mBuffer.putInt(0, MAGIC);
+      mBuffer.putInt(4, VERSION);
+      mBuffer.putInt(8, count);
+      for (int slot = 0; slot < count; slot++) {
+        String node = getString(offset(slot) + 8);
+        if (node != null) {
+          mSlots.put(node, slot);
+        } else {
+          mFreeSlots.add(slot);
+        }
+      }
+      mCount = count;
+    } finally {
+      file.close();
+    }
+  }
+
+  // The mapping remains valid after the file is closed.
+  private static MappedByteBuffer map(RandomAccessFile file, int capacity)
+                                      throws IOException {
+    long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+    if (file.length() < size) {
+      file.setLength(size);
+    }
+    return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  private static int offset(int slot) {
+    return HEADER_SIZE + slot * RECORD_SIZE;
+  }
+
+  private String getString(int offset) throws UnsupportedEncodingException {
+    int len = mBuffer.getShort(offset);
+    if (len <= 0) {
+      return null;
+    }
+    byte[] bytes = new byte[len];
+    for (int i = 0; i < len; i++) {
+      bytes[i] = mBuffer.get(offset + 2 + i);
+    }
+    return new String(bytes, "UTF-8");
+  }
+
+  private void putBytes(int offset, byte[] bytes) {
+    mBuffer.putShort(offset, (short) bytes.length);
+    for (int i = 0; i < bytes.length; i++) {
+      mBuffer.put(offset + 2 + i, bytes[i]);
+    }
+  }
+
+  /**
+   * Get the last delivery time of a topic.
+   * @param node The pubsub node ID.
+   * @return The last delivery time, or null if the topic is not indexed.
+   */
+  Long get(String node) {
+    Integer slot = mSlots.get(node);
+    return (slot == null) ? null : mBuffer.getLong(offset(slot));
+  }
+
+  /**
+   * Get the last delivered item ID of a topic.
+   * @param node The pubsub node ID.
+   * @return The item ID, or null if the topic is not indexed or the item ID
+   *         is not recorded.
+   * @throws IOException
+   */
+  String getItemId(String node) throws IOException {
+    Integer slot = mSlots.get(node);
+    return (slot == null) ? null : getString(offset(slot) + ITEM_OFFSET);
+  }
+
+  /**
+   * Get the indexed topics and their last delivery times.
+   * @return A map of node ID and delivery time.
+   */
+  Map<String, Long> getAll() {
+    HashMap<String, Long> all = new HashMap<String, Long>(mSlots.size());
+    for (Map.Entry<String, Integer> entry : mSlots.entrySet()) {
+      all.put(entry.getKey(), mBuffer.getLong(offset(entry.getValue())));
+    }
+    return all;
+  }
+
+  /**
+   * Get the number of indexed topics.
+   * @return
+   */
+  int size() {
+    return mSlots.size();
+  }
+
+  /**
+   * Update the last delivery time and item ID of a topic in the mapped
+   * memory.  An older time is ignored.
+   * @param node The pubsub node ID.
+   * @param time The delivery time.
+   * @param itemId The last delivered item ID, or null.
+   * @return true if the index is changed.
+   * @throws IOException
+   */
+  boolean put(String node, long time, String itemId) throws IOException {
+    byte[] itemBytes = (itemId == null) ? new byte[0] : itemId.getBytes("UTF-8");
+    if (itemBytes.length > MAX_ITEM_LEN) {
+      itemBytes = new byte[0];
+    }
+    Integer slot = mSlots.get(node);
+    int offset;
+    if (slot != null) {
+      offset = offset(slot);
+      if (time < mBuffer.getLong(offset)) {
+        return false;
+      }
+    } else {
+      byte[] nodeBytes = node.getBytes("UTF-8");
+      if (nodeBytes.length > MAX_NODE_LEN) {
+        return false;
+      }
+      if (!mFreeSlots.isEmpty()) {
+        slot = mFreeSlots.remove(mFreeSlots.size() - 1);
+      } else {
+        slot = mCount;
+        if (slot == mCapacity) {
+          grow();
+        }
+        mCount++;
+      }
+      offset = offset(slot);
+      mBuffer.putLong(offset, time);
+      putBytes(offset + 8, nodeBytes);
+      putBytes(offset + ITEM_OFFSET, itemBytes);
+      mSlots.put(node, slot);
+      mBuffer.putInt(8, mCount);
+      return true;
+    }
+    mBuffer.putLong(offset, time);
+    putBytes(offset + ITEM_OFFSET, itemBytes);
+    return true;
+  }
+
+  private void grow() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(mPath, "rw");
+    try {
+      mBuffer.force();
+      mCapacity *= 2;
+      mBuffer = map(file, mCapacity);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Write the changes to the storage.
+   */
+  void force() {
+    mBuffer.force();
+  }
+}
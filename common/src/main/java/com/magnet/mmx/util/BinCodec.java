@@ -14,6 +14,12 @@
  */
 package com.magnet.mmx.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
 /** A very fast and memory efficient class to encode and decode to and from BASE64 in full accordance
@@ -591,6 +597,285 @@ public class BinCodec
 		return dArr;
 	}
   
+  // ****************************************************************************************
+  // *  Caller-supplied buffer version
+  // ****************************************************************************************
+
+  /**
+   * Get the number of encoded characters without any line separator.
+   * @param len The number of bytes to be encoded.
+   * @param pad true to include the '=' padding.
+   * @return The number of encoded characters.
+   */
+  public static int encodedLength(int len, boolean pad) {
+    return pad ? (len + 2) / 3 * 4 : (len * 4 + 2) / 3;
+  }
+
+  /**
+   * Encode the bytes into a caller-supplied char array without any line
+   * separator.
+   * @param src The source bytes.
+   * @param srcOff The offset of the source bytes.
+   * @param len The number of bytes to be encoded.
+   * @param dst The destination array with enough room.
+   * @param dstOff The offset in the destination array.
+   * @param pad true to append the '=' padding.
+   * @return The number of chars written.
+   * @see #encodedLength(int, boolean)
+   */
+  public static int encode(byte[] src, int srcOff, int len, char[] dst,
+                            int dstOff, boolean pad) {
+    int d = dstOff;
+    int end = srcOff + (len / 3) * 3;
+    for (int s = srcOff; s < end; s += 3) {
+      int i = (src[s] & 0xff) << 16 | (src[s+1] & 0xff) << 8 | (src[s+2] & 0xff);
+      dst[d++] = CA[(i >>> 18) & 0x3f];
+      dst[d++] = CA[(i >>> 12) & 0x3f];
+      dst[d++] = CA[(i >>> 6) & 0x3f];
+      dst[d++] = CA[i & 0x3f];
+    }
+    int left = srcOff + len - end;
+    if (left > 0) {
+      int i = ((src[end] & 0xff) << 10) | (left == 2 ? ((src[end+1] & 0xff) << 2) : 0);
+      dst[d++] = CA[i >> 12];
+      dst[d++] = CA[(i >>> 6) & 0x3f];
+      if (left == 2) {
+        dst[d++] = CA[i & 0x3f];
+      } else if (pad) {
+        dst[d++] = '=';
+      }
+      if (pad) {
+        dst[d++] = '=';
+      }
+    }
+    return d - dstOff;
+  }
+
+  /**
+   * Encode the bytes into a caller-supplied byte array without any line
+   * separator.
+   * @param src The source bytes.
+   * @param srcOff The offset of the source bytes.
+   * @param len The number of bytes to be encoded.
+   * @param dst The destination array with enough room.
+   * @param dstOff The offset in the destination array.
+   * @param pad true to append the '=' padding.
+   * @return The number of bytes written.
+   * @see #encodedLength(int, boolean)
+   */
+  public static int encode(byte[] src, int srcOff, int len, byte[] dst,
+                            int dstOff, boolean pad) {
+    int d = dstOff;
+    int end = srcOff + (len / 3) * 3;
+    for (int s = srcOff; s < end; s += 3) {
+      int i = (src[s] & 0xff) << 16 | (src[s+1] & 0xff) << 8 | (src[s+2] & 0xff);
+      dst[d++] = (byte) CA[(i >>> 18) & 0x3f];
+      dst[d++] = (byte) CA[(i >>> 12) & 0x3f];
+      dst[d++] = (byte) CA[(i >>> 6) & 0x3f];
+      dst[d++] = (byte) CA[i & 0x3f];
+    }
+    int left = srcOff + len - end;
+    if (left > 0) {
+      int i = ((src[end] & 0xff) << 10) | (left == 2 ? ((src[end+1] & 0xff) << 2) : 0);
+      dst[d++] = (byte) CA[i >> 12];
+      dst[d++] = (byte) CA[(i >>> 6) & 0x3f];
+      if (left == 2) {
+        dst[d++] = (byte) CA[i & 0x3f];
+      } else if (pad) {
+        dst[d++] = '=';
+      }
+      if (pad) {
+        dst[d++] = '=';
+      }
+    }
+    return d - dstOff;
+  }
+
+  /**
+   * Encode the remaining bytes of <code>src</code> into <code>dst</code>
+   * without any line separator.  Both buffers are advanced.
+   * @param src The source buffer.
+   * @param dst The destination buffer with enough room.
+   * @param pad true to append the '=' padding.
+   * @throws java.nio.BufferOverflowException Not enough room in dst.
+   */
+  public static void encode(ByteBuffer src, CharBuffer dst, boolean pad) {
+    int len = src.remaining();
+    if (dst.remaining() < encodedLength(len, pad)) {
+      throw new BufferOverflowException();
+    }
+    if (src.hasArray() && dst.hasArray()) {
+      int n = encode(src.array(), src.arrayOffset() + src.position(), len,
+          dst.array(), dst.arrayOffset() + dst.position(), pad);
+      src.position(src.position() + len);
+      dst.position(dst.position() + n);
+      return;
+    }
+    while (src.remaining() >= 3) {
+      int i = (src.get() & 0xff) << 16 | (src.get() & 0xff) << 8 | (src.get() & 0xff);
+      dst.put(CA[(i >>> 18) & 0x3f]);
+      dst.put(CA[(i >>> 12) & 0x3f]);
+      dst.put(CA[(i >>> 6) & 0x3f]);
+      dst.put(CA[i & 0x3f]);
+    }
+    int left = src.remaining();
+    if (left > 0) {
+      int i = ((src.get() & 0xff) << 10) | (left == 2 ? ((src.get() & 0xff) << 2) : 0);
+      dst.put(CA[i >> 12]);
+      dst.put(CA[(i >>> 6) & 0x3f]);
+      if (left == 2) {
+        dst.put(CA[i & 0x3f]);
+      } else if (pad) {
+        dst.put('=');
+      }
+      if (pad) {
+        dst.put('=');
+      }
+    }
+  }
+
+  /**
+   * Encode the bytes and append the characters to <code>out</code> without
+   * any line separator.
+   * @param src The source bytes.
+   * @param srcOff The offset of the source bytes.
+   * @param len The number of bytes to be encoded.
+   * @param out A StringBuilder, Writer or any Appendable.
+   * @param pad true to append the '=' padding.
+   * @throws IOException
+   */
+  public static void encode(byte[] src, int srcOff, int len, Appendable out,
+                             boolean pad) throws IOException {
+    char[] buf = new char[4];
+    int end = srcOff + (len / 3) * 3;
+    for (int s = srcOff; s < end; s += 3) {
+      int i = (src[s] & 0xff) << 16 | (src[s+1] & 0xff) << 8 | (src[s+2] & 0xff);
+      out.append(CA[(i >>> 18) & 0x3f]);
+      out.append(CA[(i >>> 12) & 0x3f]);
+      out.append(CA[(i >>> 6) & 0x3f]);
+      out.append(CA[i & 0x3f]);
+    }
+    int n = encode(src, end, srcOff + len - end, buf, 0, pad);
+    for (int i = 0; i < n; i++) {
+      out.append(buf[i]);
+    }
+  }
+
+  /**
+   * Encode an input stream to a writer without any line separator.  The
+   * streams are not closed.
+   * @param in The input stream.
+   * @param out The writer.
+   * @param pad true to append the '=' padding.
+   * @return The number of bytes encoded.
+   * @throws IOException
+   */
+  public static long encode(InputStream in, Writer out, boolean pad)
+                              throws IOException {
+    byte[] src = new byte[3 * 1024];
+    char[] dst = new char[4 * 1024];
+    long total = 0;
+    int n;
+    do {
+      // Fill the whole block so only the last block may be padded.
+      n = 0;
+      int len;
+      while (n < src.length && (len = in.read(src, n, src.length - n)) > 0) {
+        n += len;
+      }
+      out.write(dst, 0, encode(src, 0, n, dst, 0, pad));
+      total += n;
+    } while (n == src.length);
+    return total;
+  }
+
+  /**
+   * Decode the characters into a caller-supplied byte array.  Illegal
+   * characters (e.g. line separators) are ignored and the '=' padding is
+   * optional.
+   * @param src The encoded characters.
+   * @param srcOff The offset of the encoded characters.
+   * @param len The number of characters to be decoded.
+   * @param dst The destination array with enough room (len * 3 / 4.)
+   * @param dstOff The offset in the destination array.
+   * @return The number of bytes written, or -1 if the encoding is corrupted.
+   */
+  public static int decode(CharSequence src, int srcOff, int len, byte[] dst,
+                            int dstOff) {
+    int d = dstOff;
+    int bits = 0;
+    int cnt = 0;
+    for (int s = srcOff, end = srcOff + len; s < end; s++) {
+      char c = src.charAt(s);
+      if (c == '=') {
+        break;
+      }
+      int v = (c < 256) ? IA[c] : -1;
+      if (v < 0) {
+        continue;
+      }
+      bits = (bits << 6) | v;
+      if (++cnt == 4) {
+        dst[d++] = (byte) (bits >> 16);
+        dst[d++] = (byte) (bits >> 8);
+        dst[d++] = (byte) bits;
+        bits = 0;
+        cnt = 0;
+      }
+    }
+    if (cnt == 1) {
+      return -1;
+    } else if (cnt == 2) {
+      dst[d++] = (byte) (bits >> 4);
+    } else if (cnt == 3) {
+      dst[d++] = (byte) (bits >> 10);
+      dst[d++] = (byte) (bits >> 2);
+    }
+    return d - dstOff;
+  }
+
+  /**
+   * Decode the remaining characters of <code>src</code> into <code>dst</code>.
+   * Both buffers are advanced.
+   * @param src The encoded characters.
+   * @param dst The destination buffer with enough room.
+   * @return The number of bytes written, or -1 if the encoding is corrupted.
+   * @throws java.nio.BufferOverflowException Not enough room in dst.
+   */
+  public static int decode(CharBuffer src, ByteBuffer dst) {
+    int start = dst.position();
+    int bits = 0;
+    int cnt = 0;
+    while (src.hasRemaining()) {
+      char c = src.get();
+      if (c == '=') {
+        src.position(src.limit());
+        break;
+      }
+      int v = (c < 256) ? IA[c] : -1;
+      if (v < 0) {
+        continue;
+      }
+      bits = (bits << 6) | v;
+      if (++cnt == 4) {
+        dst.put((byte) (bits >> 16));
+        dst.put((byte) (bits >> 8));
+        dst.put((byte) bits);
+        bits = 0;
+        cnt = 0;
+      }
+    }
+    if (cnt == 1) {
+      return -1;
+    } else if (cnt == 2) {
+      dst.put((byte) (bits >> 4));
+    } else if (cnt == 3) {
+      dst.put((byte) (bits >> 10));
+      dst.put((byte) (bits >> 2));
+    }
+    return dst.position() - start;
+  }
+
   public static void intToBytes(int value, byte[] dst, int offset) {
     offset += 4;
     for (int len = 4; --len >= 0; ) {
@@ -0,0 +1,85 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @hide
+ * A concurrent cache with an approximate bound.  When the cache is full,
+ * about a quarter of the entries are evicted in no particular order.  It is
+ * meant for the values that are cheap to recompute but computed very often.
+ */
+public class BoundedCache<K, V> {
+  private final ConcurrentHashMap<K, V> mMap;
+  private final int mCapacity;
+
+  /**
+   * Constructor.
+   * @param capacity The max number of entries.
+   */
+  public BoundedCache(int capacity) {
+    mCapacity = capacity;
+    mMap = new ConcurrentHashMap<K, V>(Math.min(capacity, 256));
+  }
+
+  /**
+   * Get a cached value.
+   * @param key A non-null key.
+   * @return The value, or null if it is not cached.
+   */
+  public V get(K key) {
+    return mMap.get(key);
+  }
+
+  /**
+   * Cache a value.
+   * @param key A non-null key.
+   * @param value A non-null value.
+   * @return The value.
+   */
+  public V put(K key, V value) {
+    if (mMap.size() >= mCapacity) {
+      evict();
+    }
+    mMap.put(key, value);
+    return value;
+  }
+
+  /**
+   * Remove all cached values.
+   */
+  public void clear() {
+    mMap.clear();
+  }
+
+  /**
+   * Get the number of cached values.
+   * @return
+   */
+  public int size() {
+    return mMap.size();
+  }
+
+  private void evict() {
+    int count = Math.max(mCapacity / 4, 1);
+    Iterator<K> it = mMap.keySet().iterator();
+    while (it.hasNext() && --count >= 0) {
+      it.next();
+      it.remove();
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @hide
+ * A dispatcher with a bounded capacity on top of another dispatcher.  When
+ * the number of pending tasks reaches the capacity, the overflow policy
+ * decides what to do with the posting thread and the task.
+ */
+public class BoundedDispatcher implements Dispatcher {
+  /**
+   * The policies when the capacity is reached.
+   */
+  public static enum OverflowPolicy {
+    /**
+     * Block the posting thread until there is room.
+     */
+    BLOCK,
+    /**
+     * Drop the droppable tasks; block the posting thread for the others.
+     */
+    DROP_DROPPABLE,
+    /**
+     * Accept the task and notify {@link WatermarkListener#onHighWater()}; the
+     * listener should stop the producer until
+     * {@link WatermarkListener#onLowWater()} is called.
+     */
+    SUSPEND
+  }
+
+  /**
+   * The listener for the water marks.  Both callbacks must not block.
+   */
+  public static interface WatermarkListener {
+    /**
+     * The capacity is reached.  It is called in the posting thread.
+     */
+    public void onHighWater();
+    /**
+     * The pending tasks fall to the low-water mark after
+     * {@link #onHighWater()}.  It is called in the dispatcher thread, or in
+     * the posting thread if the tasks are drained while it is suspending.
+     */
+    public void onLowWater();
+  }
+
+  private final Dispatcher mTarget;
+  private final int mCapacity;
+  private final int mLowWater;
+  private final OverflowPolicy mPolicy;
+  private final WatermarkListener mListener;
+  private final AtomicInteger mPending = new AtomicInteger();
+  private volatile boolean mSuspended;
+  private final AtomicLong mDropped = new AtomicLong();
+  private final AtomicLong mBlocked = new AtomicLong();
+  private final Object mLock = new Object();
+  // Serializes the water mark transitions and their callbacks.
+  private final Object mWatermarkLock = new Object();
+  private volatile int mWaiters;
+  private volatile boolean mDone;
+
+  /**
+   * Constructor.
+   * @param target The dispatcher to run the tasks.
+   * @param capacity The max number of pending tasks.
+   * @param lowWater The low-water mark for the SUSPEND policy.
+   * @param policy The overflow policy.
+   * @param listener A listener for the SUSPEND policy, or null.
+   */
+  public BoundedDispatcher(Dispatcher target, int capacity, int lowWater,
+                            OverflowPolicy policy, WatermarkListener listener) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    }
+    if (lowWater < 0 || lowWater >= capacity) {
+      throw new IllegalArgumentException("Low-water mark must be between 0 and "+
+                                          (capacity-1));
+    }
+    mTarget = target;
+    mCapacity = capacity;
+    mLowWater = lowWater;
+    mPolicy = policy;
+    mListener = listener;
+  }
+
+  /**
+   * Post a non-droppable task without ordering requirement.
+   * @param task
+   */
+  @Override
+  public void post(Runnable task) {
+    post(null, task, false);
+  }
+
+  /**
+   * Post a non-droppable task.
+   * @param key
+   * @param task
+   */
+  @Override
+  public void post(Object key, Runnable task) {
+    post(key, task, false);
+  }
+
+  /**
+   * Post a task.  Depending on the overflow policy, the calling thread may be
+   * blocked or the droppable task may be dropped when the capacity is reached.
+   * @param key A key to serialize the tasks, or null.
+   * @param task The task.
+   * @param droppable true if the task can be dropped.
+   * @return true if the task is accepted, false if it is dropped.
+   */
+  public boolean post(Object key, final Runnable task, boolean droppable) {
+    if (!acquire(droppable)) {
+      return false;
+    }
+    mTarget.post(key, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          release();
+        }
+      }
+    });
+    return true;
+  }
+
+  private boolean acquire(boolean droppable) {
+    if (mPolicy == OverflowPolicy.SUSPEND) {
+      if (mPending.incrementAndGet() >= mCapacity && !mSuspended) {
+        suspend();
+      }
+      return true;
+    }
+    boolean blocked = false;
+    for (;;) {
+      int pending = mPending.get();
+      if (pending < mCapacity) {
+        if (mPending.compareAndSet(pending, pending + 1)) {
+          return true;
+        }
+        continue;
+      }
+      if (mDone) {
+        return false;
+      }
+      if (droppable && mPolicy == OverflowPolicy.DROP_DROPPABLE) {
+        mDropped.incrementAndGet();
+        return false;
+      }
+      if (!blocked) {
+        blocked = true;
+        mBlocked.incrementAndGet();
+      }
+      synchronized(mLock) {
+        ++mWaiters;
+        try {
+          if (mPending.get() >= mCapacity && !mDone) {
+            mLock.wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        } finally {
+          --mWaiters;
+        }
+      }
+    }
+  }
+
+  private void release() {
+    int pending = mPending.decrementAndGet();
+    if (mWaiters > 0) {
+      synchronized(mLock) {
+        mLock.notifyAll();
+      }
+    }
+    if (pending <= mLowWater && mSuspended) {
+      resume();
+    }
+  }
+
+  // A consumer may drain the tasks after the capacity is reached but before
+  // the suspension is visible; it does not resume, so the pending tasks are
+  // checked again after suspending.
+  private void suspend() {
+    synchronized(mWatermarkLock) {
+      if (mSuspended || mPending.get() < mCapacity) {
+        return;
+      }
+      mSuspended = true;
+      if (mListener != null) {
+        mListener.onHighWater();
+      }
+    }
+    resume();
+  }
+
+  private void resume() {
+    synchronized(mWatermarkLock) {
+      if (!mSuspended || mPending.get() > mLowWater) {
+        return;
+      }
+      mSuspended = false;
+      if (mListener != null) {
+        mListener.onLowWater();
+      }
+    }
+  }
+
+  /**
+   * Quit the underlying dispatcher and release any blocked posting threads.
+   */
+  @Override
+  public void quit() {
+    mDone = true;
+    synchronized(mLock) {
+      mLock.notifyAll();
+    }
+    mTarget.quit();
+  }
+
+  /**
+   * Get the underlying dispatcher.
+   * @return
+   */
+  public Dispatcher getTarget() {
+    return mTarget;
+  }
+
+  /**
+   * Get the number of pending tasks.
+   * @return
+   */
+  public int getPendingCount() {
+    return mPending.get();
+  }
+
+  /**
+   * Get the number of dropped tasks.
+   * @return
+   */
+  public long getDroppedCount() {
+    return mDropped.get();
+  }
+
+  /**
+   * Get the number of times a posting thread was blocked.
+   * @return
+   */
+  public long getBlockedCount() {
+    return mBlocked.get();
+  }
+
+  /**
+   * Check if the producer is suspended by the SUSPEND policy.
+   * @return
+   */
+  public boolean isSuspended() {
+    return mSuspended;
+  }
+}
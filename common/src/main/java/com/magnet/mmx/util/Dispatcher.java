@@ -0,0 +1,42 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.util;
+
+/**
+ * @hide
+ * An abstraction of the executor that runs the posted tasks.  Tasks posted
+ * with the same key are run in the posted order; tasks with different keys
+ * may be run concurrently if the implementation has more than one thread.
+ */
+public interface Dispatcher {
+  /**
+   * Post a task for execution without any ordering requirement.
+   * @param task
+   */
+  public void post(Runnable task);
+
+  /**
+   * Post a task for execution.  All tasks with the same key are run in the
+   * order of posting.
+   * @param key A key to serialize the tasks (e.g. a JID or a topic), or null.
+   * @param task
+   */
+  public void post(Object key, Runnable task);
+
+  /**
+   * Stop the dispatcher.  Any pending tasks may be lost.
+   */
+  public void quit();
+}
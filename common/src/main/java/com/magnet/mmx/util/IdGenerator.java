@@ -0,0 +1,73 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @hide
+ * A lock-free generator of unique IDs in the format of
+ * <i>prefix</i>-<i>sequence</i>, where the sequence is a base-36 counter
+ * starting from 1.  The prefix is rendered once and each ID is built in a
+ * per-thread char buffer.
+ */
+public class IdGenerator {
+  private final static char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+  private final static int MAX_SEQ_LEN = 13;    // Long.MAX_VALUE in base 36
+  private final static ThreadLocal<char[]> sBuffer = new ThreadLocal<char[]>();
+  private final char[] mPrefix;
+  private final AtomicLong mSeq = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param prefix The prefix of all IDs without the "-" separator.
+   */
+  public IdGenerator(String prefix) {
+    mPrefix = (prefix + '-').toCharArray();
+  }
+
+  /**
+   * Generate the next ID.  The result is the same as
+   * <code>prefix + '-' + Long.toString(seq, 36)</code>.
+   * @return A unique ID.
+   */
+  public String next() {
+    long seq = mSeq.incrementAndGet();
+    int size = mPrefix.length + MAX_SEQ_LEN;
+    char[] buf = sBuffer.get();
+    if (buf == null || buf.length < size) {
+      buf = new char[Math.max(size, 64)];
+      sBuffer.set(buf);
+    }
+    // Render the counter backward at the end of the buffer, then copy the
+    // prefix in front of it.
+    int pos = size;
+    do {
+      buf[--pos] = DIGITS[(int) (seq % 36)];
+      seq /= 36;
+    } while (seq > 0);
+    int start = pos - mPrefix.length;
+    System.arraycopy(mPrefix, 0, buf, start, mPrefix.length);
+    return new String(buf, start, size - start);
+  }
+
+  /**
+   * Get the last generated sequence number.
+   * @return The sequence number, or 0 if no ID has been generated.
+   */
+  public long getSequence() {
+    return mSeq.get();
+  }
+}
@@ -0,0 +1,107 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @hide
+ * A set of disjoint half-open ranges [start, end).  Adjacent or overlapping
+ * ranges are merged when they are added.  This class is not thread safe.
+ */
+public class IntervalSet {
+  // Start of a range to its end; the ranges are disjoint and not adjacent.
+  private final TreeMap<Long, Long> mRanges = new TreeMap<Long, Long>();
+  private long mLength;
+
+  /**
+   * Add a range [start, end).  An empty range is ignored.
+   * @param start The inclusive start.
+   * @param end The exclusive end.
+   */
+  public void add(long start, long end) {
+    if (start >= end) {
+      return;
+    }
+    Map.Entry<Long, Long> prev = mRanges.floorEntry(start);
+    if (prev != null && prev.getValue() >= start) {
+      if (prev.getValue() >= end) {
+        return;
+      }
+      start = prev.getKey();
+      mLength -= prev.getValue() - prev.getKey();
+      mRanges.remove(start);
+    }
+    Map.Entry<Long, Long> next;
+    while ((next = mRanges.ceilingEntry(start)) != null && next.getKey() <= end) {
+      end = Math.max(end, next.getValue());
+      mLength -= next.getValue() - next.getKey();
+      mRanges.remove(next.getKey());
+    }
+    mRanges.put(start, end);
+    mLength += end - start;
+  }
+
+  /**
+   * Check if the range [start, end) is fully covered.
+   * @param start The inclusive start.
+   * @param end The exclusive end.
+   * @return
+   */
+  public boolean covers(long start, long end) {
+    if (start >= end) {
+      return true;
+    }
+    Map.Entry<Long, Long> range = mRanges.floorEntry(start);
+    return range != null && range.getValue() >= end;
+  }
+
+  /**
+   * Get the total length of all ranges.
+   * @return
+   */
+  public long getLength() {
+    return mLength;
+  }
+
+  /**
+   * Get the number of disjoint ranges.
+   * @return
+   */
+  public int size() {
+    return mRanges.size();
+  }
+
+  /**
+   * Remove all ranges.
+   */
+  public void clear() {
+    mRanges.clear();
+    mLength = 0;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+      if (sb.length() > 1) {
+        sb.append(", ");
+      }
+      sb.append(range.getKey()).append('-').append(range.getValue());
+    }
+    return sb.append(']').toString();
+  }
+}
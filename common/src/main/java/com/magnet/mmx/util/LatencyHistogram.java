@@ -0,0 +1,144 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @hide
+ * A lock-free histogram of non-negative values (e.g. latencies in
+ * milliseconds.)  Values below 16 are counted exactly; each larger power of
+ * two is split into 8 buckets, so a percentile is within 12.5% of the actual
+ * value.
+ */
+public class LatencyHistogram {
+  private final static int SUB_BITS = 3;
+  private final static int SUB_COUNT = 1 << SUB_BITS;
+  private final static int LINEAR = SUB_COUNT << 1;
+  private final static int LINEAR_BITS = SUB_BITS + 1;
+  private final static int BUCKETS = LINEAR + (63 - LINEAR_BITS) * SUB_COUNT;
+  private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  /**
+   * Record a value.  A negative value is recorded as 0.
+   * @param value
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    mCounts.incrementAndGet(indexOf(value));
+    mCount.incrementAndGet();
+    mSum.addAndGet(value);
+    long max;
+    while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+      // Retry.
+    }
+  }
+
+  /**
+   * Get the number of recorded values.
+   * @return
+   */
+  public long getCount() {
+    return mCount.get();
+  }
+
+  /**
+   * Get the largest recorded value.
+   * @return The largest value, or 0 if nothing is recorded.
+   */
+  public long getMax() {
+    return mMax.get();
+  }
+
+  /**
+   * Get the average of the recorded values.
+   * @return The average, or 0 if nothing is recorded.
+   */
+  public double getMean() {
+    long count = mCount.get();
+    return (count == 0) ? 0 : (double) mSum.get() / count;
+  }
+
+  /**
+   * Get the value at a percentile.  The result is the upper bound of the
+   * bucket holding the percentile, but never larger than the max value.
+   * @param percentile A percentile between 0 and 100 (e.g. 99.9)
+   * @return The value, or 0 if nothing is recorded.
+   */
+  public long getPercentile(double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += mCounts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) *
+                                  total / 100);
+    rank = Math.max(1, rank);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += mCounts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), mMax.get());
+      }
+    }
+    return mMax.get();
+  }
+
+  /**
+   * Discard all recorded values.  Values recorded concurrently may be
+   * partially discarded.
+   */
+  public void clear() {
+    for (int i = 0; i < BUCKETS; i++) {
+      mCounts.set(i, 0);
+    }
+    mCount.set(0);
+    mSum.set(0);
+    mMax.set(0);
+  }
+
+  private static int indexOf(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    int msb = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (msb - SUB_BITS)) & (SUB_COUNT - 1);
+    return LINEAR + (msb - LINEAR_BITS) * SUB_COUNT + sub;
+  }
+
+  private static long upperBoundOf(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int msb = LINEAR_BITS + (index - LINEAR) / SUB_COUNT;
+    int sub = (index - LINEAR) % SUB_COUNT;
+    long width = 1L << (msb - SUB_BITS);
+    return ((SUB_COUNT + sub) * width) + width - 1;
+  }
+
+  @Override
+  public String toString() {
+    return "{count="+getCount()+", mean="+(long) getMean()+", p50="+
+        getPercentile(50)+", p99="+getPercentile(99)+", max="+getMax()+"}";
+  }
+}
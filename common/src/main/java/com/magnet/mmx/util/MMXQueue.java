@@ -192,6 +192,14 @@ public interface MMXQueue {
    */
   public Set<String> getPendingItemIds();
 
+  /**
+   * Gets the number of pending items in the queue without copying their
+   * identifiers.
+   *
+   * @return the number of pending items
+   */
+  public int size();
+
   /**
    * Processes the pending items on the queue
    */
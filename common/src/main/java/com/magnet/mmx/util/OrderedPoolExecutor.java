@@ -0,0 +1,91 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @hide
+ * A pool of serial queues.  Tasks with the same key are always routed to the
+ * same queue so they are run in the order of posting, while tasks with
+ * different keys may be run concurrently.
+ */
+public class OrderedPoolExecutor implements Dispatcher {
+  private final QueueExecutor[] mLanes;
+  private final AtomicInteger mNext = new AtomicInteger();
+
+  /**
+   * Constructor.
+   * @param prefix The prefix of the thread names.
+   * @param isDaemon true for daemon threads.
+   * @param poolSize The number of threads.
+   */
+  public OrderedPoolExecutor(String prefix, boolean isDaemon, int poolSize) {
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("Pool size must be at least 1");
+    }
+    mLanes = new QueueExecutor[poolSize];
+    for (int i = 0; i < poolSize; i++) {
+      mLanes[i] = new QueueExecutor(prefix+"-"+(i+1), isDaemon);
+      mLanes[i].start();
+    }
+  }
+
+  /**
+   * Post a task to any queue in a round robin fashion.
+   * @param task
+   */
+  @Override
+  public void post(Runnable task) {
+    int index = (mNext.getAndIncrement() & Integer.MAX_VALUE) % mLanes.length;
+    mLanes[index].post(task);
+  }
+
+  /**
+   * Post a task to the queue assigned to the key.  A null key is same as
+   * {@link #post(Runnable)}.
+   * @param key
+   * @param task
+   */
+  @Override
+  public void post(Object key, Runnable task) {
+    if (key == null) {
+      post(task);
+      return;
+    }
+    // Spread the hash bits because the JID's usually have similar prefixes.
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    mLanes[(h & Integer.MAX_VALUE) % mLanes.length].post(task);
+  }
+
+  /**
+   * Quit all threads.  Any pending tasks will be lost.
+   */
+  @Override
+  public void quit() {
+    for (QueueExecutor lane : mLanes) {
+      lane.quit();
+    }
+  }
+
+  /**
+   * Get the number of threads in this pool.
+   * @return
+   */
+  public int getPoolSize() {
+    return mLanes.length;
+  }
+}
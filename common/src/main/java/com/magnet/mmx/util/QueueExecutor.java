@@ -12,20 +12,42 @@
  *  See the License for the specific language governing permissions and
  *  limitations under the License.
  */
-
 package com.magnet.mmx.util;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @hide
- * A thread with a queue.
+ * A thread with a queue.  The queue is a lock-free multi-producer and
+ * single-consumer linked queue; the posting threads never block each other,
+ * and the thread is unparked only when the queue changes from empty to
+ * non-empty.  The tasks are drained in batches.
  */
-public class QueueExecutor extends Thread {
-  private boolean mDone;
-  private Queue<Runnable> mQueue = new LinkedList<Runnable>();
-  
+public class QueueExecutor extends Thread implements Dispatcher {
+  // Max number of tasks to be run before the queue depth is updated.
+  private final static int MAX_BATCH = 64;
+  private volatile boolean mDone;
+  // Producers swap the head; only this thread advances the tail.
+  private final AtomicReference<Node> mHead;
+  private Node mTail;
+  private final AtomicInteger mDepth = new AtomicInteger();
+  // Statistics written by this thread only.
+  private volatile long mTaskCount;
+  private volatile long mBatchCount;
+  private volatile long mDrainNanos;
+  private volatile long mMaxDrainNanos;
+
+  private static class Node {
+    private Runnable mTask;
+    private volatile Node mNext;
+
+    Node(Runnable task) {
+      mTask = task;
+    }
+  }
+
   /**
    * Default constructor.
    * @param name The thread name.
@@ -34,49 +56,129 @@ public class QueueExecutor extends Thread {
   public QueueExecutor(String name, boolean isDaemon) {
     super(name);
     this.setDaemon(isDaemon);
+    mTail = new Node(null);
+    mHead = new AtomicReference<Node>(mTail);
   }
-  
+
   /**
    * Post a task to the queue for execution.
    * @param task
    */
+  @Override
   public void post(Runnable task) {
-    synchronized(mQueue) {
-      mQueue.offer(task);
-      mQueue.notify();
+    Node node = new Node(task);
+    mHead.getAndSet(node).mNext = node;
+    if (mDepth.getAndIncrement() == 0) {
+      LockSupport.unpark(this);
     }
   }
-  
+
+  /**
+   * Post a task to the queue for execution.  The key is ignored because all
+   * tasks are run in the order of posting.
+   * @param key
+   * @param task
+   */
+  @Override
+  public void post(Object key, Runnable task) {
+    post(task);
+  }
+
   /**
    * Quit this thread.  Any pending tasks will be lost.
    */
+  @Override
   public void quit() {
-    synchronized(mQueue) {
-      mDone = true;
-      mQueue.notify();
+    mDone = true;
+    LockSupport.unpark(this);
+  }
+
+  /**
+   * Get the number of tasks posted but not completed yet.  The tasks in the
+   * batch being drained are counted until the batch is done.
+   * @return
+   */
+  public int getQueueDepth() {
+    return mDepth.get();
+  }
+
+  /**
+   * Get the number of completed tasks.
+   * @return
+   */
+  public long getCompletedTaskCount() {
+    return mTaskCount;
+  }
+
+  /**
+   * Get the number of drained batches.
+   * @return
+   */
+  public long getBatchCount() {
+    return mBatchCount;
+  }
+
+  /**
+   * Get the total time in nanoseconds spent in draining the batches.
+   * @return
+   */
+  public long getTotalDrainNanos() {
+    return mDrainNanos;
+  }
+
+  /**
+   * Get the longest time in nanoseconds spent in draining a batch.
+   * @return
+   */
+  public long getMaxDrainNanos() {
+    return mMaxDrainNanos;
+  }
+
+  // Run up to MAX_BATCH tasks; return the number of tasks run.
+  private int drain() {
+    Node next = mTail.mNext;
+    if (next == null) {
+      return 0;
+    }
+    long start = System.nanoTime();
+    int count = 0;
+    do {
+      Runnable task = next.mTask;
+      next.mTask = null;
+      mTail = next;
+      try {
+        task.run();
+      } catch (Throwable e) {
+        e.printStackTrace();
+      }
+    } while (++count < MAX_BATCH && !mDone && (next = mTail.mNext) != null);
+    mDepth.addAndGet(-count);
+
+    long elapsed = System.nanoTime() - start;
+    mTaskCount += count;
+    mBatchCount++;
+    mDrainNanos += elapsed;
+    if (elapsed > mMaxDrainNanos) {
+      mMaxDrainNanos = elapsed;
     }
+    return count;
   }
-  
+
   /**
    * The main loop.
    */
   @Override
   final public void run() {
-    Runnable task;
-    do {
-      try {
-        while ((task = mQueue.poll()) != null) {
-          task.run();
-        }
-        synchronized(mQueue) {
-          if (mDone) {
-            return;
-          }
-          mQueue.wait();
+    while (!mDone) {
+      if (drain() == 0) {
+        if (mDepth.get() == 0) {
+          // A post() after this check will unpark this thread.
+          LockSupport.park(this);
+        } else {
+          // A producer is in the middle of linking a node.
+          Thread.yield();
         }
-      } catch (Throwable e) {
-        e.printStackTrace();
       }
-    } while (!mDone);
+    }
   }
 }
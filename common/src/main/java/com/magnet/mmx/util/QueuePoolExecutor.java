@@ -21,9 +21,10 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * @hide
- * A queue with a thread pool.
+ * A queue with a thread pool.  The tasks are run concurrently without any
+ * ordering.
  */
-public class QueuePoolExecutor {
+public class QueuePoolExecutor implements Dispatcher {
   private String mPrefix;
   private boolean mDaemon;
   private ThreadPoolExecutor mExecutor;
@@ -42,14 +43,25 @@ public class QueuePoolExecutor {
   public QueuePoolExecutor(String prefix, boolean isDaemon, int maxPoolSize) {
     mPrefix = prefix;
     mDaemon = isDaemon;
-    mExecutor = new ThreadPoolExecutor(1, maxPoolSize, 5L, TimeUnit.SECONDS,
-        new LinkedBlockingQueue<Runnable>(), new QueueThreadFactory());
+    // With an unbounded queue, the pool never grows beyond the core size; let
+    // the idle core threads time out instead.
+    mExecutor = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, 5L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new QueueThreadFactory());
+    mExecutor.allowCoreThreadTimeOut(true);
   }
 
+  @Override
   public void post(Runnable task) {
     mExecutor.execute(task);
   }
 
+  @Override
+  public void post(Object key, Runnable task) {
+    mExecutor.execute(task);
+  }
+
+  @Override
   public void quit() {
     mExecutor.shutdown();
   }
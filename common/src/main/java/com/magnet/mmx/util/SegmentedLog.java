@@ -0,0 +1,824 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import com.magnet.mmx.client.common.Log;
+
+/**
+ * @hide
+ * A durable key-value log for queued items.  The records are appended to
+ * segment files and each record is protected by CRC32; a torn or corrupted
+ * tail is truncated on recovery.  An in-memory index maps each ID to its
+ * record and keeps the IDs in the order of the first append.  Concurrent
+ * writers share one fsync (group commit) unless a weaker {@link SyncPolicy}
+ * is chosen.  Removing a record appends a tombstone; the oldest segments are
+ * deleted once all their records are removed, or rewritten into the active
+ * segment when they are mostly garbage.  The sealed segments are memory
+ * mapped for reading.  Before the segments are deleted, the number of the
+ * oldest segment still in use is recorded in a base file; the older segments
+ * are skipped on recovery even if their deletion failed.  A record may have
+ * a small metadata which is kept in the index, so it can be queried without
+ * reading the record.  The directory is locked while the log is open, so
+ * only one log can use it across threads and processes.
+ * <p>
+ * Record format (big endian):
+ * <pre>
+ * int length    // bytes after this field
+ * int crc       // CRC32 of the bytes after this field
+ * byte op       // OP_PUT, OP_PUT_META or OP_DEL
+ * long seq      // the order of the first append
+ * byte type     // an application type
+ * short idLen
+ * byte[] id     // UTF-8
+ * int metaLen   // OP_PUT_META only
+ * byte[] meta   // OP_PUT_META only
+ * byte[] data
+ * </pre>
+ */
+public class SegmentedLog implements Closeable {
+  private final static String TAG = "SegmentedLog";
+  private final static String SUFFIX = ".seg";
+  private final static String LOCK_FILE = "log.lock";
+  private final static String BASE_FILE = "log.base";
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+  private final static byte OP_PUT = 1;
+  private final static byte OP_DEL = 2;
+  private final static byte OP_PUT_META = 3;
+  // length + crc
+  private final static int PREFIX_SIZE = 8;
+  // op + seq + type + idLen
+  private final static int HEADER_SIZE = 1 + 8 + 1 + 2;
+  /**
+   * The default segment size.
+   */
+  public final static long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+  private static Timer sSyncTimer;
+
+  /**
+   * When the appended records are forced to the storage.
+   */
+  public static enum SyncPolicy {
+    /**
+     * Each put or remove waits for its fsync; the concurrent writers share
+     * one fsync.
+     */
+    ALWAYS,
+    /**
+     * The records are forced periodically and when a segment is sealed; the
+     * records appended within the last interval may be lost in a crash.
+     */
+    INTERVAL,
+    /**
+     * The records are forced only when a segment is sealed or the log is
+     * closed; the OS decides when to write the rest.
+     */
+    NONE
+  }
+
+  private final File mDir;
+  private final long mSegmentSize;
+  private final SyncPolicy mSyncPolicy;
+  private final RandomAccessFile mLockFile;
+  private final FileLock mLock;
+  private TimerTask mSyncTask;
+  private final TreeMap<Long, Segment> mSegments = new TreeMap<Long, Segment>();
+  private final HashMap<String, Entry> mIndex = new HashMap<String, Entry>();
+  private final TreeMap<Long, Entry> mOrder = new TreeMap<Long, Entry>();
+  private final Object mCommitLock = new Object();
+  private Segment mActive;
+  // The segments below this number are obsolete.
+  private long mBase;
+  private long mNextSeq;
+  // Number of appends; the commit tickets.
+  private long mWritten;
+  private volatile long mSynced;
+  private boolean mClosed;
+
+  private static class Segment {
+    private final long mNumber;
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private long mSize;
+    private int mLive;
+    private long mLiveBytes;
+    // The read-only mapping of a sealed segment.
+    private MappedByteBuffer mMap;
+
+    Segment(File dir, long number) throws IOException {
+      mNumber = number;
+      mFile = new File(dir, String.format("%016x", number) + SUFFIX);
+      mRaf = new RandomAccessFile(mFile, "rw");
+      mChannel = mRaf.getChannel();
+      mSize = mChannel.size();
+    }
+
+    // Map a sealed segment on the first read; the size no longer changes.
+    // The mapping is released by GC after the segment is closed.
+    ByteBuffer map() throws IOException {
+      if (mMap == null) {
+        mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mSize);
+      }
+      return mMap.duplicate();
+    }
+
+    void close() {
+      mMap = null;
+      try {
+        mRaf.close();
+      } catch (IOException e) {
+        // Ignored.
+      }
+    }
+
+    void delete() {
+      close();
+      if (!mFile.delete() && mFile.exists()) {
+        Log.w(TAG, "Unable to delete segment "+mFile+"; it will be skipped");
+      }
+    }
+  }
+
+  private static class Entry {
+    private final String mId;
+    private final long mSeq;
+    private final int mType;
+    private final byte[] mMeta;
+    private Segment mSegment;
+    private long mOffset;
+    private int mLength;
+
+    Entry(String id, long seq, int type, byte[] meta, Segment segment,
+           long offset, int length) {
+      mId = id;
+      mSeq = seq;
+      mType = type;
+      mMeta = meta;
+      mSegment = segment;
+      mOffset = offset;
+      mLength = length;
+    }
+  }
+
+  /**
+   * Open a log in a directory, and recover the records from the existing
+   * segment files.
+   * @param dir The directory of the segment files.
+   * @param segmentSize The size of a segment file to roll over.
+   * @throws IOException
+   */
+  public SegmentedLog(File dir, long segmentSize) throws IOException {
+    this(dir, segmentSize, SyncPolicy.ALWAYS, 0);
+  }
+
+  /**
+   * Open a log in a directory with a sync policy, and recover the records
+   * from the existing segment files.
+   * @param dir The directory of the segment files.
+   * @param segmentSize The size of a segment file to roll over.
+   * @param syncPolicy The sync policy.
+   * @param syncInterval The interval in milliseconds for
+   *        {@link SyncPolicy#INTERVAL}.
+   * @throws IOException The directory cannot be opened or it is locked by
+   *        another log.
+   */
+  public SegmentedLog(File dir, long segmentSize, SyncPolicy syncPolicy,
+                       long syncInterval) throws IOException {
+    mDir = dir;
+    mSegmentSize = Math.max(4096, Math.min(Integer.MAX_VALUE, segmentSize));
+    mSyncPolicy = syncPolicy;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create the log directory "+dir);
+    }
+    mLockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+    FileLock lock = null;
+    try {
+      lock = mLockFile.getChannel().tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Locked by another log in this process.
+    }
+    if (lock == null) {
+      mLockFile.close();
+      throw new IOException("The log directory is in use: "+dir);
+    }
+    mLock = lock;
+    try {
+      recover();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+    if (syncPolicy == SyncPolicy.INTERVAL) {
+      mSyncTask = new TimerTask() {
+        @Override
+        public void run() {
+          try {
+            sync();
+          } catch (IOException e) {
+            Log.w(TAG, "Unable to sync "+mDir, e);
+          }
+        }
+      };
+      long interval = Math.max(1, syncInterval);
+      getSyncTimer().schedule(mSyncTask, interval, interval);
+    }
+  }
+
+  private static synchronized Timer getSyncTimer() {
+    if (sSyncTimer == null) {
+      sSyncTimer = new Timer("SegmentedLog Sync", true);
+    }
+    return sSyncTimer;
+  }
+
+  /**
+   * Append a record, and wait until it is durable.  An existing record with
+   * the same ID is replaced but it keeps its order.
+   * @param id A non-null ID.
+   * @param type An application type between 0 and 127.
+   * @param data The data.
+   * @throws IOException
+   */
+  public void put(String id, int type, byte[] data) throws IOException {
+    put(id, type, null, data);
+  }
+
+  /**
+   * Append a record with metadata, and wait until it is durable.  The
+   * metadata is kept in memory until the record is removed.
+   * @param id A non-null ID.
+   * @param type An application type between 0 and 127.
+   * @param meta A small metadata, or null.
+   * @param data The data.
+   * @throws IOException
+   * @see #getMeta(String)
+   */
+  public void put(String id, int type, byte[] meta, byte[] data)
+                  throws IOException {
+    long ticket;
+    synchronized(this) {
+      ensureOpen();
+      Entry old = mIndex.get(id);
+      long seq = (old != null) ? old.mSeq : mNextSeq++;
+      ByteBuffer record = encode((meta == null) ? OP_PUT : OP_PUT_META, seq,
+          type, id, meta, data);
+      long offset = write(record);
+      if (old != null) {
+        release(old);
+        mOrder.remove(old.mSeq);
+      }
+      Entry entry = new Entry(id, seq, type, meta, mActive, offset,
+          record.limit());
+      mIndex.put(id, entry);
+      mOrder.put(seq, entry);
+      mActive.mLive++;
+      mActive.mLiveBytes += entry.mLength;
+      ticket = ++mWritten;
+    }
+    commit(ticket);
+  }
+
+  /**
+   * Remove a record, and wait until the removal is durable.
+   * @param id The record ID.
+   * @return true if the record was removed, false if it did not exist.
+   * @throws IOException
+   */
+  public boolean remove(String id) throws IOException {
+    return remove(Collections.singletonList(id)) > 0;
+  }
+
+  /**
+   * Remove the records with one fsync.
+   * @param ids The record IDs.
+   * @return The number of removed records.
+   * @throws IOException
+   */
+  public int remove(Collection<String> ids) throws IOException {
+    long ticket;
+    int count = 0;
+    synchronized(this) {
+      ensureOpen();
+      for (String id : ids) {
+        Entry entry = mIndex.get(id);
+        if (entry == null) {
+          continue;
+        }
+        write(encode(OP_DEL, entry.mSeq, 0, id, null, null));
+        mIndex.remove(id);
+        mOrder.remove(entry.mSeq);
+        release(entry);
+        ++count;
+      }
+      if (count == 0) {
+        return 0;
+      }
+      ticket = ++mWritten;
+    }
+    commit(ticket);
+    compact();
+    return count;
+  }
+
+  /**
+   * Get the data of a record.
+   * @param id The record ID.
+   * @return The data, or null if the record does not exist.
+   * @throws IOException
+   */
+  public synchronized byte[] get(String id) throws IOException {
+    ensureOpen();
+    Entry entry = mIndex.get(id);
+    if (entry == null) {
+      return null;
+    }
+    ByteBuffer record = read(entry);
+    int idLen = record.getShort(PREFIX_SIZE + HEADER_SIZE - 2);
+    int pos = PREFIX_SIZE + HEADER_SIZE + idLen;
+    if (record.get(PREFIX_SIZE) == OP_PUT_META) {
+      pos += 4 + record.getInt(pos);
+    }
+    return Arrays.copyOfRange(record.array(), pos, record.limit());
+  }
+
+  /**
+   * Get the metadata of a record without reading the record.
+   * @param id The record ID.
+   * @return The metadata, or null if the record does not exist or it has no
+   *         metadata.
+   */
+  public synchronized byte[] getMeta(String id) {
+    Entry entry = mIndex.get(id);
+    return (entry == null || entry.mMeta == null) ? null : entry.mMeta.clone();
+  }
+
+  /**
+   * Get the type of a record.
+   * @param id The record ID.
+   * @return The type, or -1 if the record does not exist.
+   */
+  public synchronized int getType(String id) {
+    Entry entry = mIndex.get(id);
+    return (entry == null) ? -1 : entry.mType;
+  }
+
+  /**
+   * Check if a record exists.
+   * @param id The record ID.
+   * @return
+   */
+  public synchronized boolean contains(String id) {
+    return mIndex.containsKey(id);
+  }
+
+  /**
+   * Get the IDs of all records in the order of the first append.
+   * @return A snapshot of the IDs.
+   */
+  public synchronized List<String> getIds() {
+    List<String> ids = new ArrayList<String>(mOrder.size());
+    for (Entry entry : mOrder.values()) {
+      ids.add(entry.mId);
+    }
+    return ids;
+  }
+
+  /**
+   * Get the IDs of the records of a type in the order of the first append.
+   * @param type An application type.
+   * @return A snapshot of the IDs.
+   */
+  public synchronized List<String> getIds(int type) {
+    List<String> ids = new ArrayList<String>();
+    for (Entry entry : mOrder.values()) {
+      if (entry.mType == type) {
+        ids.add(entry.mId);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Get the number of records.
+   * @return
+   */
+  public synchronized int size() {
+    return mIndex.size();
+  }
+
+  /**
+   * Remove all records and delete all segment files.
+   * @throws IOException
+   */
+  public synchronized void clear() throws IOException {
+    ensureOpen();
+    long number = mActive.mNumber + 1;
+    writeBase(number);
+    for (Segment segment : mSegments.values()) {
+      segment.delete();
+    }
+    mSegments.clear();
+    mIndex.clear();
+    mOrder.clear();
+    mNextSeq = 0;
+    mActive = newSegment(number);
+  }
+
+  /**
+   * Force all appended records to the storage regardless of the sync policy.
+   * @throws IOException
+   */
+  public void sync() throws IOException {
+    long ticket;
+    synchronized(this) {
+      if (mClosed) {
+        return;
+      }
+      ticket = mWritten;
+    }
+    force(ticket);
+  }
+
+  /**
+   * Get the sync policy.
+   * @return
+   */
+  public SyncPolicy getSyncPolicy() {
+    return mSyncPolicy;
+  }
+
+  /**
+   * Close the segment files.
+   */
+  @Override
+  public synchronized void close() {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    if (mSyncTask != null) {
+      mSyncTask.cancel();
+      mSyncTask = null;
+    }
+    for (Segment segment : mSegments.values()) {
+      try {
+        segment.mChannel.force(false);
+      } catch (IOException e) {
+        // Ignored.
+      }
+      segment.close();
+    }
+    try {
+      mLock.release();
+      mLockFile.close();
+    } catch (IOException e) {
+      // Ignored.
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (mClosed) {
+      throw new IOException("The log is closed");
+    }
+  }
+
+  // Wait until the appends up to the ticket are durable if the policy
+  // requires.
+  private void commit(long ticket) throws IOException {
+    if (mSyncPolicy == SyncPolicy.ALWAYS) {
+      force(ticket);
+    }
+  }
+
+  // The first waiter forces the active segment for all appends so far; the
+  // others piggyback.
+  private void force(long ticket) throws IOException {
+    if (mSynced >= ticket) {
+      return;
+    }
+    synchronized(mCommitLock) {
+      if (mSynced >= ticket) {
+        return;
+      }
+      long written;
+      FileChannel channel;
+      synchronized(this) {
+        if (mClosed) {
+          return;
+        }
+        written = mWritten;
+        channel = mActive.mChannel;
+      }
+      channel.force(false);
+      mSynced = written;
+    }
+  }
+
+  private static ByteBuffer encode(byte op, long seq, int type, String id,
+                                    byte[] meta, byte[] data) {
+    byte[] idBytes = id.getBytes(UTF8);
+    if (idBytes.length > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("ID is too long");
+    }
+    int metaLen = (meta == null) ? 0 : 4 + meta.length;
+    int dataLen = (data == null) ? 0 : data.length;
+    int length = PREFIX_SIZE + HEADER_SIZE + idBytes.length + metaLen +
+        dataLen;
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    buf.putInt(length - 4);
+    buf.putInt(0);
+    buf.put(op);
+    buf.putLong(seq);
+    buf.put((byte) type);
+    buf.putShort((short) idBytes.length);
+    buf.put(idBytes);
+    if (meta != null) {
+      buf.putInt(meta.length);
+      buf.put(meta);
+    }
+    if (data != null) {
+      buf.put(data);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buf.array(), PREFIX_SIZE, length - PREFIX_SIZE);
+    buf.putInt(4, (int) crc.getValue());
+    buf.flip();
+    return buf;
+  }
+
+  // Write a record to the active segment; return its offset.  The previous
+  // segment is forced before rolling over to a new one.
+  private long write(ByteBuffer record) throws IOException {
+    if (mActive.mSize > 0 && mActive.mSize + record.limit() > mSegmentSize) {
+      mActive.mChannel.force(false);
+      mActive = newSegment(mActive.mNumber + 1);
+    }
+    long offset = mActive.mSize;
+    long pos = offset;
+    while (record.hasRemaining()) {
+      pos += mActive.mChannel.write(record, pos);
+    }
+    mActive.mSize = pos;
+    return offset;
+  }
+
+  // Read a record; the sealed segments are read through their mappings.
+  private ByteBuffer read(Entry entry) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(entry.mLength);
+    if (entry.mSegment != mActive) {
+      ByteBuffer map = entry.mSegment.map();
+      map.limit((int) entry.mOffset + entry.mLength);
+      map.position((int) entry.mOffset);
+      buf.put(map);
+      buf.flip();
+      return buf;
+    }
+    long pos = entry.mOffset;
+    while (buf.hasRemaining()) {
+      int n = entry.mSegment.mChannel.read(buf, pos);
+      if (n < 0) {
+        throw new EOFException("Truncated record "+entry.mId);
+      }
+      pos += n;
+    }
+    buf.flip();
+    return buf;
+  }
+
+  private void release(Entry entry) {
+    entry.mSegment.mLive--;
+    entry.mSegment.mLiveBytes -= entry.mLength;
+  }
+
+  // Record the oldest segment still in use before the older ones are deleted.
+  private void writeBase(long base) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(new File(mDir, BASE_FILE), "rw");
+    try {
+      raf.seek(0);
+      raf.writeLong(base);
+      raf.getChannel().force(false);
+    } finally {
+      raf.close();
+    }
+    mBase = base;
+  }
+
+  private long readBase() throws IOException {
+    File file = new File(mDir, BASE_FILE);
+    if (file.length() < 8) {
+      return 0;
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return Math.max(0, raf.readLong());
+    } finally {
+      raf.close();
+    }
+  }
+
+  private Segment newSegment(long number) throws IOException {
+    Segment segment = new Segment(mDir, number);
+    mSegments.put(number, segment);
+    return segment;
+  }
+
+  // Reclaim the oldest segments: delete them if they are empty, or move
+  // their records to the active segment if they are less than half live.
+  // Only the oldest segments are reclaimed so the tombstones in them are no
+  // longer needed.
+  private synchronized void compact() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    boolean moved = false;
+    long active = mActive.mNumber;
+    List<Segment> reclaimed = new ArrayList<Segment>();
+    // Moving the records may roll over to new segments.
+    for (Segment segment : new ArrayList<Segment>(mSegments.values())) {
+      if (segment.mNumber >= active) {
+        break;
+      }
+      if (segment.mLive > 0) {
+        if (segment.mLiveBytes * 2 > segment.mSize) {
+          break;
+        }
+        for (Entry entry : new ArrayList<Entry>(mOrder.values())) {
+          if (entry.mSegment == segment) {
+            ByteBuffer record = read(entry);
+            release(entry);
+            long offset = write(record);
+            entry.mSegment = mActive;
+            entry.mOffset = offset;
+            mActive.mLive++;
+            mActive.mLiveBytes += entry.mLength;
+            moved = true;
+          }
+        }
+      }
+      reclaimed.add(segment);
+    }
+    if (reclaimed.isEmpty()) {
+      return;
+    }
+    if (moved) {
+      mActive.mChannel.force(false);
+    }
+    writeBase(reclaimed.get(reclaimed.size() - 1).mNumber + 1);
+    for (Segment segment : reclaimed) {
+      mSegments.remove(segment.mNumber);
+      segment.delete();
+    }
+  }
+
+  // Rebuild the index from the segment files.  The obsolete segments left
+  // by a failed deletion are deleted again without being replayed.
+  private void recover() throws IOException {
+    mBase = readBase();
+    File[] files = mDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    long maxSeq = -1;
+    if (files != null) {
+      List<Long> numbers = new ArrayList<Long>(files.length);
+      for (File file : files) {
+        String name = file.getName();
+        long number;
+        try {
+          number = Long.parseLong(name.substring(0,
+              name.length() - SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+          Log.w(TAG, "Ignoring unknown file "+file);
+          continue;
+        }
+        if (number >= mBase) {
+          numbers.add(number);
+        } else if (!file.delete()) {
+          Log.w(TAG, "Skipping obsolete segment "+file);
+        }
+      }
+      Collections.sort(numbers);
+      for (Long number : numbers) {
+        Segment segment = newSegment(number);
+        maxSeq = Math.max(maxSeq, scan(segment));
+      }
+    }
+    for (Entry entry : mIndex.values()) {
+      mOrder.put(entry.mSeq, entry);
+    }
+    mNextSeq = maxSeq + 1;
+    if (mSegments.isEmpty()) {
+      mActive = newSegment(mBase);
+    } else {
+      mActive = mSegments.lastEntry().getValue();
+    }
+  }
+
+  // Apply the records of a segment to the index and truncate the invalid
+  // tail; return the max sequence number.
+  private long scan(Segment segment) throws IOException {
+    long maxSeq = -1;
+    long pos = 0;
+    long size = segment.mSize;
+    ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+    CRC32 crc = new CRC32();
+    while (pos + PREFIX_SIZE + HEADER_SIZE <= size) {
+      prefix.clear();
+      segment.mChannel.read(prefix, pos);
+      int length = prefix.getInt(0);
+      int expected = prefix.getInt(4);
+      if (length < 4 + HEADER_SIZE || pos + 4 + length > size) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length - 4);
+      long bodyPos = pos + PREFIX_SIZE;
+      while (body.hasRemaining()) {
+        int n = segment.mChannel.read(body, bodyPos);
+        if (n < 0) {
+          break;
+        }
+        bodyPos += n;
+      }
+      crc.reset();
+      crc.update(body.array(), 0, body.position());
+      if (body.hasRemaining() || (int) crc.getValue() != expected) {
+        break;
+      }
+      body.flip();
+      byte op = body.get();
+      long seq = body.getLong();
+      int type = body.get();
+      int idLen = body.getShort();
+      if (idLen < 0 || idLen > body.remaining()) {
+        break;
+      }
+      String id = new String(body.array(), body.position(), idLen, UTF8);
+      byte[] meta = null;
+      if (op == OP_PUT_META) {
+        body.position(body.position() + idLen);
+        int metaLen = (body.remaining() < 4) ? -1 : body.getInt();
+        if (metaLen < 0 || metaLen > body.remaining()) {
+          break;
+        }
+        meta = new byte[metaLen];
+        body.get(meta);
+      }
+      maxSeq = Math.max(maxSeq, seq);
+      Entry old = mIndex.remove(id);
+      if (old != null) {
+        release(old);
+      }
+      if (op == OP_PUT || op == OP_PUT_META) {
+        Entry entry = new Entry(id, seq, type, meta, segment, pos, length + 4);
+        mIndex.put(id, entry);
+        segment.mLive++;
+        segment.mLiveBytes += entry.mLength;
+      }
+      pos += 4 + length;
+    }
+    if (pos < size) {
+      Log.w(TAG, "Truncating the invalid tail of "+segment.mFile+" at "+pos+
+          " of "+size);
+      segment.mChannel.truncate(pos);
+      segment.mSize = pos;
+    }
+    return maxSeq;
+  }
+}
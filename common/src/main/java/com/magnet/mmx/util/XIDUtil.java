@@ -35,7 +35,60 @@ import com.magnet.mmx.protocol.MMXid;
 public class XIDUtil {
   public final static String INVALID_CHARS = Constants.AT_SIGN_DISALLOWED ?
       "'/', '%', or '@'" : "'/' or '%'";
+  private final static int CACHE_SIZE = 1024;
   private static boolean sNoEsc;
+  // (userId, appId, domain, resource) to escaped XID.
+  private final static BoundedCache<XIDKey, String> sXIDs =
+      new BoundedCache<XIDKey, String>(CACHE_SIZE);
+  // XID to the tokens from parseXID().
+  private final static BoundedCache<String, String[]> sTokens =
+      new BoundedCache<String, String[]>(CACHE_SIZE);
+  // XID to the readable user ID and resource for toXid().
+  private final static BoundedCache<String, String[]> sUserIds =
+      new BoundedCache<String, String[]>(CACHE_SIZE);
+
+  private static class XIDKey {
+    private final String mUserId;
+    private final String mAppId;
+    private final String mDomain;
+    private final String mResource;
+    private final int mHash;
+
+    private XIDKey(String userId, String appId, String domain, String resource) {
+      mUserId = userId;
+      mAppId = appId;
+      mDomain = domain;
+      mResource = resource;
+      int hash = (userId == null) ? 0 : userId.hashCode();
+      hash = 31 * hash + ((appId == null) ? 0 : appId.hashCode());
+      hash = 31 * hash + ((domain == null) ? 0 : domain.hashCode());
+      hash = 31 * hash + ((resource == null) ? 0 : resource.hashCode());
+      mHash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return mHash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof XIDKey)) {
+        return false;
+      }
+      XIDKey key = (XIDKey) obj;
+      return mHash == key.mHash && equals(mUserId, key.mUserId) &&
+          equals(mAppId, key.mAppId) && equals(mDomain, key.mDomain) &&
+          equals(mResource, key.mResource);
+    }
+
+    private static boolean equals(String s1, String s2) {
+      return (s1 == null) ? s2 == null : s1.equals(s2);
+    }
+  }
 
   /**
    * Validate a user ID (the node part without %appId).  Current embedded '@'
@@ -62,6 +115,43 @@ public class XIDUtil {
    */
   public static void disableEsc(boolean disable) {
     sNoEsc = disable;
+    sXIDs.clear();
+    sUserIds.clear();
+  }
+
+  // XEP-0106 escaping; the node is returned as is if nothing to be escaped.
+  private static String escape(String node) {
+    if (sNoEsc) {
+      return node;
+    }
+    for (int i = 0, n = node.length(); i < n; i++) {
+      char c = node.charAt(i);
+      switch (c) {
+      case '"':
+      case '&':
+      case '\'':
+      case '/':
+      case ':':
+      case '<':
+      case '>':
+      case '@':
+      case '\\':
+        return StringUtils.escapeNode(node);
+      default:
+        if (Character.isWhitespace(c)) {
+          return StringUtils.escapeNode(node);
+        }
+      }
+    }
+    return node;
+  }
+
+  // XEP-0106 unescaping; the node is returned as is if nothing is escaped.
+  private static String unescape(String node) {
+    if (sNoEsc || node.indexOf('\\') < 0) {
+      return node;
+    }
+    return StringUtils.unescapeNode(node);
   }
 
   /**
@@ -86,7 +176,7 @@ public class XIDUtil {
    * @return A node conforming to XEP-0106.
    */
   public static String makeEscNode(String userId, String appId) {
-    return makeNode(sNoEsc ? userId : StringUtils.escapeNode(userId), appId);
+    return makeNode(escape(userId), appId);
   }
 
   /**
@@ -149,7 +239,7 @@ public class XIDUtil {
     if (node == null) {
       return null;
     }
-    return sNoEsc ? node : StringUtils.unescapeNode(node);
+    return unescape(node);
   }
 
   /**
@@ -173,14 +263,18 @@ public class XIDUtil {
    * @return A end-point object, or null if it is malformed.
    */
   public static MMXid toXid(String xid, String displayName) {
-    String node = getReadableNode(xid);
-    if (node == null) {
+    if (xid == null) {
       return null;
     }
-    String resource = getResource(xid);
-    int sep = node.lastIndexOf(Constants.APP_ID_DELIMITER);
-    String userId = (sep < 0) ? node : node.substring(0, sep);
-    return new MMXid(userId, resource, displayName);
+    String[] tokens = sUserIds.get(xid);
+    if (tokens == null) {
+      String node = getReadableNode(xid);
+      String resource = getResource(xid);
+      int sep = node.lastIndexOf(Constants.APP_ID_DELIMITER);
+      String userId = (sep < 0) ? node : node.substring(0, sep);
+      tokens = sUserIds.put(xid, new String[] { userId, resource });
+    }
+    return new MMXid(tokens[0], tokens[1], displayName);
   }
 
   /**
@@ -192,8 +286,7 @@ public class XIDUtil {
     if (xid == null) {
       return null;
     }
-    String userId = extractUserId(xid);
-    return sNoEsc ? userId : StringUtils.unescapeNode(userId);
+    return unescape(extractUserId(xid));
   }
 
   /**
@@ -267,6 +360,14 @@ public class XIDUtil {
    * @return Array of four parts.
    */
   public static String[] parseXID(String xid) {
+    String[] tokens = sTokens.get(xid);
+    if (tokens == null) {
+      tokens = sTokens.put(xid, doParseXID(xid));
+    }
+    return tokens.clone();
+  }
+
+  private static String[] doParseXID(String xid) {
     String[] tokens = new String[4];
     int appos = xid.indexOf(Constants.APP_ID_DELIMITER);
     int dompos = xid.lastIndexOf('@');
@@ -312,7 +413,7 @@ public class XIDUtil {
       return null;
     }
     String rawNode = getReadableNode(xid);
-    String node = sNoEsc ? rawNode : StringUtils.unescapeNode(rawNode);
+    String node = unescape(rawNode);
     int sep = node.lastIndexOf(Constants.APP_ID_DELIMITER);
     if (sep < 0) {
       return null;
@@ -327,7 +428,7 @@ public class XIDUtil {
    * @return An escaped node.
    */
   public static String escapeNode(String node) {
-    return sNoEsc ? node : StringUtils.escapeNode(node);
+    return escape(node);
   }
 
   /**
@@ -393,7 +494,7 @@ public class XIDUtil {
     String[] xids = new String[userIds.length];
     for (String userId : userIds) {
       if (userId.indexOf('/') < 0) {
-        xids[i++] = makeEscNode(userId, appId)+'@'+domain;
+        xids[i++] = makeXID(userId, appId, domain);
       } else {
         xids[i++] = userId;
       }
@@ -414,7 +515,7 @@ public class XIDUtil {
     ArrayList<String> xids = new ArrayList<String>(userIds.size());
     for (String userId : userIds) {
       if (userId.indexOf('/') < 0) {
-        xids.add(makeEscNode(userId, appId)+'@'+domain);
+        xids.add(makeXID(userId, appId, domain));
       } else {
         xids.add(userId);
       }
@@ -431,7 +532,7 @@ public class XIDUtil {
    * @return A bared XID.
    */
   public static String makeXID(String userId, String appId, String domain) {
-    return makeEscNode(userId, appId)+'@'+domain;
+    return makeXID(userId, appId, domain, null);
   }
 
   /**
@@ -445,10 +546,16 @@ public class XIDUtil {
    */
   public static String makeXID(String userId, String appId, String domain,
                                  String resource) {
-    if (resource != null && !resource.isEmpty()) {
-      return makeEscNode(userId, appId)+'@'+domain+'/'+resource;
-    } else {
-      return makeXID(userId, appId, domain);
+    if (resource != null && resource.isEmpty()) {
+      resource = null;
+    }
+    XIDKey key = new XIDKey(userId, appId, domain, resource);
+    String xid = sXIDs.get(key);
+    if (xid == null) {
+      String node = makeEscNode(userId, appId);
+      xid = (resource == null) ? node+'@'+domain : node+'@'+domain+'/'+resource;
+      sXIDs.put(key, xid);
     }
+    return xid;
   }
 }
@@ -0,0 +1,118 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.util.BinCodec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the BinCodec encoding and decoding with caller-supplied buffers.
+ */
+public class BinCodecTest {
+  private final static Random sRandom = new Random(1);
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  private byte[] randomBytes(int len) {
+    byte[] data = new byte[len];
+    sRandom.nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testEncodeToArray() throws IOException {
+    for (int len = 0; len < 20; len++) {
+      byte[] data = randomBytes(len);
+      String expected = BinCodec.encodeToString(data, false);
+      char[] chars = new char[BinCodec.encodedLength(len, true) + 1];
+      int n = BinCodec.encode(data, 0, len, chars, 1, true);
+      assertEquals(expected, new String(chars, 1, n));
+
+      byte[] bytes = new byte[BinCodec.encodedLength(len, false)];
+      n = BinCodec.encode(data, 0, len, bytes, 0, false);
+      assertEquals(bytes.length, n);
+      assertEquals(expected.replace("=", ""),
+          new String(bytes, 0, n, "ISO-8859-1"));
+    }
+  }
+
+  @Test
+  public void testEncodeToBuffer() throws IOException {
+    for (int len = 0; len < 20; len++) {
+      byte[] data = randomBytes(len);
+      String expected = BinCodec.encodeToString(data, false);
+
+      ByteBuffer src = ByteBuffer.allocateDirect(len);
+      src.put(data).flip();
+      CharBuffer dst = CharBuffer.allocate(BinCodec.encodedLength(len, true));
+      BinCodec.encode(src, dst, true);
+      assertEquals(0, src.remaining());
+      dst.flip();
+      assertEquals(expected, dst.toString());
+
+      StringBuilder sb = new StringBuilder();
+      BinCodec.encode(data, 0, len, sb, true);
+      assertEquals(expected, sb.toString());
+    }
+  }
+
+  @Test
+  public void testEncodeStream() throws IOException {
+    byte[] data = randomBytes(10000);
+    StringWriter writer = new StringWriter();
+    long total = BinCodec.encode(new ByteArrayInputStream(data), writer, true);
+    assertEquals(data.length, total);
+    assertEquals(BinCodec.encodeToString(data, false), writer.toString());
+  }
+
+  @Test
+  public void testDecode() {
+    for (int len = 0; len < 20; len++) {
+      byte[] data = randomBytes(len);
+      String encoded = BinCodec.encodeToString(data, false);
+      byte[] dst = new byte[len];
+      int n = BinCodec.decode(encoded, 0, encoded.length(), dst, 0);
+      assertEquals(len, n);
+      assertTrue(Arrays.equals(data, dst));
+
+      // Without padding and with illegal characters.
+      String unpadded = "\r\n" + encoded.replace("=", "");
+      n = BinCodec.decode(unpadded, 0, unpadded.length(), dst, 0);
+      assertEquals(len, n);
+      assertTrue(Arrays.equals(data, dst));
+
+      ByteBuffer buf = ByteBuffer.allocateDirect(len);
+      assertEquals(len, BinCodec.decode(CharBuffer.wrap(encoded), buf));
+      buf.flip();
+      buf.get(dst);
+      assertTrue(Arrays.equals(data, dst));
+    }
+  }
+}
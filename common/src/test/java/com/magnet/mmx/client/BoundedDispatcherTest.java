@@ -0,0 +1,176 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.util.BoundedDispatcher;
+import com.magnet.mmx.util.BoundedDispatcher.OverflowPolicy;
+import com.magnet.mmx.util.QueueExecutor;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedDispatcherTest {
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  // A task blocking the dispatcher until the latch is released.
+  private static Runnable gate(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          // Ignored.
+        }
+      }
+    };
+  }
+
+  private static BoundedDispatcher newDispatcher(OverflowPolicy policy,
+          BoundedDispatcher.WatermarkListener listener) {
+    QueueExecutor executor = new QueueExecutor("BoundedDispatcherTest", true);
+    executor.start();
+    return new BoundedDispatcher(executor, 4, 1, policy, listener);
+  }
+
+  @Test
+  public void testDropDroppable() throws Exception {
+    BoundedDispatcher dispatcher = newDispatcher(OverflowPolicy.DROP_DROPPABLE, null);
+    CountDownLatch latch = new CountDownLatch(1);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(dispatcher.post(null, gate(latch), true));
+    }
+    assertFalse(dispatcher.post(null, gate(latch), true));
+    assertEquals(1, dispatcher.getDroppedCount());
+    latch.countDown();
+    dispatcher.quit();
+  }
+
+  @Test
+  public void testBlock() throws Exception {
+    final BoundedDispatcher dispatcher = newDispatcher(OverflowPolicy.BLOCK, null);
+    CountDownLatch latch = new CountDownLatch(1);
+    for (int i = 0; i < 4; i++) {
+      dispatcher.post(gate(latch));
+    }
+    final CountDownLatch posted = new CountDownLatch(1);
+    new Thread() {
+      @Override
+      public void run() {
+        dispatcher.post(new Runnable() {
+          @Override
+          public void run() {
+          }
+        });
+        posted.countDown();
+      }
+    }.start();
+    assertFalse(posted.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, dispatcher.getBlockedCount());
+    latch.countDown();
+    assertTrue(posted.await(5, TimeUnit.SECONDS));
+    dispatcher.quit();
+  }
+
+  @Test
+  public void testSuspendAndResume() throws Exception {
+    final AtomicInteger high = new AtomicInteger();
+    final CountDownLatch low = new CountDownLatch(1);
+    BoundedDispatcher dispatcher = newDispatcher(OverflowPolicy.SUSPEND,
+        new BoundedDispatcher.WatermarkListener() {
+          @Override
+          public void onHighWater() {
+            high.incrementAndGet();
+          }
+
+          @Override
+          public void onLowWater() {
+            low.countDown();
+          }
+        });
+    CountDownLatch latch = new CountDownLatch(1);
+    for (int i = 0; i < 6; i++) {
+      assertTrue(dispatcher.post(null, gate(latch), true));
+    }
+    assertEquals(1, high.get());
+    assertTrue(dispatcher.isSuspended());
+    latch.countDown();
+    assertTrue(low.await(5, TimeUnit.SECONDS));
+    assertFalse(dispatcher.isSuspended());
+    dispatcher.quit();
+  }
+
+  // The consumers may drain the tasks between reaching the capacity and
+  // suspending; the producer must not stay suspended with an empty queue.
+  @Test
+  public void testDrainWhileSuspending() throws Exception {
+    final AtomicInteger suspended = new AtomicInteger();
+    QueueExecutor executor = new QueueExecutor("BoundedDispatcherTest", true);
+    executor.start();
+    final BoundedDispatcher dispatcher = new BoundedDispatcher(executor, 1, 0,
+        OverflowPolicy.SUSPEND, new BoundedDispatcher.WatermarkListener() {
+          @Override
+          public void onHighWater() {
+            suspended.incrementAndGet();
+          }
+
+          @Override
+          public void onLowWater() {
+            suspended.decrementAndGet();
+          }
+        });
+    final Runnable task = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    Thread[] producers = new Thread[2];
+    for (int t = 0; t < producers.length; t++) {
+      producers[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 50000; i++) {
+            dispatcher.post(task);
+          }
+        }
+      };
+      producers[t].start();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    // The last release may still be running.
+    for (int i = 0; i < 500 && (dispatcher.getPendingCount() > 0 ||
+                                 suspended.get() > 0); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, dispatcher.getPendingCount());
+    assertFalse(dispatcher.isSuspended());
+    assertEquals(0, suspended.get());
+    dispatcher.quit();
+  }
+}
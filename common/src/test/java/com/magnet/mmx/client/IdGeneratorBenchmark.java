@@ -0,0 +1,92 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.util.IdGenerator;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compare the throughput of {@link IdGenerator} with the synchronized
+ * generator it replaces, with 1, 2, 4 and 8 threads.  It is not a unit test
+ * and surefire does not run it.  Run it from the common module after
+ * <code>mvn test-compile</code>:
+ * <pre>
+ *   java -cp target/classes:target/test-classes com.magnet.mmx.client.IdGeneratorBenchmark [ids/thread]
+ * </pre>
+ */
+public class IdGeneratorBenchmark {
+  private final static String PREFIX = "abcdefghijklmnopqrstuv";
+  private static volatile String sLastId;
+
+  public static void main(String[] args) throws InterruptedException {
+    int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    final IdGenerator gen = new IdGenerator(PREFIX);
+    final Object lock = new Object();
+    final long[] seq = new long[1];
+    Runnable lockFree = new Runnable() {
+      @Override
+      public void run() {
+        sLastId = gen.next();
+      }
+    };
+    Runnable locked = new Runnable() {
+      @Override
+      public void run() {
+        synchronized(lock) {
+          sLastId = PREFIX + '-' + Long.toString(++seq[0], 36);
+        }
+      }
+    };
+    // Warm up both generators.
+    runThreads(2, count, lockFree);
+    runThreads(2, count, locked);
+    for (int threads = 1; threads <= 8; threads *= 2) {
+      long lockFreeTime = runThreads(threads, count, lockFree);
+      long lockedTime = runThreads(threads, count, locked);
+      System.out.println("threads="+threads+", ids/thread="+count+
+          ", IdGenerator="+(lockFreeTime / 1000000)+"ms, synchronized="+
+          (lockedTime / 1000000)+"ms");
+    }
+  }
+
+  // Run the task "count" times in each thread; return the elapsed time in ns.
+  private static long runThreads(int threads, final int count,
+                      final Runnable task) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < count; j++) {
+            task.run();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - begin;
+  }
+}
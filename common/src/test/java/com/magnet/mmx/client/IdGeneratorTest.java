@@ -0,0 +1,83 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.util.IdGenerator;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IdGeneratorTest {
+  private final static int COUNT = 200000;
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  @Test
+  public void testFormat() {
+    IdGenerator gen = new IdGenerator("abc");
+    for (long seq = 1; seq <= 100000; seq++) {
+      assertEquals("abc-" + Long.toString(seq, 36), gen.next());
+    }
+    assertEquals(100000, gen.getSequence());
+  }
+
+  @Test
+  public void testUniqueAcrossThreads() throws InterruptedException {
+    final IdGenerator gen = new IdGenerator("abc");
+    final Set<String> ids = Collections.newSetFromMap(
+        new ConcurrentHashMap<String, Boolean>());
+    runThreads(4, COUNT / 4, new Runnable() {
+      @Override
+      public void run() {
+        ids.add(gen.next());
+      }
+    });
+    assertEquals(COUNT, ids.size());
+  }
+
+  // Run the task "count" times in each thread.
+  private void runThreads(int threads, final int count, final Runnable task)
+                          throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < count; j++) {
+            task.run();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    start.countDown();
+    done.await();
+  }
+}
@@ -0,0 +1,74 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.util.IntervalSet;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IntervalSetTest {
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  @Test
+  public void testInOrder() {
+    IntervalSet set = new IntervalSet();
+    set.add(0, 100);
+    set.add(100, 200);
+    set.add(200, 250);
+    assertEquals(1, set.size());
+    assertEquals(250, set.getLength());
+    assertTrue(set.covers(0, 250));
+    assertFalse(set.covers(0, 251));
+  }
+
+  @Test
+  public void testOutOfOrder() {
+    IntervalSet set = new IntervalSet();
+    set.add(200, 250);
+    set.add(0, 100);
+    assertEquals(2, set.size());
+    assertEquals(150, set.getLength());
+    assertFalse(set.covers(0, 250));
+    set.add(100, 200);
+    assertEquals(1, set.size());
+    assertTrue(set.covers(0, 250));
+  }
+
+  @Test
+  public void testOverlapAndDuplicate() {
+    IntervalSet set = new IntervalSet();
+    set.add(10, 20);
+    set.add(30, 40);
+    set.add(50, 60);
+    set.add(15, 55);
+    assertEquals(1, set.size());
+    assertEquals(50, set.getLength());
+    set.add(20, 30);
+    assertEquals(50, set.getLength());
+    set.add(5, 5);
+    assertEquals(1, set.size());
+    assertFalse(set.covers(0, 20));
+    assertTrue(set.covers(12, 58));
+  }
+}
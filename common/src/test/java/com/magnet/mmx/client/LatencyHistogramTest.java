@@ -0,0 +1,77 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.util.LatencyHistogram;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  @Test
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(99));
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void testExactValues() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+    assertEquals(10, histogram.getCount());
+    assertEquals(5, histogram.getPercentile(50));
+    assertEquals(9, histogram.getPercentile(90));
+    assertEquals(10, histogram.getPercentile(100));
+    assertEquals(10, histogram.getMax());
+    assertEquals(5.5, histogram.getMean(), 0.001);
+  }
+
+  @Test
+  public void testPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 100000; i++) {
+      histogram.record(i);
+    }
+    long p50 = histogram.getPercentile(50);
+    long p99 = histogram.getPercentile(99);
+    assertTrue("p50="+p50, p50 >= 50000 && p50 <= 50000 * 1.125);
+    assertTrue("p99="+p99, p99 >= 99000 && p99 <= 100000);
+    assertEquals(100000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testLargeAndNegative() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    histogram.clear();
+    assertEquals(0, histogram.getCount());
+  }
+}
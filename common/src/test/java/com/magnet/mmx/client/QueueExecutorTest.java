@@ -0,0 +1,95 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.util.QueueExecutor;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueueExecutorTest {
+  private static QueueExecutor sExecutor;
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    sExecutor = new QueueExecutor("QueueExecutorTest", true);
+    sExecutor.start();
+  }
+
+  @AfterClass
+  public static void teardown() throws Exception {
+    sExecutor.quit();
+  }
+
+  @Test
+  public void testOrderPerProducer() throws Exception {
+    final int producers = 4;
+    final int tasks = 10000;
+    final int[] last = new int[producers];
+    final AtomicInteger outOfOrder = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(producers * tasks);
+    long completed = sExecutor.getCompletedTaskCount();
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      threads[p] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 1; i <= tasks; i++) {
+            final int seq = i;
+            sExecutor.post(new Runnable() {
+              @Override
+              public void run() {
+                if (last[producer] + 1 != seq) {
+                  outOfOrder.incrementAndGet();
+                }
+                last[producer] = seq;
+                done.countDown();
+              }
+            });
+          }
+        }
+      };
+      threads[p].start();
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(0, outOfOrder.get());
+    assertTrue(sExecutor.getCompletedTaskCount() - completed >= producers * tasks);
+  }
+
+  @Test
+  public void testWakeUpAfterIdle() throws Exception {
+    Thread.sleep(100);
+    final CountDownLatch done = new CountDownLatch(1);
+    sExecutor.post(new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(1, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    assertEquals(0, sExecutor.getQueueDepth());
+  }
+}
@@ -0,0 +1,93 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.client.common.GlobalAddress;
+import com.magnet.mmx.client.common.MMXPayload;
+import com.magnet.mmx.client.common.Options;
+import com.magnet.mmx.client.common.QueueItemCodec;
+import com.magnet.mmx.protocol.MMXid;
+import com.magnet.mmx.util.MMXQueue.Item;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compare the size and the encode/decode time of {@link QueueItemCodec} with
+ * the Java serialization it replaces, using a sample message.  It is not a
+ * unit test and surefire does not run it.  Run it from the common module
+ * after <code>mvn test-compile</code> with the test classpath:
+ * <pre>
+ *   mvn dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) com.magnet.mmx.client.QueueItemCodecBenchmark [items]
+ * </pre>
+ */
+public class QueueItemCodecBenchmark {
+  private final static int ROUNDS = 5;
+  private static volatile Item sLastItem;
+
+  public static void main(String[] args) throws Exception {
+    int count = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+    MMXPayload payload = new MMXPayload("greeting", "Hello, \u4e16\u754c!");
+    payload.setMetaData("color", "blue");
+    payload.setMetaData("size", "10");
+    Item.Message item = new Item.Message("msg-1", payload);
+    item.setDestination(GlobalAddress.convertDestination(GlobalAddress.Type.USER,
+        new MMXid[] { new MMXid("user1", "dev1", null),
+                      new MMXid("user2", null, null) }));
+    item.setOptions(new Options().enableReceipt(true));
+
+    int encodedSize = QueueItemCodec.encode(item).length;
+    int serializedSize = serialize(item).length;
+    // The first round warms up both paths.
+    for (int round = 0; round < ROUNDS; round++) {
+      long begin = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        sLastItem = QueueItemCodec.decode(QueueItemCodec.encode(item));
+      }
+      long codec = System.nanoTime() - begin;
+      begin = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        sLastItem = deserialize(serialize(item));
+      }
+      long java = System.nanoTime() - begin;
+      System.out.println("round="+round+", items="+count+", QueueItemCodec="+
+          encodedSize+" bytes/"+(codec / 1000000)+"ms, Serializable="+
+          serializedSize+" bytes/"+(java / 1000000)+"ms");
+    }
+  }
+
+  private static byte[] serialize(Item item) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(item);
+    oos.close();
+    return baos.toByteArray();
+  }
+
+  private static Item deserialize(byte[] data) throws Exception {
+    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+    try {
+      return (Item) ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.client.common.GlobalAddress;
+import com.magnet.mmx.client.common.MMXPayload;
+import com.magnet.mmx.client.common.Options;
+import com.magnet.mmx.client.common.QueueItemCodec;
+import com.magnet.mmx.protocol.MMXid;
+import com.magnet.mmx.util.MMXQueue.Item;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueueItemCodecTest {
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  private static Item.Message newMessage(String id) {
+    MMXPayload payload = new MMXPayload("greeting", "Hello, \u4e16\u754c!");
+    payload.setMetaData("color", "blue");
+    payload.setMetaData("size", "10");
+    Item.Message item = new Item.Message(id, payload);
+    item.setDestination(GlobalAddress.convertDestination(GlobalAddress.Type.USER,
+        new MMXid[] { new MMXid("user1", "dev1", null),
+                      new MMXid("user2", null, null) }));
+    item.setOptions(new Options().enableReceipt(true));
+    return item;
+  }
+
+  private static byte[] serialize(Item item) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(item);
+    oos.close();
+    return baos.toByteArray();
+  }
+
+  private static Item deserialize(byte[] data) throws Exception {
+    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+    try {
+      return (Item) ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
+
+  private static void assertMessage(Item.Message expected, Item actual) {
+    assertEquals(Item.Message.class, actual.getClass());
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(Item.Type.MESSAGE, actual.getType());
+    assertEquals(Arrays.toString(expected.getDestination()),
+        Arrays.toString(((Item.Message) actual).getDestination()));
+    assertEquals(expected.getOptions().isDroppable(),
+        actual.getOptions().isDroppable());
+    assertEquals(expected.getOptions().isReceiptEnabled(),
+        actual.getOptions().isReceiptEnabled());
+    MMXPayload payload = actual.getPayload();
+    assertEquals(expected.getPayload().getType(), payload.getType());
+    assertEquals(expected.getPayload().getDataAsText().toString(),
+        payload.getDataAsText().toString());
+    assertEquals(expected.getPayload().getAllMetaData(),
+        payload.getAllMetaData());
+  }
+
+  @Test
+  public void testMessage() throws IOException {
+    Item.Message item = newMessage("msg-1");
+    assertMessage(item, QueueItemCodec.decode(QueueItemCodec.encode(item)));
+  }
+
+  @Test
+  public void testPubSub() throws IOException {
+    Item.PubSub item = new Item.PubSub("item-1", "/app/*/topic1", "topic1",
+        new MMXPayload("text"));
+    Item decoded = QueueItemCodec.decode(QueueItemCodec.encode(item));
+    assertEquals(Item.PubSub.class, decoded.getClass());
+    assertEquals("item-1", decoded.getId());
+    assertEquals("/app/*/topic1", ((Item.PubSub) decoded).getRealTopic());
+    assertEquals("topic1", ((Item.PubSub) decoded).getTopic());
+    assertNull(decoded.getOptions());
+    assertEquals("text", decoded.getPayload().getDataAsText().toString());
+  }
+
+  @Test
+  public void testNoPayload() throws IOException {
+    Item.Message item = new Item.Message("msg-2", null);
+    Item decoded = QueueItemCodec.decode(QueueItemCodec.encode(item));
+    assertEquals("msg-2", decoded.getId());
+    assertNull(decoded.getPayload());
+    assertNull(((Item.Message) decoded).getDestination());
+  }
+
+  @Test
+  public void testSummary() throws IOException {
+    Item.Message item = newMessage("msg-4");
+    byte[] summary = QueueItemCodec.encodeSummary(item);
+    assertTrue(summary.length < QueueItemCodec.encode(item).length);
+    Item decoded = QueueItemCodec.decode(summary);
+    assertEquals("msg-4", decoded.getId());
+    assertNull(decoded.getPayload());
+    assertEquals(Arrays.toString(item.getDestination()),
+        Arrays.toString(((Item.Message) decoded).getDestination()));
+    assertTrue(decoded.getOptions().isReceiptEnabled());
+  }
+
+  // The items queued by the previous versions are Java serialized.
+  @Test
+  public void testLegacy() throws IOException {
+    Item.Message item = newMessage("msg-3");
+    assertMessage(item, QueueItemCodec.decode(serialize(item)));
+  }
+
+  @Test
+  public void testCorrupted() throws IOException {
+    byte[] data = QueueItemCodec.encode(newMessage("msg-4"));
+    try {
+      QueueItemCodec.decode(Arrays.copyOf(data, data.length / 2));
+      fail("Truncated item is decoded");
+    } catch (IOException e) {
+      // Expected.
+    }
+    data[0] = (byte) (QueueItemCodec.VERSION + 1);
+    try {
+      QueueItemCodec.decode(data);
+      fail("Unknown version is decoded");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  // The codec is more compact than the Java serialization it replaces.
+  @Test
+  public void testSize() throws Exception {
+    Item.Message item = newMessage("msg-5");
+    byte[] encoded = QueueItemCodec.encode(item);
+    byte[] serialized = serialize(item);
+    assertTrue(encoded.length < serialized.length);
+    assertMessage(item, QueueItemCodec.decode(encoded));
+    assertMessage(item, deserialize(serialized));
+  }
+}
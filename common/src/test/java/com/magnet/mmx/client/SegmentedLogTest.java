@@ -0,0 +1,340 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client;
+
+import com.magnet.mmx.util.SegmentedLog;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedLogTest {
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  private static File newDir() throws IOException {
+    File dir = File.createTempFile("seglog", "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  private static byte[] data(int i, int size) {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte) i);
+    return data;
+  }
+
+  private static File[] listSegments(File dir) {
+    return dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".seg");
+      }
+    });
+  }
+
+  private static int countSegments(File dir) {
+    return listSegments(dir).length;
+  }
+
+  @Test
+  public void testPutGetRemove() throws IOException {
+    SegmentedLog log = new SegmentedLog(newDir(), 4096);
+    log.put("a", 1, data(1, 10));
+    log.put("b", 2, data(2, 20));
+    log.put("c", 1, data(3, 0));
+    assertEquals(3, log.size());
+    assertEquals(Arrays.asList("a", "b", "c"), log.getIds());
+    assertArrayEquals(data(2, 20), log.get("b"));
+    assertEquals(2, log.getType("b"));
+    assertEquals(0, log.get("c").length);
+
+    // A replaced record keeps its order.
+    log.put("a", 1, data(4, 5));
+    assertEquals(Arrays.asList("a", "b", "c"), log.getIds());
+    assertArrayEquals(data(4, 5), log.get("a"));
+
+    assertTrue(log.remove("b"));
+    assertFalse(log.remove("b"));
+    assertNull(log.get("b"));
+    assertEquals(-1, log.getType("b"));
+    assertEquals(Arrays.asList("a", "c"), log.getIds());
+    log.close();
+  }
+
+  @Test
+  public void testRecovery() throws IOException {
+    File dir = newDir();
+    SegmentedLog log = new SegmentedLog(dir, 4096);
+    for (int i = 0; i < 100; i++) {
+      log.put("id"+i, i % 2, data(i, 100));
+    }
+    List<String> removed = new ArrayList<String>();
+    for (int i = 0; i < 100; i += 3) {
+      removed.add("id"+i);
+    }
+    assertEquals(removed.size(), log.remove(removed));
+    log.put("id1", 0, data(7, 7));
+    List<String> ids = log.getIds();
+    log.close();
+
+    log = new SegmentedLog(dir, 4096);
+    assertEquals(ids, log.getIds());
+    assertArrayEquals(data(7, 7), log.get("id1"));
+    assertArrayEquals(data(98, 100), log.get("id98"));
+    assertEquals(0, log.getType("id98"));
+    // New records are after the recovered ones.
+    log.put("new", 0, data(0, 1));
+    assertEquals("new", log.getIds().get(log.size() - 1));
+    log.close();
+  }
+
+  @Test
+  public void testTornTail() throws IOException {
+    File dir = newDir();
+    SegmentedLog log = new SegmentedLog(dir, 1024 * 1024);
+    log.put("a", 0, data(1, 100));
+    log.put("b", 0, data(2, 100));
+    log.close();
+
+    // Corrupt the last record and append garbage.
+    File file = listSegments(dir)[0];
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    long size = raf.length();
+    raf.seek(size - 10);
+    raf.write(0x55);
+    raf.seek(size);
+    raf.write(new byte[] { 0, 0, 0, 100, 1, 2 });
+    raf.close();
+
+    log = new SegmentedLog(dir, 1024 * 1024);
+    assertEquals(Arrays.asList("a"), log.getIds());
+    log.put("c", 0, data(3, 100));
+    log.close();
+
+    log = new SegmentedLog(dir, 1024 * 1024);
+    assertEquals(Arrays.asList("a", "c"), log.getIds());
+    assertArrayEquals(data(3, 100), log.get("c"));
+    log.close();
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    File dir = newDir();
+    SegmentedLog log = new SegmentedLog(dir, 4096);
+    for (int i = 0; i < 200; i++) {
+      log.put("id"+i, 0, data(i, 200));
+    }
+    assertTrue(countSegments(dir) > 5);
+
+    // Drain in order; the drained segments are deleted.
+    List<String> drained = new ArrayList<String>();
+    for (int i = 0; i < 190; i++) {
+      drained.add("id"+i);
+    }
+    log.remove(drained);
+    assertTrue(countSegments(dir) <= 2);
+
+    // A mostly removed segment is rewritten.
+    for (int i = 200; i < 400; i++) {
+      log.put("id"+i, 0, data(i, 200));
+    }
+    List<String> removed = new ArrayList<String>();
+    for (int i = 190; i < 400; i++) {
+      if (i != 195 && i != 250) {
+        removed.add("id"+i);
+      }
+    }
+    log.remove(removed);
+    assertTrue(countSegments(dir) <= 2);
+    assertEquals(Arrays.asList("id195", "id250"), log.getIds());
+    log.close();
+
+    log = new SegmentedLog(dir, 4096);
+    assertEquals(Arrays.asList("id195", "id250"), log.getIds());
+    assertArrayEquals(data(250, 200), log.get("id250"));
+    log.close();
+  }
+
+  // A segment whose deletion failed is not replayed.
+  @Test
+  public void testObsoleteSegment() throws IOException {
+    File dir = newDir();
+    SegmentedLog log = new SegmentedLog(dir, 4096);
+    for (int i = 0; i < 40; i++) {
+      log.put("id"+i, 0, data(i, 200));
+    }
+    File first = listSegments(dir)[0];
+    byte[] content = new byte[(int) first.length()];
+    RandomAccessFile raf = new RandomAccessFile(first, "r");
+    raf.readFully(content);
+    raf.close();
+
+    List<String> drained = new ArrayList<String>();
+    for (int i = 0; i < 30; i++) {
+      drained.add("id"+i);
+    }
+    log.remove(drained);
+    assertFalse(first.exists());
+    log.close();
+
+    // Restore the deleted segment as if its deletion had failed.
+    raf = new RandomAccessFile(first, "rw");
+    raf.write(content);
+    raf.close();
+
+    log = new SegmentedLog(dir, 4096);
+    assertFalse(first.exists());
+    assertEquals(10, log.size());
+    assertEquals("id30", log.getIds().get(0));
+    log.clear();
+    log.put("a", 0, data(1, 10));
+    log.close();
+
+    log = new SegmentedLog(dir, 4096);
+    assertEquals(Arrays.asList("a"), log.getIds());
+    log.close();
+  }
+
+  @Test
+  public void testConcurrentPut() throws Exception {
+    File dir = newDir();
+    final SegmentedLog log = new SegmentedLog(dir, 64 * 1024);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int base = t * 1000;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 200; i++) {
+              log.put("id"+(base + i), 0, data(i, 50));
+            }
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(800, log.size());
+    log.close();
+
+    SegmentedLog reopened = new SegmentedLog(dir, 64 * 1024);
+    assertEquals(800, reopened.size());
+    reopened.clear();
+    assertEquals(0, reopened.size());
+    assertEquals(1, countSegments(dir));
+    reopened.close();
+  }
+
+  @Test
+  public void testSyncPolicies() throws IOException {
+    for (SegmentedLog.SyncPolicy policy : SegmentedLog.SyncPolicy.values()) {
+      File dir = newDir();
+      SegmentedLog log = new SegmentedLog(dir, 4096, policy, 10);
+      assertEquals(policy, log.getSyncPolicy());
+      // Roll over a few segments so the sealed ones are read by mapping.
+      for (int i = 0; i < 30; i++) {
+        log.put("id"+i, i % 2, data(i, 500));
+      }
+      assertTrue(countSegments(dir) > 1);
+      log.remove("id3");
+      log.sync();
+      for (int i = 0; i < 30; i++) {
+        if (i != 3) {
+          assertArrayEquals(data(i, 500), log.get("id"+i));
+        }
+      }
+      log.close();
+
+      log = new SegmentedLog(dir, 4096, policy, 10);
+      assertEquals(29, log.size());
+      assertEquals("id0", log.getIds().get(0));
+      assertEquals(1, log.getType("id29"));
+      assertArrayEquals(data(29, 500), log.get("id29"));
+      log.close();
+    }
+  }
+
+  @Test
+  public void testMeta() throws IOException {
+    File dir = newDir();
+    SegmentedLog log = new SegmentedLog(dir, 4096);
+    for (int i = 0; i < 20; i++) {
+      log.put("id"+i, i % 2, (i % 4 == 0) ? null : data(i, 10), data(i, 300));
+    }
+    assertNull(log.getMeta("id0"));
+    assertArrayEquals(data(1, 10), log.getMeta("id1"));
+    assertArrayEquals(data(1, 300), log.get("id1"));
+    assertEquals(Arrays.asList("id1", "id3", "id5", "id7", "id9", "id11",
+        "id13", "id15", "id17", "id19"), log.getIds(1));
+    log.close();
+
+    // The metadata is recovered and kept by the compaction.
+    log = new SegmentedLog(dir, 4096);
+    for (int i = 0; i < 16; i++) {
+      log.remove("id"+i);
+    }
+    assertNull(log.getMeta("id16"));
+    assertArrayEquals(data(17, 10), log.getMeta("id17"));
+    assertArrayEquals(data(17, 300), log.get("id17"));
+    assertNull(log.getMeta("id1"));
+    log.close();
+
+    log = new SegmentedLog(dir, 4096);
+    assertEquals(4, log.size());
+    assertArrayEquals(data(19, 10), log.getMeta("id19"));
+    assertArrayEquals(data(19, 300), log.get("id19"));
+    assertArrayEquals(data(16, 300), log.get("id16"));
+    log.close();
+  }
+
+  @Test
+  public void testLocked() throws IOException {
+    File dir = newDir();
+    SegmentedLog log = new SegmentedLog(dir, 4096);
+    try {
+      new SegmentedLog(dir, 4096);
+      fail("The directory should be locked");
+    } catch (IOException e) {
+      // Expected.
+    }
+    log.close();
+    log = new SegmentedLog(dir, 4096);
+    log.close();
+  }
+}
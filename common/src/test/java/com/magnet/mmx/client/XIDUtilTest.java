@@ -128,4 +128,27 @@ public class XIDUtilTest {
     assertEquals("domain", tokens[2]);
     assertEquals("resource", tokens[3]);
   }
+
+  @Test
+  public void testParseXIDCopy() {
+    String [] tokens;
+    tokens = XIDUtil.parseXID("john.doe%appId@domain/resource");
+    tokens[0] = "jane.doe";
+    tokens = XIDUtil.parseXID("john.doe%appId@domain/resource");
+    assertEquals("john.doe", tokens[0]);
+  }
+
+  @Test
+  public void testMakeXID() {
+    assertEquals("john.doe%appId@domain",
+        XIDUtil.makeXID("john.doe", "appId", "domain"));
+    assertEquals("john.doe%appId@domain",
+        XIDUtil.makeXID("john.doe", "appId", "domain", ""));
+    assertEquals("john.doe%appId@domain/resource",
+        XIDUtil.makeXID("john.doe", "appId", "domain", "resource"));
+    assertEquals("john\\20doe%appId@domain/resource",
+        XIDUtil.makeXID("john doe", "appId", "domain", "resource"));
+    assertEquals("john\\20doe%appId@domain/resource",
+        XIDUtil.makeXID("john doe", "appId", "domain", "resource"));
+  }
 }
@@ -0,0 +1,88 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client.common;
+
+import com.magnet.mmx.util.DisposableFile;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkAssemblerTest {
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  private static File newDir() throws IOException {
+    File dir = File.createTempFile("chunk", "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  private static String read(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      int n = 0;
+      while (n < data.length) {
+        n += fis.read(data, n, data.length - n);
+      }
+    } finally {
+      fis.close();
+    }
+    return new String(data, "UTF-8");
+  }
+
+  @Test
+  public void testOutOfOrder() throws IOException {
+    File dir = newDir();
+    ChunkAssembler assembler = new ChunkAssembler(dir, 0);
+    assertNull(assembler.write("cid1", 6, 11, "world"));
+    DisposableFile file = assembler.write("cid1", 0, 11, "hello ");
+    assertNotNull(file);
+    assertEquals("hello world", read(file));
+    assembler.close();
+  }
+
+  @Test
+  public void testDuplicateAfterCompletion() throws IOException {
+    File dir = newDir();
+    ChunkAssembler assembler = new ChunkAssembler(dir, 0);
+    assertNull(assembler.write("cid2", 0, 11, "hello "));
+    DisposableFile file = assembler.write("cid2", 6, 11, "world");
+    assertNotNull(file);
+    assertFalse(file.getName().startsWith("com.magnet.chunk-"));
+
+    // A late duplicate is dropped without reopening a partial file.
+    assertNull(assembler.write("cid2", 0, 11, "hello "));
+    assertNull(assembler.write("cid2", 6, 11, "world"));
+    assertEquals(1, dir.listFiles().length);
+    assertTrue(file.exists());
+    assertEquals("hello world", read(file));
+    assembler.close();
+  }
+}
@@ -0,0 +1,150 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client.common;
+
+import com.magnet.mmx.protocol.Headers;
+import com.magnet.mmx.protocol.MmxHeaders;
+import com.magnet.mmx.util.GsonData;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class HeaderDecoderTest {
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  private static XmlPullParser newParser(String xml) throws Exception {
+    XmlPullParser parser = PacketParserUtils.newXmppParser();
+    parser.setInput(new StringReader(xml));
+    assertEquals(XmlPullParser.START_TAG, parser.next());
+    return parser;
+  }
+
+  private static Headers decodeMeta(String json) throws Exception {
+    XmlPullParser parser = newParser("<meta>"+json+"</meta>");
+    Headers meta = HeaderDecoder.decodeMeta(parser);
+    assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+    return meta;
+  }
+
+  private static MmxHeaders decodeMmxMeta(String json) throws Exception {
+    XmlPullParser parser = newParser("<mmxmeta>"+json+"</mmxmeta>");
+    MmxHeaders mmxMeta = HeaderDecoder.decodeMmxMeta(parser);
+    assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+    return mmxMeta;
+  }
+
+  private static void assertMeta(String json) throws Exception {
+    assertEquals(GsonData.getGson().fromJson(json, Headers.class),
+        decodeMeta(json));
+  }
+
+  private static void assertMmxMeta(String json) throws Exception {
+    assertEquals(GsonData.getGson().fromJson(json, MmxHeaders.class),
+        decodeMmxMeta(json));
+  }
+
+  @Test
+  public void testStringEscapes() throws Exception {
+    String json = "{\"quote\":\"a\\\"b\",\"slash\":\"c\\\\d\\/e\"," +
+        "\"ctrl\":\"\\b\\f\\n\\r\\t\"}";
+    assertMeta(json);
+    assertMmxMeta(json);
+    assertEquals("a\"b", decodeMeta(json).get("quote"));
+  }
+
+  @Test
+  public void testUnicodeEscapes() throws Exception {
+    String json = "{\"name\":\"\\u00e9t\\u00E9 \\u4e16\\u754c\"," +
+        "\"k\\u0065y\":\"v\"}";
+    assertMeta(json);
+    assertMmxMeta(json);
+    assertEquals("\u00e9t\u00e9 \u4e16\u754c", decodeMeta(json).get("name"));
+    assertEquals("v", decodeMeta(json).get("key"));
+  }
+
+  @Test
+  public void testNumbers() throws Exception {
+    String json = "{\"int\":42,\"neg\":-7,\"frac\":1.50,\"exp\":2.5E-3," +
+        "\"big\":12345678901234567890}";
+    assertMeta(json);
+    assertMmxMeta(json);
+    assertEquals("1.50", decodeMeta(json).get("frac"));
+    assertEquals(Double.valueOf(42), decodeMmxMeta(json).get("int"));
+  }
+
+  @Test
+  public void testLiterals() throws Exception {
+    String json = "{ \"yes\" : true , \"no\" : false , \"none\" : null }";
+    assertMeta(json);
+    assertMmxMeta(json);
+    assertEquals("true", decodeMeta(json).get("yes"));
+    assertEquals(Boolean.FALSE, decodeMmxMeta(json).get("no"));
+  }
+
+  @Test
+  public void testNested() throws Exception {
+    String json = "{\"To\":[{\"userId\":\"u1\",\"devId\":\"d1\"}," +
+        "{\"userId\":\"u2\"}],\"obj\":{\"a\":[1,2.5,\"x\",true,null],\"b\":{}}," +
+        "\"empty\":[]}";
+    assertMmxMeta(json);
+  }
+
+  // The JSON not handled by the decoder is decoded by Gson.
+  @Test
+  public void testGsonFallback() throws Exception {
+    String json = "{'single':'quoted',unquoted:'name'}";
+    assertMeta(json);
+    assertMmxMeta(json);
+    assertEquals("quoted", decodeMeta(json).get("single"));
+
+    // A nested value in the meta headers is rejected as by Gson.
+    json = "{\"obj\":{\"a\":1}}";
+    try {
+      GsonData.getGson().fromJson(json, Headers.class);
+      fail("Gson should reject a nested value in Headers");
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+    try {
+      decodeMeta(json);
+      fail("A nested value in Headers should be rejected");
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    XmlPullParser parser = newParser("<meta/>");
+    assertNull(HeaderDecoder.decodeMeta(parser));
+    assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+    parser = newParser("<mmxmeta></mmxmeta>");
+    assertNull(HeaderDecoder.decodeMmxMeta(parser));
+    assertMeta("{}");
+    assertMmxMeta(" { } ");
+  }
+}
@@ -0,0 +1,80 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client.common;
+
+import com.magnet.mmx.protocol.Headers;
+import com.magnet.mmx.protocol.MMXid;
+import com.magnet.mmx.util.GsonData;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class MMXPayloadTest {
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  private static Headers fromJson(String json) {
+    return GsonData.getGson().fromJson(json, Headers.class);
+  }
+
+  @Test
+  public void testMetaJsonReused() {
+    MMXPayload payload = new MMXPayload("text");
+    payload.setMetaData("key", "value");
+    String json = payload.getMetaJson();
+    assertSame(json, payload.getMetaJson());
+    payload.setMetaData("key", "value2");
+    assertEquals("value2", fromJson(payload.getMetaJson()).get("key"));
+  }
+
+  // "Aa" and "BB" have the same hash code, so the map hash does not change.
+  @Test
+  public void testMetaJsonAfterDirectEdit() {
+    MMXPayload payload = new MMXPayload("text");
+    payload.setMetaData("key", "Aa");
+    Map<String, String> meta = payload.getAllMetaData();
+    assertEquals("Aa", fromJson(payload.getMetaJson()).get("key"));
+    int hash = meta.hashCode();
+    meta.put("key", "BB");
+    assertEquals(hash, meta.hashCode());
+    assertEquals("BB", fromJson(payload.getMetaJson()).get("key"));
+  }
+
+  // The recipients array may be reused and changed in place between sends.
+  @Test
+  public void testToChangedInPlace() {
+    MMXPayload payload = new MMXPayload("text");
+    MMXid[] to = { new MMXid("user1", null, null) };
+    payload.setTo(to);
+    String json = payload.getMmxMetaJson();
+    assertSame(json, payload.setTo(to).getMmxMetaJson());
+
+    to[0] = new MMXid("user2", null, null);
+    payload.setTo(to);
+    String json2 = payload.getMmxMetaJson();
+    assertFalse(json.equals(json2));
+    assertFalse(json2.contains("user1"));
+    assertEquals(GsonData.getGson().toJson(payload.getMmxMeta()), json2);
+  }
+}
@@ -0,0 +1,84 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client.common;
+
+import com.magnet.mmx.protocol.MMXid;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MulticastFanOutTest {
+  private final static int SIZE = MulticastFanOut.RECIPIENT_OVERHEAD + 2;
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  // Recipients with the user ID "u0".."u9" estimated as SIZE bytes each.
+  private static MMXid[] newRecipients(int count) {
+    MMXid[] to = new MMXid[count];
+    for (int i = 0; i < count; i++) {
+      to[i] = new MMXid("u"+(i % 10), null, null);
+    }
+    return to;
+  }
+
+  private static void assertSizes(List<MMXid[]> batches, int... sizes) {
+    assertEquals(sizes.length, batches.size());
+    for (int i = 0; i < sizes.length; i++) {
+      assertEquals(sizes[i], batches.get(i).length);
+    }
+  }
+
+  @Test
+  public void testSplitByCount() {
+    MMXid[] to = newRecipients(10);
+    assertSizes(MulticastFanOut.split(to, 3, Integer.MAX_VALUE), 3, 3, 3, 1);
+    assertSizes(MulticastFanOut.split(to, 5, Integer.MAX_VALUE), 5, 5);
+    assertSizes(MulticastFanOut.split(to, 10, Integer.MAX_VALUE), 10);
+    List<MMXid[]> batches = MulticastFanOut.split(to, 4, Integer.MAX_VALUE);
+    assertEquals(to[4], batches.get(1)[0]);
+    assertEquals(to[9], batches.get(2)[1]);
+  }
+
+  @Test
+  public void testSplitByBytes() {
+    MMXid[] to = newRecipients(7);
+    // A batch may reach the limit exactly.
+    assertSizes(MulticastFanOut.split(to, 100, 3 * SIZE), 3, 3, 1);
+    assertSizes(MulticastFanOut.split(to, 100, 3 * SIZE - 1), 2, 2, 2, 1);
+    assertSizes(MulticastFanOut.split(to, 100, 3 * SIZE + 1), 3, 3, 1);
+    // The count limit applies first.
+    assertSizes(MulticastFanOut.split(to, 2, 3 * SIZE), 2, 2, 2, 1);
+
+    // The device ID is counted.
+    to[1] = new MMXid("u1", "d1", null);
+    assertSizes(MulticastFanOut.split(to, 100, 3 * SIZE), 2, 3, 2);
+  }
+
+  // A recipient larger than the limit is sent alone.
+  @Test
+  public void testSplitOversized() {
+    MMXid[] to = newRecipients(3);
+    assertSizes(MulticastFanOut.split(to, 100, SIZE - 1), 1, 1, 1);
+    assertSizes(MulticastFanOut.split(to, 100,
+        MulticastFanOut.RECIPIENT_OVERHEAD), 1, 1, 1);
+  }
+}
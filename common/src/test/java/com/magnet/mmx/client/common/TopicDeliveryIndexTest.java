@@ -0,0 +1,105 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.magnet.mmx.client.common;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TopicDeliveryIndexTest {
+
+  @BeforeClass
+  public static void setup() throws Exception {
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    File file = File.createTempFile("delivery", ".bin");
+    file.delete();
+    TopicDeliveryIndex index = TopicDeliveryIndex.open(file.getPath());
+    index.put("node1", 100L, null);
+    index.put("node2", 200L, null);
+    index.put("node1", 50L, null);
+    index.force();
+
+    index = TopicDeliveryIndex.open(file.getPath());
+    assertEquals(2, index.size());
+    assertEquals(Long.valueOf(100L), index.get("node1"));
+    assertEquals(Long.valueOf(200L), index.get("node2"));
+    assertNull(index.get("node3"));
+  }
+
+  // A new topic must not overwrite a live slot after a hole.
+  @Test
+  public void testReloadWithHole() throws IOException {
+    File file = File.createTempFile("delivery", ".bin");
+    file.delete();
+    TopicDeliveryIndex index = TopicDeliveryIndex.open(file.getPath());
+    index.put("node1", 100L, null);
+    index.put("node2", 200L, null);
+    index.put("node3", 300L, null);
+    index.force();
+
+    // Clear the node length of the first record.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(16 + 8);
+    raf.writeShort(0);
+    raf.close();
+
+    index = TopicDeliveryIndex.open(file.getPath());
+    assertEquals(2, index.size());
+    index.put("node4", 400L, null);
+    index.put("node5", 500L, null);
+    assertEquals(Long.valueOf(200L), index.get("node2"));
+    assertEquals(Long.valueOf(300L), index.get("node3"));
+    assertEquals(Long.valueOf(400L), index.get("node4"));
+    index.force();
+
+    index = TopicDeliveryIndex.open(file.getPath());
+    assertEquals(4, index.size());
+    assertEquals(Long.valueOf(200L), index.get("node2"));
+    assertEquals(Long.valueOf(300L), index.get("node3"));
+    assertEquals(Long.valueOf(400L), index.get("node4"));
+    assertEquals(Long.valueOf(500L), index.get("node5"));
+  }
+
+  @Test
+  public void testItemId() throws IOException {
+    File file = File.createTempFile("delivery", ".bin");
+    file.delete();
+    TopicDeliveryIndex index = TopicDeliveryIndex.open(file.getPath());
+    index.put("node1", 100L, "item1");
+    index.put("node2", 200L, "item2");
+    index.put("node1", 50L, "item0");
+    index.put("node2", 300L, null);
+    index.put("node3", 300L, new String(new char[75]).replace('\0', 'x'));
+    index.force();
+
+    index = TopicDeliveryIndex.open(file.getPath());
+    assertEquals("item1", index.getItemId("node1"));
+    assertNull(index.getItemId("node2"));
+    assertNull(index.getItemId("node3"));
+    assertEquals(Long.valueOf(300L), index.get("node3"));
+    assertNull(index.getItemId("node4"));
+  }
+}
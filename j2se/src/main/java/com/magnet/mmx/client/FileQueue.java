@@ -0,0 +1,175 @@
+/*   Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.magnet.mmx.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.magnet.mmx.client.common.Log;
+import com.magnet.mmx.client.common.QueueDrainer;
+import com.magnet.mmx.client.common.QueueItemCodec;
+import com.magnet.mmx.util.MMXQueue;
+import com.magnet.mmx.util.SegmentedLog;
+
+/**
+ * A durable MMXQueue for the Java client backed by a segmented log in a
+ * directory.  The queued items are replayed in the queued order by
+ * {@link QueueDrainer}.
+ */
+class FileQueue implements MMXQueue {
+  private static final String TAG = "FileQueue";
+  private final MMXClient mClient;
+  private final SegmentedLog mLog;
+  // One drain at a time; the items can still be queued while draining.
+  private final Object mDrainLock = new Object();
+  private volatile QueueDrainer mDrainer;
+  private final QueueDrainer.Store mStore = new QueueDrainer.Store() {
+    @Override
+    public List<String> getIds() {
+      return mLog.getIds();
+    }
+
+    @Override
+    public Item load(String id) throws IOException {
+      byte[] data = mLog.get(id);
+      return (data == null) ? null : QueueItemCodec.decode(data);
+    }
+
+    @Override
+    public void remove(Collection<String> ids) throws IOException {
+      mLog.remove(ids);
+    }
+  };
+
+  /**
+   * Constructor.
+   * @param client The client to send the queued items.
+   * @param dir The directory of the queue.
+   * @param syncPolicy The sync policy of the queue.
+   * @param syncInterval The interval in milliseconds for
+   *        {@link SegmentedLog.SyncPolicy#INTERVAL}.
+   * @throws IOException
+   */
+  FileQueue(MMXClient client, File dir, SegmentedLog.SyncPolicy syncPolicy,
+             long syncInterval) throws IOException {
+    mClient = client;
+    mLog = new SegmentedLog(dir, SegmentedLog.DEFAULT_SEGMENT_SIZE,
+        syncPolicy, syncInterval);
+  }
+
+  /**
+   * Adds an item to the queue.
+   *
+   * @param item the item to add
+   * @return true if successful, false otherwise
+   */
+  @Override
+  public synchronized boolean addItem(Item item) {
+    if (mLog.contains(item.getId())) {
+      Log.e(TAG, "addItem(): item already exists: " + item.getId());
+      return false;
+    }
+    try {
+      mLog.put(item.getId(), item.getType().ordinal(),
+          QueueItemCodec.encode(item));
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "addItem(): Unable to store item for later sending.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Retrieves the identifiers of all the pending items in the queue
+   *
+   * @return the identifiers of the pending items
+   */
+  @Override
+  public synchronized Set<String> getPendingItemIds() {
+    return new HashSet<String>(mLog.getIds());
+  }
+
+  /**
+   * Gets the number of pending items in the queue.  It does not hold the
+   * queue lock.
+   *
+   * @return the number of pending items
+   */
+  @Override
+  public int size() {
+    return mLog.size();
+  }
+
+  /**
+   * Sends the pending items in the queued order.  It blocks until the queue
+   * is drained or the connection is lost.
+   */
+  @Override
+  public void processPendingItems() {
+    synchronized(mDrainLock) {
+      mDrainer = new QueueDrainer(mClient.getConnection(), mStore);
+      try {
+        mDrainer.drain();
+      } finally {
+        mDrainer = null;
+      }
+    }
+  }
+
+  /**
+   * Close the queue and release the lock of its directory.
+   */
+  void close() {
+    QueueDrainer drainer = mDrainer;
+    if (drainer != null) {
+      drainer.stop();
+    }
+    synchronized(mDrainLock) {
+      mLog.close();
+    }
+  }
+
+  /**
+   * Removes all items from the queue
+   */
+  @Override
+  public synchronized void removeAllItems() {
+    try {
+      mLog.clear();
+    } catch (IOException e) {
+      Log.w(TAG, "removeAllItems(): Unable to remove items", e);
+    }
+  }
+
+  /**
+   * Removes a single item from the queue
+   *
+   * @param id the id of the item to remove
+   * @return true is successful, false otherwise
+   */
+  @Override
+  public synchronized boolean removeItem(String id) {
+    try {
+      return mLog.remove(id);
+    } catch (IOException e) {
+      Log.w(TAG, "removeItem(): Unable to remove item: " + id, e);
+      return false;
+    }
+  }
+}
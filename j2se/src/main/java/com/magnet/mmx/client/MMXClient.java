@@ -15,6 +15,9 @@
 
 package com.magnet.mmx.client;
 
+import java.io.File;
+import java.io.IOException;
+
 import com.magnet.mmx.client.common.AccountManager;
 import com.magnet.mmx.client.common.DeviceManager;
 import com.magnet.mmx.client.common.IMMXClient;
@@ -33,6 +36,9 @@ import com.magnet.mmx.protocol.GeoLoc;
 import com.magnet.mmx.protocol.MMXStatus;
 import com.magnet.mmx.protocol.MMXid;
 import com.magnet.mmx.protocol.OSType;
+import com.magnet.mmx.util.MMXQueue;
+import com.magnet.mmx.util.QueueExecutor;
+import com.magnet.mmx.util.SegmentedLog;
 import org.jivesoftware.smackx.privacy.PrivacyListManager;
 import org.jivesoftware.smackx.pubsub.Affiliation;
 import org.jivesoftware.smackx.pubsub.AffiliationsExtension;
@@ -47,6 +53,8 @@ public class MMXClient implements IMMXClient {
   private final MMXContext mContext;
   private final MMXSettings mSettings;
   private final MMXConnection mCon;
+  private final MMXQueue mQueue;
+  private QueueExecutor mReplayer;
   private boolean mDevReg;
   private int mPriority;
   private MMXConnectionListener mConListener;
@@ -88,6 +96,15 @@ public class MMXClient implements IMMXClient {
       if (mSettings.getBoolean(MMXSettings.ENABLE_AUTO_REGISTER_DEVICE, false)) {
         registerDeviceWithServer();
       }
+      if (mQueue != null) {
+        // Publishing blocks for the results; replay it off the callback thread.
+        mReplayer.post(new Runnable() {
+          @Override
+          public void run() {
+            mQueue.processPendingItems();
+          }
+        });
+      }
     }
 
     @Override
@@ -162,12 +179,55 @@ public class MMXClient implements IMMXClient {
   public MMXClient(MMXContext context, MMXSettings settings) {
     mContext = context;
     mSettings = settings;
-    mCon = new MMXConnection(mContext, settings);
+    mQueue = createQueue();
+    mCon = new MMXConnection(mContext, mQueue, settings);
     if (mSettings.getString(MMXSettings.PROP_APPID, null) == null) {
       Log.w(TAG, "App ID is not configured; this client cannot be authenticated by the app!");
     }
   }
 
+  private MMXQueue createQueue() {
+    if (!mSettings.getBoolean(MMXSettings.PROP_ENABLE_QUEUE, false)) {
+      return null;
+    }
+    String sync = mSettings.getString(MMXSettings.PROP_QUEUE_SYNC,
+        MMXSettings.QUEUE_SYNC_ALWAYS);
+    SegmentedLog.SyncPolicy policy;
+    if (MMXSettings.QUEUE_SYNC_INTERVAL.equalsIgnoreCase(sync)) {
+      policy = SegmentedLog.SyncPolicy.INTERVAL;
+    } else if (MMXSettings.QUEUE_SYNC_NONE.equalsIgnoreCase(sync)) {
+      policy = SegmentedLog.SyncPolicy.NONE;
+    } else {
+      policy = SegmentedLog.SyncPolicy.ALWAYS;
+    }
+    // One queue per settings and user; the log is locked while it is open.
+    String name = FileQueue.class.getName()+'.'+mSettings.getName();
+    String user = mSettings.getString(MMXSettings.PROP_USER, null);
+    if (user != null) {
+      name += '.'+user;
+    }
+    File dir = new File(mContext.getDataDir(), name);
+    try {
+      MMXQueue queue = new FileQueue(this, dir, policy,
+          mSettings.getInt(MMXSettings.PROP_QUEUE_SYNC_INTERVAL, 1000));
+      mReplayer = new QueueExecutor("MMX Queue Replayer", true);
+      mReplayer.start();
+      return queue;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to open the queue in "+dir+"; offline publishing is disabled", e);
+      return null;
+    }
+  }
+
+  /**
+   * Get the queue of the items to be sent when the client is authenticated.
+   * @return The queue, or null if the queue is disabled.
+   * @see MMXSettings#PROP_ENABLE_QUEUE
+   */
+  public MMXQueue getQueue() {
+    return mQueue;
+  }
+
   /**
    * Get a lower layer connection object for internal testing only.
    * @return
@@ -346,6 +406,24 @@ public class MMXClient implements IMMXClient {
     }
   }
 
+  /**
+   * Disconnect the current session and release the resources of this client,
+   * including the queue.  This client cannot be used afterward.
+   */
+  public void destroy() {
+    try {
+      mCon.destroy();
+    } finally {
+      if (mReplayer != null) {
+        mReplayer.quit();
+        mReplayer = null;
+      }
+      if (mQueue != null) {
+        ((FileQueue) mQueue).close();
+      }
+    }
+  }
+
   /**
    * Update the geo-location of current user to MMX server.
    * @param location A geo-location
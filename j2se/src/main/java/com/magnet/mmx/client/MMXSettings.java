@@ -48,6 +48,30 @@ public class MMXSettings implements com.magnet.mmx.client.common.MMXSettings,
    */
   public static final String ENABLE_AUTO_REGISTER_DEVICE = "false";
 
+  /**
+   * Queue the published items while the client is not connected, and publish
+   * them in order when the client is authenticated again (boolean.)  The
+   * queue is stored under the application data directory, one per settings
+   * name and {@link #PROP_USER}.  Default is false.
+   */
+  public static final String PROP_ENABLE_QUEUE = "enableQueue";
+  /**
+   * When the queued items are forced to the storage (String.)
+   * {@link #QUEUE_SYNC_ALWAYS} forces every item before it is queued,
+   * {@link #QUEUE_SYNC_INTERVAL} forces the items periodically, and
+   * {@link #QUEUE_SYNC_NONE} leaves it to the OS.  Default is
+   * {@link #QUEUE_SYNC_ALWAYS}.
+   */
+  public static final String PROP_QUEUE_SYNC = "queueSync";
+  public static final String QUEUE_SYNC_ALWAYS = "always";
+  public static final String QUEUE_SYNC_INTERVAL = "interval";
+  public static final String QUEUE_SYNC_NONE = "none";
+  /**
+   * Interval in milliseconds to force the queued items for
+   * {@link #QUEUE_SYNC_INTERVAL} (int.)  Default is 1000.
+   */
+  public static final String PROP_QUEUE_SYNC_INTERVAL = "queueSyncInterval";
+
   private final static String TAG = "MMXSettings";
   protected String mName;
   protected Properties mProps = new Properties();